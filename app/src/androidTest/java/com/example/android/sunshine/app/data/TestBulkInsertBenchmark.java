@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Times writing the weather the way the provider used to, one insert of ContentValues per
+    row, against the compiled statement fed from ContentValues and from a WeatherBatch.  The
+    sizes are a forecast, a large group sync and far more than any sync writes.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testForecast() {
+        benchmark(14);
+    }
+
+    public void testGroupSync() {
+        benchmark(500);
+    }
+
+    public void testManyRows() {
+        long[] millis = benchmark(10000);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        // Loose, as the device may be busy; the batch is usually several times faster
+        assertTrue("Error: Writing a batch took " + millis[2] + "ms against " + millis[0]
+                + "ms for inserting row by row", millis[2] < millis[0]);
+    }
+
+    /**
+     * Writes the same rows each way into an empty table.
+     *
+     * @return the milliseconds taken row by row, by bulkInsert and by upserting a batch,
+     * the last being 0 where provider calls don't exist
+     */
+    private long[] benchmark(int rows) {
+        ContentValues[] values = createWeatherValues(mLocationRowId, rows);
+        long[] millis = new long[3];
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                db.insert(WeatherEntry.TABLE_NAME, null, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        millis[0] = SystemClock.elapsedRealtime() - start;
+        dbHelper.close();
+        assertEquals(rows, deleteWeather());
+
+        start = SystemClock.elapsedRealtime();
+        int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        millis[1] = SystemClock.elapsedRealtime() - start;
+        assertEquals("Error: bulkInsert should have written every row", rows, inserted);
+        assertEquals(rows, deleteWeather());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Building the batch is part of the cost, as the sync builds one instead of values
+            start = SystemClock.elapsedRealtime();
+            WeatherBatch batch = createWeatherBatch(mLocationRowId, rows);
+            Bundle extras = new Bundle();
+            extras.putParcelable(WeatherEntry.EXTRA_BATCH, batch);
+            Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_UPSERT, null, extras);
+            millis[2] = SystemClock.elapsedRealtime() - start;
+            assertEquals("Error: The upsert should have inserted every row",
+                    rows, result.getLongArray(WeatherEntry.EXTRA_INSERTED_IDS).length);
+        }
+
+        Log.d(LOG_TAG, rows + " rows: row by row " + millis[0] + "ms, bulkInsert "
+                + millis[1] + "ms, batch " + millis[2] + "ms");
+        return millis;
+    }
+
+    private static ContentValues[] createWeatherValues(long locationRowId, int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+        }
+        return values;
+    }
+
+    // The same rows as createWeatherValues
+    private static WeatherBatch createWeatherBatch(long locationRowId, int rows) {
+        WeatherBatch batch = new WeatherBatch(rows);
+        for (int i = 0; i < rows; i++) {
+            batch.add(locationRowId, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS, 321,
+                    "Asteroids", 65, 75, 1.2, 1.3, 5.5, 1.1);
+        }
+        return batch;
+    }
+
+    private int deleteWeather() {
+        return mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private void deleteAll() {
+        deleteWeather();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Reads the weather over and over while another thread writes it the way a sync does, and
+    checks that the reads neither wait for the writes nor see half of one.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+    private static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    // Far more than a sync writes at once, so each write lasts long enough to read against
+    private static final int ROWS_PER_WRITE = 2000;
+    private static final int WRITES = 4;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testDatabaseUsesWriteAheadLog() {
+        // Write-ahead logging only exists from Honeycomb
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        Cursor cursor = dbHelper.getWritableDatabase().rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: The database should be in write-ahead log mode",
+                "wal", cursor.getString(0).toLowerCase(Locale.US));
+        cursor.close();
+        dbHelper.close();
+    }
+
+    public void testReadsDoNotWaitForWrites() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        final long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        final long[] writeMillis = new long[WRITES];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < WRITES; i++) {
+                    ContentValues[] values = createWeatherValues(locationRowId, i * ROWS_PER_WRITE);
+                    long start = SystemClock.elapsedRealtime();
+                    mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+                    writeMillis[i] = SystemClock.elapsedRealtime() - start;
+                }
+            }
+        };
+
+        List<Long> readMillis = new ArrayList<Long>();
+        writer.start();
+        while (writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            int count = countWeather(locationRowId);
+            readMillis.add(SystemClock.elapsedRealtime() - start);
+            assertEquals("Error: A read should see all of a write or none of it",
+                    0, count % ROWS_PER_WRITE);
+        }
+        writer.join();
+        assertEquals(WRITES * ROWS_PER_WRITE, countWeather(locationRowId));
+
+        long shortestWrite = Long.MAX_VALUE;
+        for (long millis : writeMillis) {
+            shortestWrite = Math.min(shortestWrite, millis);
+        }
+        Collections.sort(readMillis);
+        long slowestRead = readMillis.get(readMillis.size() - 1);
+        Log.d(LOG_TAG, readMillis.size() + " reads during " + WRITES + " writes of "
+                + ROWS_PER_WRITE + " rows: median " + readMillis.get(readMillis.size() / 2)
+                + "ms, 99th percentile " + readMillis.get(readMillis.size() * 99 / 100)
+                + "ms, slowest " + slowestRead + "ms; shortest write " + shortestWrite + "ms");
+
+        // A read that waited for a write would take about as long as the write
+        assertTrue("Error: Reads waited for the writes in progress, the slowest took "
+                + slowestRead + "ms against writes of " + shortestWrite + "ms",
+                slowestRead < shortestWrite / 2 + 20);
+    }
+
+    public void testCheckpointEmptiesLog() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId, 0));
+
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_CHECKPOINT, null, null);
+        assertEquals("Error: With nobody reading, the checkpoint should empty the log",
+                0, result.getInt(WeatherContract.EXTRA_WAL_PAGES));
+    }
+
+    private int countWeather(long locationRowId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{"count(*)"}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private static ContentValues[] createWeatherValues(long locationRowId, int firstDay) {
+        ContentValues[] values = new ContentValues[ROWS_PER_WRITE];
+        for (int i = 0; i < ROWS_PER_WRITE; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (firstDay + i) * DAY_IN_MILLIS);
+        }
+        return values;
+    }
+
+    private void deleteAll() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
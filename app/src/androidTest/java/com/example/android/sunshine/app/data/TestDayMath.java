@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/*
+    Checks that DayMath gives the same days and midnights as android.text.format.Time, which it
+    replaced, in zones with and without daylight saving, and compares the cost of the two.  The
+    benchmark results are written to logcat under the TestDayMath tag.
+ */
+public class TestDayMath extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDayMath.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 10000;
+
+    // Zones with whole hour and half hour daylight saving transitions, and none
+    private static final String[] ZONES = {
+            "America/Los_Angeles", "Australia/Lord_Howe", "Asia/Kolkata", "UTC"};
+
+    // 2014 and 2015, a few hours and a bit at a time so every hour of the day comes up
+    private static final long RANGE_START = 1388534400000L;
+    private static final long RANGE_END = 1451606400000L;
+    private static final long RANGE_STEP = 5 * 60 * 60 * 1000L + 12345;
+
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        DayMath.invalidate();
+        super.tearDown();
+    }
+
+    public void testMatchesTime() {
+        for (String zone : ZONES) {
+            useZone(zone);
+            Time time = new Time();
+            for (long millis = RANGE_START; millis < RANGE_END; millis += RANGE_STEP) {
+                time.set(millis);
+                int julianDay = Time.getJulianDay(millis, time.gmtoff);
+                assertEquals("Error: Wrong julian day for " + millis + " in " + zone,
+                        julianDay, DayMath.julianDay(millis));
+                assertEquals("Error: Wrong start of day for " + millis + " in " + zone,
+                        oldNormalizeDate(millis), DayMath.normalize(millis));
+                assertEquals("Error: Start of day " + julianDay + " in " + zone
+                                + " falls on a different day",
+                        julianDay, DayMath.julianDay(DayMath.startOfDay(julianDay)));
+            }
+        }
+    }
+
+    public void testSkippedMidnight() {
+        // Clocks in Sao Paulo went from 23:59:59 on October 18th, 2014 to 01:00 on the 19th
+        useZone("America/Sao_Paulo");
+        long noon = 1413727200000L;
+        long start = DayMath.normalize(noon);
+        assertEquals("Error: A day without a midnight should start at the jump forward",
+                1413687600000L, start);
+        assertEquals("Error: The start of a day without a midnight falls on another day",
+                DayMath.julianDay(noon), DayMath.julianDay(start));
+    }
+
+    public void testCalendarFields() {
+        useZone("UTC");
+        // December 20th, 2014 was a Saturday
+        int julianDay = DayMath.julianDay(1419033600000L);
+        assertEquals("Error: Wrong julian day", 2457012, julianDay);
+        assertEquals("Error: Wrong month", Calendar.DECEMBER, DayMath.month(julianDay));
+        assertEquals("Error: Wrong day of month", 20, DayMath.dayOfMonth(julianDay));
+        assertEquals("Error: Wrong day of week", Calendar.SATURDAY,
+                DayMath.dayOfWeek(julianDay));
+    }
+
+    public void testTimeZoneChange() {
+        useZone("Asia/Kolkata");
+        // 20:00 UTC is already the next day in India
+        long millis = 1419105600000L;
+        int indiaDay = DayMath.julianDay(millis);
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+        DayMath.invalidate();
+        assertEquals("Error: Offsets cached for the old zone were used after a zone change",
+                indiaDay - 1, DayMath.julianDay(millis));
+    }
+
+    public void testFormattingMatchesSimpleDateFormat() {
+        // A week out, so neither "Today" nor "Tomorrow" is used
+        long date = DayMath.startOfDay(DayMath.today() + 3);
+        assertEquals("Error: Day name differs from SimpleDateFormat",
+                new SimpleDateFormat("EEEE").format(date), Utility.getDayName(mContext, date));
+        assertEquals("Error: Month and day differ from SimpleDateFormat",
+                new SimpleDateFormat("MMMM dd").format(date),
+                Utility.getFormattedMonthDay(mContext, date));
+        long later = DayMath.startOfDay(DayMath.today() + 10);
+        assertEquals("Error: Short date differs from SimpleDateFormat",
+                new SimpleDateFormat("EEE MMM dd").format(later),
+                Utility.getFriendlyDayString(mContext, later, false));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkNormalizeDate() {
+        useZone("America/Los_Angeles");
+        long now = System.currentTimeMillis();
+
+        // warm up both paths so we don't measure class loading or the JIT
+        for (int i = 0; i < 200; i++) {
+            oldNormalizeDate(now + i * 1000L);
+            DayMath.normalize(now + i * 1000L);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        long oldSum = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            // A fortnight of forecast rows, as the sync stores them
+            oldSum += oldNormalizeDate(now + (i % 14) * DayMath.DAY_MILLIS);
+        }
+        long timeNanos = System.nanoTime() - start;
+        long timeBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        long newSum = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            newSum += DayMath.normalize(now + (i % 14) * DayMath.DAY_MILLIS);
+        }
+        long dayMathNanos = System.nanoTime() - start;
+        long dayMathBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        assertEquals("Error: The two implementations disagree", oldSum, newSum);
+        Log.d(LOG_TAG, "normalizeDate: Time " + timeNanos / BENCHMARK_ITERATIONS + "ns "
+                + timeBytes / BENCHMARK_ITERATIONS + "B, DayMath "
+                + dayMathNanos / BENCHMARK_ITERATIONS + "ns "
+                + dayMathBytes / BENCHMARK_ITERATIONS + "B per call");
+    }
+
+    private static void useZone(String zone) {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        DayMath.invalidate();
+    }
+
+    // WeatherContract.normalizeDate as it was written with Time
+    private static long oldNormalizeDate(long startDate) {
+        Time time = new Time();
+        time.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+}
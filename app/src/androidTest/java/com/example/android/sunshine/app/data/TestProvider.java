@@ -16,20 +16,27 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +63,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -160,6 +172,13 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074/1419120000
+        type = mContext.getContentResolver().getType(
+                HourlyEntry.buildHourlyLocationWithDate(testLocation, testDate));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/hourly
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location and date should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +531,360 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Checks that writing the same days twice keeps their rows and _ids, and that changing a
+        day only updates that day.
+     */
+    public void testUpsertWeather() {
+        // The upsert is a provider call, which only exists from Honeycomb
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+
+        Bundle changes = upsertWeather(createBulkInsertWeatherValues(locationRowId));
+        long[] insertedIds = changes.getLongArray(WeatherEntry.EXTRA_INSERTED_IDS);
+        assertEquals("Error: New days should be inserted",
+                BULK_INSERT_RECORDS_TO_INSERT, insertedIds.length);
+        assertEquals(0, changes.getLongArray(WeatherEntry.EXTRA_UPDATED_IDS).length);
+
+        changes = upsertWeather(createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: Unchanged days should not be written",
+                0, changes.getLongArray(WeatherEntry.EXTRA_INSERTED_IDS).length
+                        + changes.getLongArray(WeatherEntry.EXTRA_UPDATED_IDS).length);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                changes.getInt(WeatherEntry.EXTRA_UNCHANGED_COUNT));
+
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        values[3].put(WeatherEntry.COLUMN_MAX_TEMP, 101.5);
+        changes = upsertWeather(values);
+        long[] updatedIds = changes.getLongArray(WeatherEntry.EXTRA_UPDATED_IDS);
+        assertEquals("Error: Only the changed day should be updated", 1, updatedIds.length);
+        assertEquals("Error: The changed day should keep its _id", insertedIds[3], updatedIds[0]);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1,
+                changes.getInt(WeatherEntry.EXTRA_UNCHANGED_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(insertedIds[3])}, null);
+        TestUtilities.validateCursor("testUpsertWeather.  Error validating the updated day",
+                cursor, values[3]);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Checks that a batch giving the same day twice writes the day once, from its last row,
+        and only reports the _id that is left.
+     */
+    public void testUpsertKeepsLastRowForDay() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues first = TestUtilities.createWeatherValues(locationRowId);
+        ContentValues last = TestUtilities.createWeatherValues(locationRowId);
+        last.put(WeatherEntry.COLUMN_MAX_TEMP, 101.5);
+        last.put(WeatherEntry.COLUMN_SHORT_DESC, "Heatwave");
+
+        Bundle changes = upsertWeather(new ContentValues[]{first, last});
+        long[] insertedIds = changes.getLongArray(WeatherEntry.EXTRA_INSERTED_IDS);
+        assertEquals("Error: The day should have been inserted once", 1, insertedIds.length);
+        assertEquals(0, changes.getLongArray(WeatherEntry.EXTRA_UPDATED_IDS).length);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(insertedIds[0])}, null);
+        TestUtilities.validateCursor("testUpsertKeepsLastRowForDay.  Error validating the day",
+                cursor, last);
+
+        // The same again for a day that is already stored
+        changes = upsertWeather(new ContentValues[]{last, first});
+        long[] updatedIds = changes.getLongArray(WeatherEntry.EXTRA_UPDATED_IDS);
+        assertEquals("Error: The stored day should have been updated once", 1, updatedIds.length);
+        assertEquals(insertedIds[0], updatedIds[0]);
+        assertEquals(0, changes.getLongArray(WeatherEntry.EXTRA_INSERTED_IDS).length);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null,
+                null);
+        TestUtilities.validateCursor("testUpsertKeepsLastRowForDay.  Error validating the update",
+                cursor, first);
+    }
+
+    /*
+        Checks that the location id cache learns locations inserted through the provider, that
+        weather-only queries by location setting work from it, and that changing or deleting
+        locations makes it forget.
+     */
+    public void testLocationIdCache() {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, locationValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        assertEquals("Error: An inserted location should be cached",
+                locationRowId, LocationIdCache.getId(TestUtilities.TEST_LOCATION));
+        assertEquals(5861897, LocationIdCache.getCityId(TestUtilities.TEST_LOCATION));
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        // Without location columns the weather table is read on its own
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        // and with them it is still joined
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("North Pole", cursor.getString(1));
+        cursor.close();
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        assertEquals("Error: Updating locations should clear the cache",
+                LocationIdCache.NO_ID, LocationIdCache.getId(TestUtilities.TEST_LOCATION));
+
+        // A lookup by the provider fills it again
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        cursor.close();
+        assertEquals(locationRowId, LocationIdCache.getId(TestUtilities.TEST_LOCATION));
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals("Error: Deleting locations should clear the cache",
+                LocationIdCache.NO_ID, LocationIdCache.getId(TestUtilities.TEST_LOCATION));
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        assertEquals("Error: An unknown location should match no weather", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    static final int HOURLY_STEPS_TO_INSERT = 40;
+    static final long HOURLY_STEP_MILLIS = 3 * 60 * 60 * 1000;
+    static ContentValues[] createBulkInsertHourlyValues(long locationRowId, long firstStep) {
+        ContentValues[] returnContentValues = new ContentValues[HOURLY_STEPS_TO_INSERT];
+        for (int i = 0; i < HOURLY_STEPS_TO_INSERT; i++) {
+            ContentValues stepValues = new ContentValues();
+            stepValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            stepValues.put(HourlyEntry.COLUMN_TIME, firstStep + i * HOURLY_STEP_MILLIS);
+            stepValues.put(HourlyEntry.COLUMN_WEATHER_ID, 800);
+            stepValues.put(HourlyEntry.COLUMN_TEMP, 10.5 + i % 8);
+            stepValues.put(HourlyEntry.COLUMN_HUMIDITY, 50 + i);
+            stepValues.put(HourlyEntry.COLUMN_WIND_SPEED, 1.5);
+            returnContentValues[i] = stepValues;
+        }
+        return returnContentValues;
+    }
+
+    /*
+        Checks that five days of steps go in as one batch, that a day's steps come back in time
+        order through the day URI, and that writing a step again replaces it.
+     */
+    public void testBulkInsertHourly() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long dayStart = WeatherContract.normalizeDate(TestUtilities.TEST_DATE * 1000);
+        ContentValues[] values = createBulkInsertHourlyValues(locationRowId, dayStart);
+
+        TestUtilities.TestContentObserver hourlyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HourlyEntry.CONTENT_URI, true, hourlyObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, values);
+        hourlyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(hourlyObserver);
+        assertEquals(HOURLY_STEPS_TO_INSERT, insertCount);
+
+        // The second day holds steps 8 to 15
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDate(TestUtilities.TEST_LOCATION,
+                        dayStart + 8 * HOURLY_STEP_MILLIS),
+                null, null, null, null);
+        assertEquals("Error: A day should hold eight three hour steps", 8, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 8; i < 16; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testBulkInsertHourly.  Error validating step " + i,
+                    cursor, values[i]);
+        }
+        cursor.close();
+
+        // A newer forecast for the same steps replaces them rather than adding to them
+        values = createBulkInsertHourlyValues(locationRowId, dayStart);
+        values[0].put(HourlyEntry.COLUMN_TEMP, -3.5);
+        mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, values);
+        cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(HOURLY_STEPS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDate(TestUtilities.TEST_LOCATION, dayStart),
+                null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        TestUtilities.validateCurrentRecord("testBulkInsertHourly.  Error validating replaced step",
+                cursor, values[0]);
+        cursor.close();
+    }
+
+    /*
+        Checks that steps handed over as an HourlyBatch are stored as bulkInsert stores them.
+     */
+    public void testInsertHourlyBatch() {
+        // Provider calls only exist from Honeycomb
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long dayStart = WeatherContract.normalizeDate(TestUtilities.TEST_DATE * 1000);
+        ContentValues[] values = createBulkInsertHourlyValues(locationRowId, dayStart);
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(HourlyEntry.EXTRA_BATCH, HourlyBatch.fromValues(values));
+        Bundle result = mContext.getContentResolver().call(HourlyEntry.CONTENT_URI,
+                HourlyEntry.METHOD_INSERT, null, extras);
+        assertEquals("Error: Every step should have been written",
+                HOURLY_STEPS_TO_INSERT, result.getInt(HourlyEntry.EXTRA_INSERTED_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI, null, null,
+                null, HourlyEntry.COLUMN_TIME + " ASC");
+        assertEquals(HOURLY_STEPS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < HOURLY_STEPS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testInsertHourlyBatch.  Error validating step "
+                    + i, cursor, values[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        Checks that a batch mixing a location insert, weather inserts and a delete is stored as
+        a whole and tells observers once per URI, and that a batch which fails leaves nothing
+        behind and tells nobody.
+     */
+    public void testApplyBatch() throws RemoteException, OperationApplicationException,
+            InterruptedException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues values : createBulkInsertWeatherValues(0)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        // As the sync's retention delete, the first day goes again
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE)})
+                .build());
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, locationObserver);
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        // Long enough for any further notifications to arrive
+        Thread.sleep(500);
+        locationObserver.waitForNotificationOrFail();
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: The batch should notify the location URI once",
+                1, locationObserver.mChangeCount);
+        assertEquals("Error: The batch should notify the weather URI once",
+                1, weatherObserver.mChangeCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getCount());
+        cursor.close();
+
+        // The update expects rows that aren't there, which fails the batch after the insert
+        long locationRowId = LocationIdCache.getId(TestUtilities.TEST_LOCATION);
+        ContentValues values = createBulkInsertWeatherValues(locationRowId)[0];
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValues(values)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Santa's Village")
+                .withExpectedCount(2)
+                .build());
+
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: The batch should have failed on the expected count");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        weatherObserver.mHT.quit();
+        assertEquals("Error: A failed batch should notify nobody", 0, weatherObserver.mChangeCount);
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: A failed batch should be rolled back",
+                BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Checks that reading the same day twice is served from the provider's query cache with
+        the same rows, and that a write through the provider is seen by the next read.
+     */
+    public void testQueryCache() {
+        // Results are only cached from Honeycomb
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+        Uri todayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        // Every column, so the location table is joined
+        String[] projection = null;
+
+        Bundle before = getQueryCacheStats();
+        Cursor cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error validating the first read",
+                cursor, weatherValues);
+        cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error validating the cached read",
+                cursor, weatherValues);
+        Bundle after = getQueryCacheStats();
+        assertEquals("Error: The first read should miss the cache", 1,
+                after.getLong(WeatherContract.EXTRA_CACHE_MISSES)
+                        - before.getLong(WeatherContract.EXTRA_CACHE_MISSES));
+        assertEquals("Error: The second read should hit the cache", 1,
+                after.getLong(WeatherContract.EXTRA_CACHE_HITS)
+                        - before.getLong(WeatherContract.EXTRA_CACHE_HITS));
+
+        ContentValues warmer = new ContentValues();
+        warmer.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, warmer, null, null);
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        cursor = mContext.getContentResolver().query(todayUri, projection, null, null, null);
+        TestUtilities.validateCursor("testQueryCache.  Error validating the read after an update",
+                cursor, weatherValues);
+    }
+
+    private Bundle getQueryCacheStats() {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+
+    private Bundle upsertWeather(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_UPSERT, null, extras);
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Asks SQLite how it would run each query WeatherProvider makes, and fails if any of them
+    reads a whole table or sorts rows an index already holds in order.  Those are the queries
+    that slow down as history builds up.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+    private static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    // What the forecast list asks for, the location columns included
+    private static final String[] LIST_PROJECTION = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // What the widgets, Muzei and the notification ask for
+    private static final String[] TODAY_PROJECTION = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private static final String DATE_ASC = WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String TIME_ASC = HourlyEntry.COLUMN_TIME + " ASC";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testWeatherForDay() {
+        String[] args = {"1", "1419033600"};
+        // The detail view asks for every column
+        assertNoScans(joinedWeather(null, WeatherProvider.sLocationIdAndDaySelection, null), args);
+        // One row, which either index finds, so it may read the table for it
+        assertNoScans(weather(TODAY_PROJECTION, WeatherProvider.sLocationIdAndDaySelection, null),
+                args);
+    }
+
+    public void testWeatherForLocation() {
+        String[] args = {"1"};
+        assertNoScans(joinedWeather(LIST_PROJECTION, WeatherProvider.sLocationIdSelection,
+                DATE_ASC), args);
+        assertNoScans(weather(TODAY_PROJECTION, WeatherProvider.sLocationIdSelection, DATE_ASC),
+                args);
+    }
+
+    public void testWeatherFromDay() {
+        String[] args = {"1", "1419033600"};
+        assertNoScans(joinedWeather(LIST_PROJECTION,
+                WeatherProvider.sLocationIdWithStartDateSelection, DATE_ASC), args);
+        assertNoScans(weather(TODAY_PROJECTION,
+                WeatherProvider.sLocationIdWithStartDateSelection, DATE_ASC), args);
+        assertCovered(weather(TODAY_PROJECTION,
+                WeatherProvider.sLocationIdWithStartDateSelection, DATE_ASC), args);
+    }
+
+    public void testWeatherForDays() {
+        // Read by the upsert, and by the sync to measure how much a forecast changed
+        assertNoScans(weather(null, WeatherProvider.sLocationIdAndDateRangeSelection, DATE_ASC),
+                new String[]{"1", "1419033600", "1420243200"});
+    }
+
+    public void testHourlyForDay() {
+        String[] args = {"1", "1419033600", "1419120000"};
+        assertNoScans(SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.sHourlyByLocationSettingQueryBuilder.getTables(), null,
+                WeatherProvider.sLocationIdAndTimeRangeSelection, null, null, TIME_ASC, null),
+                args);
+        assertNoScans(SQLiteQueryBuilder.buildQueryString(false, HourlyEntry.TABLE_NAME, null,
+                WeatherProvider.sLocationIdAndTimeRangeSelection, null, null, TIME_ASC, null),
+                args);
+    }
+
+    public void testLocationBySetting() {
+        assertNoScans(SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_CITY_ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null, null, null, null),
+                new String[]{TestUtilities.TEST_LOCATION});
+    }
+
+    /*
+        Checks that a database from before the index was added keeps its weather, and gets
+        the index, when it is upgraded.
+     */
+    public void testUpgradeKeepsWeather() {
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        assertTrue(mDb.insert(WeatherEntry.TABLE_NAME, null, weatherValues) != -1);
+        mDb.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+
+        mDbHelper.onUpgrade(mDb, 4, 5);
+
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+        TestUtilities.validateCursor("testUpgradeKeepsWeather.  Error validating the kept weather",
+                cursor, weatherValues);
+        cursor = mDb.query("sqlite_master", new String[]{"name"}, "type = 'index' AND name = ?",
+                new String[]{WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX}, null, null, null);
+        assertEquals("Error: The upgrade should have added the index", 1, cursor.getCount());
+        cursor.close();
+
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        LocationIdCache.invalidate();
+    }
+
+    private static String weather(String[] projection, String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME, projection,
+                selection, null, null, sortOrder, null);
+    }
+
+    private static String joinedWeather(String[] projection, String selection,
+                                        String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false,
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables(), projection,
+                selection, null, null, sortOrder, null);
+    }
+
+    private void assertNoScans(String sql, String[] args) {
+        for (String step : explain(sql, args)) {
+            assertFalse("Error: " + sql + " reads a whole table: " + step,
+                    step.startsWith("SCAN"));
+            assertFalse("Error: " + sql + " sorts its rows: " + step,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private void assertCovered(String sql, String[] args) {
+        for (String step : explain(sql, args)) {
+            if (step.contains(WeatherEntry.TABLE_NAME)) {
+                assertTrue("Error: " + sql + " reads the table for columns an index should have: "
+                        + step, step.contains("COVERING INDEX"));
+            }
+        }
+    }
+
+    private String[] explain(String sql, String[] args) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            String[] steps = new String[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                steps[i] = cursor.getString(detailIndex);
+                Log.d(LOG_TAG, sql + ": " + steps[i]);
+            }
+            return steps;
+        } finally {
+            cursor.close();
+        }
+    }
+}
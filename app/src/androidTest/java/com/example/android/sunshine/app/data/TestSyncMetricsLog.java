@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/*
+    Checks that the sync metrics file keeps the newest records once it wraps around, and that
+    a record torn by a crash is left out rather than read.
+ */
+public class TestSyncMetricsLog extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncMetricsLog.clear(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncMetricsLog.clear(mContext);
+        super.tearDown();
+    }
+
+    public void testRecordsRoundTrip() {
+        int[] values = new int[SyncMetricsLog.FIELD_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 10;
+        }
+        SyncMetricsLog.append(mContext, 1419033600000L, values);
+
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: Expected the one record appended", 1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(1, cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry._ID)));
+        assertEquals(1419033600000L,
+                cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_STARTED_AT)));
+        assertEquals(SyncMetricsLog.FIELD_PARSE * 10,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_PARSE)));
+        assertEquals(SyncMetricsLog.FIELD_PARSE_ERRORS * 10,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_PARSE_ERRORS)));
+        cursor.close();
+    }
+
+    public void testKeepsNewestRecords() {
+        int total = SyncMetricsLog.CAPACITY + 7;
+        for (int i = 1; i <= total; i++) {
+            SyncMetricsLog.append(mContext, i, new int[SyncMetricsLog.FIELD_COUNT]);
+        }
+
+        Cursor cursor = SyncMetricsLog.query(mContext);
+        assertEquals("Error: The file should hold exactly its capacity",
+                SyncMetricsLog.CAPACITY, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: The newest record should come first", total, cursor.getLong(1));
+        cursor.moveToLast();
+        assertEquals("Error: The oldest records should have been overwritten",
+                total - SyncMetricsLog.CAPACITY + 1, cursor.getLong(1));
+        cursor.close();
+    }
+
+    public void testTornRecordIsSkipped() throws Exception {
+        int total = SyncMetricsLog.CAPACITY + 3;
+        for (int i = 1; i <= total; i++) {
+            SyncMetricsLog.append(mContext, i, new int[SyncMetricsLog.FIELD_COUNT]);
+        }
+
+        // Start overwriting the oldest record as the next append would, and stop before the
+        // record count is updated
+        RandomAccessFile file = new RandomAccessFile(
+                new File(mContext.getFilesDir(), SyncMetricsLog.FILE_NAME), "rw");
+        file.seek(SyncMetricsLog.HEADER_SIZE
+                + (total % SyncMetricsLog.CAPACITY) * SyncMetricsLog.RECORD_SIZE);
+        file.writeLong(total + 1);
+        file.close();
+
+        Cursor cursor = SyncMetricsLog.query(mContext);
+        assertEquals("Error: The torn record should be left out",
+                SyncMetricsLog.CAPACITY - 1, cursor.getCount());
+        cursor.moveToLast();
+        assertEquals(total - SyncMetricsLog.CAPACITY + 2, cursor.getLong(1));
+        cursor.close();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.http;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+    Checks that responses come back as they were stored, expire by their type, are evicted
+    least recently used first, and survive the cache being opened again.
+ */
+public class TestHttpDiskCache extends AndroidTestCase {
+    private static final String JSON_URL = "http://example.com/forecast?q=94043";
+    private static final String IMAGE_URL = "http://example.com/art/clear.png";
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+    private static final String IMAGE_TYPE = "image/png";
+
+    private File mDirectory;
+    private SharedPreferences mStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test_http");
+        mStats = mContext.getSharedPreferences("test_http_cache_stats", Context.MODE_PRIVATE);
+        newCache(HttpDiskCache.MAX_SIZE_BYTES).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        newCache(HttpDiskCache.MAX_SIZE_BYTES).clear();
+        super.tearDown();
+    }
+
+    public void testResponseRoundTrips() throws IOException {
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        long now = System.currentTimeMillis();
+        byte[] body = bytes(100, 1);
+        HttpDiskCache.Editor editor = cache.edit(JSON_URL, JSON_TYPE, "gzip", "\"v1\"",
+                "Mon, 01 Feb 2016 10:00:00 GMT", body.length, now);
+        editor.getBody().write(body);
+        editor.commit();
+
+        HttpDiskCache.Snapshot snapshot = cache.get(JSON_URL, HttpDiskCache.TYPE_JSON, now + 1000);
+        assertNotNull("Error: The stored response should be found", snapshot);
+        assertEquals("gzip", snapshot.getContentEncoding());
+        assertEquals("\"v1\"", snapshot.getETag());
+        assertEquals("Mon, 01 Feb 2016 10:00:00 GMT", snapshot.getLastModified());
+        assertTrue("Error: The body should come back as it was stored",
+                Arrays.equals(body, read(snapshot.open())));
+        assertEquals(1, cache.getHitCount(HttpDiskCache.TYPE_JSON));
+
+        assertNull(cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now + 1000));
+        assertEquals(1, cache.getMissCount(HttpDiskCache.TYPE_IMAGE));
+    }
+
+    public void testResponsesExpireByType() throws IOException {
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        long now = System.currentTimeMillis();
+        store(cache, JSON_URL, JSON_TYPE, 10, now);
+        store(cache, IMAGE_URL, IMAGE_TYPE, 10, now);
+        assertNull("Error: Only JSON and images should be cached", cache.edit(
+                "http://example.com/", "text/html", null, null, null, 10, now));
+
+        long later = now + HttpDiskCache.JSON_MAX_AGE_MILLIS;
+        assertNull("Error: The forecast should have expired",
+                cache.get(JSON_URL, HttpDiskCache.TYPE_JSON, later));
+        assertNotNull("Error: The image should still be fresh",
+                cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, later));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        HttpDiskCache cache = newCache(100);
+        long now = System.currentTimeMillis();
+        String first = IMAGE_URL + "?1";
+        String second = IMAGE_URL + "?2";
+        store(cache, first, IMAGE_TYPE, 40, now);
+        store(cache, second, IMAGE_TYPE, 40, now);
+        // Makes the second the least recently used
+        assertNotNull(cache.get(first, HttpDiskCache.TYPE_IMAGE, now));
+        store(cache, IMAGE_URL, IMAGE_TYPE, 40, now);
+
+        assertNull("Error: The least recently used entry should have been evicted",
+                cache.get(second, HttpDiskCache.TYPE_IMAGE, now));
+        assertNotNull(cache.get(first, HttpDiskCache.TYPE_IMAGE, now));
+        assertNotNull(cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now));
+        assertEquals(80, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testPartialResponseIsNotStored() throws IOException {
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        HttpDiskCache.Editor editor = cache.edit(JSON_URL, JSON_TYPE, null, null, null, -1,
+                System.currentTimeMillis());
+        InputStream in = editor.copyWhileReading(new ByteArrayInputStream(bytes(100, 2)));
+        in.read(new byte[50]);
+        // As when the parser gives up part way
+        in.close();
+        assertFalse("Error: A response that wasn't read to its end should not be stored",
+                cache.contains(JSON_URL));
+
+        editor = cache.edit(JSON_URL, JSON_TYPE, null, null, null, -1,
+                System.currentTimeMillis());
+        assertEquals(100, read(editor.copyWhileReading(
+                new ByteArrayInputStream(bytes(100, 2)))).length);
+        assertTrue("Error: A response read to its end should be stored",
+                cache.contains(JSON_URL));
+    }
+
+    public void testEntriesSurviveReopening() throws IOException {
+        long now = System.currentTimeMillis();
+        store(newCache(HttpDiskCache.MAX_SIZE_BYTES), IMAGE_URL, IMAGE_TYPE, 64, now);
+        // Left behind by a process that died while storing
+        File orphan = new File(mDirectory, HttpDiskCache.keyFor(JSON_URL) + "123.tmp");
+        assertTrue(orphan.createNewFile());
+
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        HttpDiskCache.Snapshot snapshot = cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now);
+        assertNotNull("Error: The entry should have been read back from disk", snapshot);
+        assertEquals(64, read(snapshot.open()).length);
+        assertEquals(64, cache.getSize());
+        assertFalse("Error: A half written entry should have been removed", orphan.exists());
+    }
+
+    /*
+        An entry is replaced in one step: until the new response is committed the old one is
+        read, headers and body together, and after that the new one.
+     */
+    public void testReplacedEntryKeepsItsHeaders() throws IOException {
+        long now = System.currentTimeMillis();
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        HttpDiskCache.Editor editor = cache.edit(JSON_URL, JSON_TYPE, null, "\"v1\"", null, 10,
+                now);
+        editor.getBody().write(bytes(10, 1));
+        editor.commit();
+
+        editor = cache.edit(JSON_URL, JSON_TYPE, null, "\"v2\"", null, 20, now);
+        editor.getBody().write(bytes(20, 2));
+        // As if the process died before the commit
+        HttpDiskCache.Snapshot snapshot = newCache(HttpDiskCache.MAX_SIZE_BYTES)
+                .get(JSON_URL, HttpDiskCache.TYPE_JSON, now);
+        assertNotNull("Error: The old response should still be there", snapshot);
+        assertEquals("\"v1\"", snapshot.getETag());
+        assertTrue("Error: The old headers came back with another body",
+                Arrays.equals(bytes(10, 1), read(snapshot.open())));
+        editor.abort();
+
+        cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        editor = cache.edit(JSON_URL, JSON_TYPE, null, "\"v2\"", null, 20, now);
+        editor.getBody().write(bytes(20, 2));
+        editor.commit();
+        snapshot = newCache(HttpDiskCache.MAX_SIZE_BYTES)
+                .get(JSON_URL, HttpDiskCache.TYPE_JSON, now);
+        assertEquals("\"v2\"", snapshot.getETag());
+        assertTrue("Error: The new headers came back with another body",
+                Arrays.equals(bytes(20, 2), read(snapshot.open())));
+    }
+
+    /*
+        The wallpaper Muzei shows is pinned so that it can be read whenever Muzei wants it:
+        it is neither evicted nor dropped once stale, and nothing else can be read through it.
+     */
+    public void testPinnedImageIsKept() throws IOException {
+        HttpDiskCache cache = newCache(100);
+        long now = System.currentTimeMillis();
+        store(cache, IMAGE_URL, IMAGE_TYPE, 40, now);
+        store(cache, JSON_URL, JSON_TYPE, 10, now);
+        assertNull("Error: Only images should be pinned", cache.pin(JSON_URL));
+        String key = cache.pin(IMAGE_URL);
+        assertNotNull("Error: The stored image should have been pinned", key);
+
+        store(cache, IMAGE_URL + "?1", IMAGE_TYPE, 40, now);
+        store(cache, IMAGE_URL + "?2", IMAGE_TYPE, 40, now);
+        long later = now + HttpDiskCache.IMAGE_MAX_AGE_MILLIS;
+        assertNull(cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, later));
+        HttpDiskCache.Snapshot snapshot = newCache(100).getPinned(key);
+        assertNotNull("Error: The pinned image was evicted or dropped when stale", snapshot);
+        assertEquals(40, read(snapshot.open()).length);
+
+        assertNull("Error: Only the pinned entry should be served",
+                cache.getPinned(HttpDiskCache.keyFor(JSON_URL)));
+        assertNull(cache.getPinned(null));
+    }
+
+    public void testStatsAreSavedInBatches() {
+        HttpDiskCache cache = newCache(HttpDiskCache.MAX_SIZE_BYTES);
+        long now = System.currentTimeMillis();
+        String key = HttpDiskCache.KEY_MISSES + HttpDiskCache.TYPE_IMAGE;
+        // The first count is saved straight away, then every so often
+        cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now);
+        for (int i = 1; i < HttpDiskCache.STATS_SAVE_COUNT; i++) {
+            cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now);
+        }
+        assertEquals("Error: Every lookup should be counted",
+                HttpDiskCache.STATS_SAVE_COUNT, cache.getMissCount(HttpDiskCache.TYPE_IMAGE));
+        assertEquals("Error: The counts should not be saved on every lookup",
+                1, mStats.getLong(key, 0));
+
+        cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE, now);
+        assertEquals(HttpDiskCache.STATS_SAVE_COUNT + 1, mStats.getLong(key, 0));
+        cache.get(IMAGE_URL, HttpDiskCache.TYPE_IMAGE,
+                now + HttpDiskCache.STATS_SAVE_INTERVAL_MILLIS);
+        assertEquals("Error: The counts should be saved once a while has passed",
+                HttpDiskCache.STATS_SAVE_COUNT + 2, mStats.getLong(key, 0));
+        assertEquals(HttpDiskCache.STATS_SAVE_COUNT + 2,
+                newCache(HttpDiskCache.MAX_SIZE_BYTES).getMissCount(HttpDiskCache.TYPE_IMAGE));
+    }
+
+    private HttpDiskCache newCache(long maxSize) {
+        return new HttpDiskCache(mDirectory, maxSize, mStats);
+    }
+
+    private static void store(HttpDiskCache cache, String url, String contentType, int length,
+                              long now) throws IOException {
+        HttpDiskCache.Editor editor = cache.edit(url, contentType, null, null, null, length, now);
+        editor.getBody().write(bytes(length, url.length()));
+        editor.commit();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
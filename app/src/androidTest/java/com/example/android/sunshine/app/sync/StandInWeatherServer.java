@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A small HTTP server on the loopback interface that answers the two OWM requests the sync
+    adapter makes, from recorded payloads.  Latency, a bandwidth cap and error responses can be
+    switched on to see how a sync behaves on a slow or failing network, without any network.
+
+    Connections are kept open between requests, like OWM does, and counted, so tests can see
+    whether the client reuses them.
+
+    Point an OwmWeatherSource at getBaseUrl() to use it.
+ */
+public class StandInWeatherServer {
+
+    public static final String LOG_TAG = StandInWeatherServer.class.getSimpleName();
+
+    private static final String API_PATH = "/data/2.5/";
+
+    private final HashMap<String, byte[]> mForecasts = new HashMap<String, byte[]>();
+    private final HashMap<String, byte[]> mHourlyForecasts = new HashMap<String, byte[]>();
+    private final HashMap<String, String> mCurrentWeather = new HashMap<String, String>();
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    // Idle keep-alive connections block in a read, which only closing the socket ends
+    private final Set<Socket> mOpenSockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile int mLatencyMillis;
+    private volatile int mBytesPerSecond;
+    private volatile boolean mCompress;
+    // The cnt of the last daily forecast request, or 0 if it had none
+    private volatile int mLastForecastDays;
+    private volatile boolean mETags;
+    // The If-None-Match of the last daily forecast request, or null if it had none
+    private volatile String mLastIfNoneMatch;
+
+    // Error injection: the next mFailuresLeft requests are answered with mFailureCode
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    private volatile int mFailureCode;
+
+    public StandInWeatherServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, LOG_TAG);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + API_PATH;
+    }
+
+    public synchronized StandInWeatherServer addForecast(String locationQuery, String json) {
+        mForecasts.put(locationQuery, toBytes(json));
+        return this;
+    }
+
+    public synchronized StandInWeatherServer addHourlyForecast(String locationQuery, String json) {
+        mHourlyForecasts.put(locationQuery, toBytes(json));
+        return this;
+    }
+
+    public synchronized StandInWeatherServer addCurrentWeather(int cityId, String cityJson) {
+        mCurrentWeather.put(Integer.toString(cityId), cityJson);
+        return this;
+    }
+
+    // Time to wait before answering each request
+    public void setLatencyMillis(int latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    // Caps how fast each response body is sent; 0 sends as fast as possible
+    public void setBytesPerSecond(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // Gzips responses for clients that accept it
+    public void setCompress(boolean compress) {
+        mCompress = compress;
+    }
+
+    // Answers the next count requests with the given status and no body
+    public void failNext(int count, int statusCode) {
+        mFailureCode = statusCode;
+        mFailuresLeft.set(count);
+    }
+
+    // Tags daily forecasts by location alone, whatever the cnt, and answers a request that
+    // sends the tag back with a 304
+    public void setETags(boolean eTags) {
+        mETags = eTags;
+    }
+
+    public String getLastIfNoneMatch() {
+        return mLastIfNoneMatch;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    // How many days the last daily forecast request asked for
+    public int getLastForecastDays() {
+        return mLastForecastDays;
+    }
+
+    // Connections accepted, which is fewer than requests when the client reuses them
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // shutting down anyway
+        }
+        for (Socket socket : mOpenSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+        mConnectionExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mOpenSockets.add(socket);
+                mConnectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // closed by shutdown
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            // Requests are GETs without a body, so the next one starts right after the headers
+            while ((requestLine = reader.readLine()) != null) {
+                serveRequest(reader, requestLine, out);
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.d(LOG_TAG, "Connection ended: " + e);
+        } finally {
+            mOpenSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to send
+            }
+        }
+    }
+
+    private void serveRequest(BufferedReader reader, String requestLine, OutputStream out)
+            throws IOException, InterruptedException {
+        boolean acceptsGzip = false;
+        String ifNoneMatch = null;
+        String header;
+        while ((header = reader.readLine()) != null && header.length() > 0) {
+            if (header.toLowerCase().startsWith("accept-encoding:") && header.contains("gzip")) {
+                acceptsGzip = true;
+            } else if (header.toLowerCase().startsWith("if-none-match:")) {
+                ifNoneMatch = header.substring(header.indexOf(':') + 1).trim();
+            }
+        }
+        mRequestCount.incrementAndGet();
+
+        if (mLatencyMillis > 0) {
+            Thread.sleep(mLatencyMillis);
+        }
+
+        if (mFailuresLeft.getAndDecrement() > 0) {
+            writeResponse(out, mFailureCode, null, null, false);
+            return;
+        }
+
+        // e.g. GET /data/2.5/forecast/daily?q=94043&mode=json HTTP/1.1
+        String target = requestLine.split(" ")[1];
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        HashMap<String, String> query = parseQuery(
+                queryStart < 0 ? "" : target.substring(queryStart + 1));
+
+        byte[] body;
+        int statusCode = 200;
+        String eTag = null;
+        if (path.equals(API_PATH + "forecast/daily")) {
+            String days = query.get("cnt");
+            mLastForecastDays = days == null ? 0 : Integer.parseInt(days);
+            mLastIfNoneMatch = ifNoneMatch;
+            body = getForecast(query.get("q"), mLastForecastDays);
+            if (body == null) {
+                statusCode = 404;
+                body = toBytes(ReplayWeatherSource.NOT_FOUND);
+            } else if (mETags) {
+                eTag = "\"" + query.get("q") + "\"";
+                if (eTag.equals(ifNoneMatch)) {
+                    statusCode = 304;
+                    body = null;
+                }
+            }
+        } else if (path.equals(API_PATH + "forecast")) {
+            body = getHourlyForecast(query.get("q"));
+            if (body == null) {
+                statusCode = 404;
+                body = toBytes(ReplayWeatherSource.NOT_FOUND);
+            }
+        } else if (path.equals(API_PATH + "group")) {
+            body = getGroup(query.get("id"));
+        } else {
+            statusCode = 404;
+            body = null;
+        }
+        writeResponse(out, statusCode, body, eTag, acceptsGzip && mCompress);
+    }
+
+    private synchronized byte[] getForecast(String locationQuery, int numDays) {
+        byte[] forecast = locationQuery == null ? null : mForecasts.get(locationQuery);
+        if (forecast == null || numDays <= 0) {
+            return forecast;
+        }
+        // Like OWM, only send the days asked for
+        try {
+            JSONObject json = new JSONObject(new String(forecast, "UTF-8"));
+            JSONArray days = json.getJSONArray("list");
+            if (days.length() <= numDays) {
+                return forecast;
+            }
+            JSONArray trimmed = new JSONArray();
+            for (int i = 0; i < numDays; i++) {
+                trimmed.put(days.get(i));
+            }
+            json.put("list", trimmed);
+            json.put("cnt", numDays);
+            return toBytes(json.toString());
+        } catch (JSONException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private synchronized byte[] getHourlyForecast(String locationQuery) {
+        return locationQuery == null ? null : mHourlyForecasts.get(locationQuery);
+    }
+
+    private synchronized byte[] getGroup(String ids) {
+        StringBuilder list = new StringBuilder();
+        int count = 0;
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                String cityJson = mCurrentWeather.get(id);
+                if (cityJson != null) {
+                    if (count++ > 0) list.append(',');
+                    list.append(cityJson);
+                }
+            }
+        }
+        return toBytes("{\"cnt\":" + count + ",\"list\":[" + list + "]}");
+    }
+
+    private void writeResponse(OutputStream out, int statusCode, byte[] body, String eTag,
+                               boolean gzip)
+            throws IOException, InterruptedException {
+        if (body != null && gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+            gzipStream.write(body);
+            gzipStream.close();
+            body = compressed.toByteArray();
+        }
+        int length = body == null ? 0 : body.length;
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(statusCode).append(' ')
+                .append(statusCode < 400 ? "OK" : "Error").append("\r\n");
+        head.append("Content-Type: application/json; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n");
+        if (eTag != null) {
+            head.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (body != null && gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+        out.write(toBytes(head.toString()));
+
+        if (body != null) {
+            int bytesPerSecond = mBytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                out.write(body);
+            } else {
+                // Send in tenth of a second slices to stay near the cap
+                int slice = Math.max(1, bytesPerSecond / 10);
+                for (int offset = 0; offset < length; offset += slice) {
+                    out.write(body, offset, Math.min(slice, length - offset));
+                    out.flush();
+                    Thread.sleep(100);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static HashMap<String, String> parseQuery(String query) throws IOException {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class TestCircuitBreaker extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CircuitBreaker.reset(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CircuitBreaker.reset(mContext);
+        super.tearDown();
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(mContext);
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        assertTrue("Error: The breaker opened too early", breaker.allowRequest());
+
+        // An answer in between starts the count again
+        breaker.onSuccess();
+        for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        assertTrue("Error: A success should reset the failure count", breaker.allowRequest());
+
+        breaker.onFailure();
+        assertFalse("Error: The breaker should be open", breaker.allowRequest());
+        assertTrue(CircuitBreaker.isOpen(mContext));
+
+        // Every instance sees the same state
+        assertFalse(new CircuitBreaker(mContext).allowRequest());
+        long openFor = CircuitBreaker.getOpenUntil(mContext) - System.currentTimeMillis();
+        assertTrue("Error: The breaker should stay open for at least " + CircuitBreaker.MIN_OPEN_MILLIS
+                + "ms, not " + openFor + "ms", openFor > CircuitBreaker.MIN_OPEN_MILLIS - 1000);
+    }
+
+    public void testSuccessCloses() {
+        CircuitBreaker breaker = new CircuitBreaker(mContext);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.STATE_CLOSED, CircuitBreaker.getState(mContext));
+        assertFalse(CircuitBreaker.isOpen(mContext));
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testUserRequestProbesOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(mContext);
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        assertFalse(breaker.allowRequest(false));
+        assertTrue("Error: A request the user asked for should be let through as the probe",
+                breaker.allowRequest(true));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, CircuitBreaker.getState(mContext));
+        assertFalse("Error: Only one probe should be out at a time", breaker.allowRequest(true));
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_OPEN, CircuitBreaker.getState(mContext));
+        assertFalse(breaker.allowRequest(false));
+    }
+
+    public void testRetryDelaysGrowWithinBounds() {
+        Random random = new Random(42);
+        long previousCeiling = 0;
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long ceiling = RetryPolicy.backoffMillis(attempt, RetryPolicy.BASE_DELAY_MILLIS,
+                    RetryPolicy.MAX_DELAY_MILLIS);
+            assertTrue("Error: The backoff should never shrink", ceiling >= previousCeiling);
+            assertTrue(ceiling <= RetryPolicy.MAX_DELAY_MILLIS);
+            previousCeiling = ceiling;
+
+            for (int i = 0; i < 100; i++) {
+                long delay = RetryPolicy.delayMillis(attempt, random);
+                assertTrue("Error: Delay " + delay + " is outside the backoff for attempt "
+                                + attempt,
+                        delay > 0 && delay <= ceiling);
+            }
+        }
+        assertEquals(RetryPolicy.MAX_DELAY_MILLIS, previousCeiling);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/*
+    Checks that both paths of the group response parser report every city with the id it was
+    requested by, so the sync adapter can hand the weather back to the right locations.
+ */
+public class TestCurrentWeatherJsonParser extends AndroidTestCase {
+
+    // Current weather for Moscow and Kiev, as recorded from the group endpoint.  Kiev has no
+    // wind direction, which OWM leaves out when the air is still.
+    static final String RECORDED_GROUP =
+            "{\"cnt\":2,\"list\":["
+            + "{\"coord\":{\"lon\":37.62,\"lat\":55.75},\"sys\":{\"country\":\"RU\"},"
+            + "\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\","
+            + "\"icon\":\"04n\"}],\"main\":{\"temp\":7,\"pressure\":1012,\"humidity\":81,"
+            + "\"temp_min\":5,\"temp_max\":8},\"visibility\":10000,\"wind\":{\"speed\":4,"
+            + "\"deg\":90},\"clouds\":{\"all\":75},\"dt\":1485784982,\"id\":524901,"
+            + "\"name\":\"Moscow\"},"
+            + "{\"coord\":{\"lon\":30.52,\"lat\":50.43},\"sys\":{\"country\":\"UA\"},"
+            + "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"clear sky\","
+            + "\"icon\":\"01n\"}],\"main\":{\"temp\":-1.5,\"pressure\":1031,\"humidity\":92,"
+            + "\"temp_min\":-2,\"temp_max\":-1},\"wind\":{\"speed\":0.5},"
+            + "\"dt\":1485784982,\"id\":703448,\"name\":\"Kiev\"}]}";
+
+    static class RecordingListener implements CurrentWeatherJsonParser.Listener {
+        final ArrayList<String> events = new ArrayList<String>();
+        int code = -1;
+
+        @Override
+        public void onMessageCode(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public void onCurrentWeather(int cityId, double pressure, int humidity, double windSpeed,
+                                     double windDirection, double high, double low,
+                                     String description, int weatherId) {
+            events.add(cityId + " " + pressure + " " + humidity + " " + windSpeed + " "
+                    + windDirection + " " + high + " " + low + " " + description + " "
+                    + weatherId);
+        }
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        RecordingListener tree = new RecordingListener();
+        CurrentWeatherJsonParser.parseTree(RECORDED_GROUP, tree);
+
+        RecordingListener streaming = new RecordingListener();
+        CurrentWeatherJsonParser.parseStreaming(new StringReader(RECORDED_GROUP), streaming);
+
+        assertEquals("Error: Tree parser did not report both cities", 2, tree.events.size());
+        assertEquals("Error: Streaming parser did not report the same cities as the tree parser",
+                tree.events, streaming.events);
+        assertEquals("524901 1012.0 81 4.0 90.0 8.0 5.0 Clouds 803", streaming.events.get(0));
+        assertEquals("703448 1031.0 92 0.5 0.0 -1.0 -2.0 Clear 800", streaming.events.get(1));
+    }
+
+    public void testCityWithoutIdIsInvalid() {
+        String withoutId = RECORDED_GROUP.replace("\"id\":703448,", "");
+        try {
+            CurrentWeatherJsonParser.parseStreaming(new StringReader(withoutId),
+                    new RecordingListener());
+            fail("Error: A city without an id can't be matched to a location and should not parse");
+        } catch (JSONException expected) {
+            // the tree parser rejects this too
+        } catch (Exception e) {
+            fail("Error: Unexpected exception " + e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+public class TestForecastHorizon extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+    private static final List<String> LOCATIONS = Collections.singletonList(LOCATION);
+
+    // Any julian day will do
+    private static final int TODAY = 2457012;
+    private static final long NOW = 1419033600000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new ForecastHorizon(mContext).clear(LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ForecastHorizon(mContext).clear(LOCATION);
+        super.tearDown();
+    }
+
+    public void testUnknownLocationIsFetchedInFull() {
+        assertEquals(ForecastHorizon.MAX_DAYS,
+                new ForecastHorizon(mContext).getDaysToFetch(LOCATION, TODAY, NOW));
+    }
+
+    public void testStaleDaysSetTheCount() {
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        horizon.onFetched(LOCATIONS, TODAY, ForecastHorizon.MAX_DAYS, NOW);
+
+        assertEquals("Error: Today should always be fetched",
+                1, horizon.getDaysToFetch(LOCATION, TODAY, NOW + HOUR));
+        assertEquals("Error: The next two days should go stale first",
+                3, horizon.getDaysToFetch(LOCATION, TODAY, NOW + 7 * HOUR));
+        assertEquals("Error: The rest of the week should go stale next",
+                7, horizon.getDaysToFetch(LOCATION, TODAY, NOW + 13 * HOUR));
+        assertEquals(ForecastHorizon.MAX_DAYS,
+                horizon.getDaysToFetch(LOCATION, TODAY, NOW + 25 * HOUR));
+    }
+
+    public void testPartialFetchKeepsLaterDays() {
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        horizon.onFetched(LOCATIONS, TODAY, ForecastHorizon.MAX_DAYS, NOW);
+        horizon.onFetched(LOCATIONS, TODAY, 3, NOW + 7 * HOUR);
+
+        assertEquals("Error: The days after a partial fetch should keep their times",
+                1, new ForecastHorizon(mContext).getDaysToFetch(LOCATION, TODAY, NOW + 8 * HOUR));
+    }
+
+    public void testNewDayIsMissing() {
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        horizon.onFetched(LOCATIONS, TODAY, ForecastHorizon.MAX_DAYS, NOW);
+
+        // Tomorrow the last day of the forecast is one we never downloaded
+        assertEquals(ForecastHorizon.MAX_DAYS,
+                horizon.getDaysToFetch(LOCATION, TODAY + 1, NOW + HOUR));
+    }
+
+    public void testHourlyStepsKeepTheirOwnTime() {
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        assertTrue("Error: Steps never downloaded should be fetched",
+                horizon.isHourlyStale(LOCATION, NOW));
+
+        horizon.onHourlyFetched(LOCATION, NOW);
+        assertFalse(horizon.isHourlyStale(LOCATION, NOW + HOUR));
+        assertTrue("Error: The steps should go stale after three hours",
+                horizon.isHourlyStale(LOCATION, NOW + 3 * HOUR));
+        assertTrue(horizon.isHourlyStale(LOCATION, NOW - HOUR));
+        assertEquals("Error: The steps should not vouch for the daily forecast",
+                ForecastHorizon.MAX_DAYS, horizon.getDaysToFetch(LOCATION, TODAY, NOW + HOUR));
+
+        horizon.clear(LOCATION);
+        assertTrue(horizon.isHourlyStale(LOCATION, NOW + HOUR));
+    }
+
+    public void testClockGoingBackFetchesEverything() {
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        horizon.onFetched(LOCATIONS, TODAY, ForecastHorizon.MAX_DAYS, NOW);
+
+        assertEquals(ForecastHorizon.MAX_DAYS,
+                horizon.getDaysToFetch(LOCATION, TODAY, NOW - HOUR));
+    }
+}
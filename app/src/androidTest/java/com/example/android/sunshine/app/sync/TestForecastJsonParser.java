@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/*
+    Checks that the streaming forecast parser reports exactly what the org.json tree parser
+    reports, and compares the cost of the two on recorded payloads.  The benchmark results are
+    written to logcat under the TestForecastJsonParser tag.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    // A two day forecast for Mountain View, as recorded from api.openweathermap.org
+    static final String RECORDED_FORECAST =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,"
+            + "\"lat\":37.386051},\"country\":\"US\",\"population\":0},\"cod\":\"200\","
+            + "\"message\":0.0101,\"cnt\":2,\"list\":["
+            + "{\"dt\":1419019200,\"temp\":{\"day\":13.36,\"min\":8.41,\"max\":13.36,"
+            + "\"night\":8.41,\"eve\":11.75,\"morn\":13.36},\"pressure\":1005.03,\"humidity\":97,"
+            + "\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\","
+            + "\"icon\":\"10d\"}],\"speed\":2.26,\"deg\":158,\"clouds\":88,\"rain\":1.5},"
+            + "{\"dt\":1419105600,\"temp\":{\"day\":14.47,\"min\":7.85,\"max\":15.12,"
+            + "\"night\":9.45,\"eve\":12.9,\"morn\":7.85},\"pressure\":1009.2,\"humidity\":84,"
+            + "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\","
+            + "\"icon\":\"01d\"}],\"speed\":1.91,\"deg\":31,\"clouds\":0}]}";
+
+    static final String RECORDED_NOT_FOUND =
+            "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    /**
+     * Builds a payload shaped like the recorded one with the given number of days, so the
+     * parsers can be compared at the sizes we request today and at the sizes we want to grow to.
+     */
+    static String buildForecast(int numDays) {
+        StringBuilder sb = new StringBuilder(300 * numDays);
+        sb.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{")
+                .append("\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\",")
+                .append("\"population\":0},\"cod\":\"200\",\"message\":0.0101,\"cnt\":")
+                .append(numDays).append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"dt\":").append(1419019200L + i * 86400L)
+                    .append(",\"temp\":{\"day\":13.36,\"min\":").append(5 + i % 7)
+                    .append(".41,\"max\":").append(12 + i % 9)
+                    .append(".36,\"night\":8.41,\"eve\":11.75,\"morn\":13.36},\"pressure\":100")
+                    .append(i % 10).append(".03,\"humidity\":").append(60 + i % 40)
+                    .append(",\"weather\":[{\"id\":").append(i % 2 == 0 ? 500 : 800)
+                    .append(",\"main\":\"").append(i % 2 == 0 ? "Rain" : "Clear")
+                    .append("\",\"description\":\"light rain\",\"icon\":\"10d\"}],\"speed\":2.")
+                    .append(i % 10).append(",\"deg\":").append(i * 17 % 360)
+                    .append(",\"clouds\":88}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * Records the city and days as one line per callback, so the output of the two parsers can
+     * be compared directly.  The message code is kept apart since its position in the document
+     * is not preserved by org.json.
+     */
+    static class RecordingListener implements ForecastJsonParser.Listener {
+        final ArrayList<String> events = new ArrayList<String>();
+        int code = -1;
+
+        @Override
+        public void onMessageCode(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public void onCity(int cityId, String cityName, double lat, double lon) {
+            events.add("city " + cityId + " " + cityName + " " + lat + " " + lon);
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            events.add("day " + dayIndex + " " + pressure + " " + humidity + " " + windSpeed
+                    + " " + windDirection + " " + high + " " + low + " " + description
+                    + " " + weatherId);
+        }
+    }
+
+    /**
+     * Does nothing with the parsed values, so the benchmark only measures the parsers.
+     */
+    static class NullListener implements ForecastJsonParser.Listener {
+        int days;
+
+        @Override
+        public void onMessageCode(int code) {
+        }
+
+        @Override
+        public void onCity(int cityId, String cityName, double lat, double lon) {
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            days++;
+        }
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        RecordingListener tree = new RecordingListener();
+        ForecastJsonParser.parseTree(RECORDED_FORECAST, tree);
+
+        RecordingListener streaming = new RecordingListener();
+        ForecastJsonParser.parseStreaming(new StringReader(RECORDED_FORECAST), streaming);
+
+        assertEquals("Error: Tree parser did not report the recorded forecast",
+                3, tree.events.size());
+        assertEquals("Error: Streaming parser did not report the same forecast as the tree parser",
+                tree.events, streaming.events);
+        assertEquals(tree.code, streaming.code);
+        assertEquals("day 1 1009.2 84 1.91 31.0 15.12 7.85 Clear 800", streaming.events.get(2));
+    }
+
+    public void testStreamingMatchesTreeForLargePayload() throws Exception {
+        String payload = buildForecast(120);
+
+        RecordingListener tree = new RecordingListener();
+        ForecastJsonParser.parseTree(payload, tree);
+
+        RecordingListener streaming = new RecordingListener();
+        ForecastJsonParser.parseStreaming(new StringReader(payload), streaming);
+
+        assertEquals(tree.events, streaming.events);
+    }
+
+    public void testErrorResponse() throws Exception {
+        RecordingListener streaming = new RecordingListener();
+        ForecastJsonParser.parseStreaming(new StringReader(RECORDED_NOT_FOUND), streaming);
+        assertEquals(404, streaming.code);
+        assertTrue(streaming.events.isEmpty());
+    }
+
+    public void testIncompleteDayIsInvalid() {
+        String truncated = RECORDED_FORECAST.replace("\"humidity\":97,", "");
+        try {
+            ForecastJsonParser.parseStreaming(new StringReader(truncated), new NullListener());
+            fail("Error: A day without humidity should not parse");
+        } catch (JSONException expected) {
+            // the tree parser rejects this too
+        } catch (Exception e) {
+            fail("Error: Unexpected exception " + e);
+        }
+    }
+
+    public void testMalformedIsInvalid() {
+        try {
+            ForecastJsonParser.parseStreaming(new StringReader("{\"cod\":\"200\",\"list\":[{"),
+                    new NullListener());
+            fail("Error: A truncated document should not parse");
+        } catch (JSONException expected) {
+            // reported as an invalid server response
+        } catch (Exception expected) {
+            // or as a stream that ended early
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkParsers() throws Exception {
+        int[] sizes = {14, 16, 120};
+        for (int numDays : sizes) {
+            String payload = buildForecast(numDays);
+
+            // warm up both paths so we don't measure class loading or the JIT
+            for (int i = 0; i < 20; i++) {
+                ForecastJsonParser.parseTree(payload, new NullListener());
+                ForecastJsonParser.parseStreaming(new StringReader(payload), new NullListener());
+            }
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                // The old path had to copy the response into a String before parsing
+                String copy = ForecastJsonParser.readFully(new StringReader(payload));
+                ForecastJsonParser.parseTree(copy, new NullListener());
+            }
+            long treeNanos = System.nanoTime() - start;
+            long treeBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            NullListener listener = new NullListener();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                ForecastJsonParser.parseStreaming(new StringReader(payload), listener);
+            }
+            long streamingNanos = System.nanoTime() - start;
+            long streamingBytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            assertEquals(numDays * BENCHMARK_ITERATIONS, listener.days);
+            Log.d(LOG_TAG, numDays + " days: tree " + treeNanos / BENCHMARK_ITERATIONS / 1000
+                    + "us " + treeBytes / BENCHMARK_ITERATIONS + "B, streaming "
+                    + streamingNanos / BENCHMARK_ITERATIONS / 1000 + "us "
+                    + streamingBytes / BENCHMARK_ITERATIONS + "B per parse");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/*
+    Checks that both paths of the three hour forecast parser report the same steps, with their
+    times in milliseconds.
+ */
+public class TestHourlyForecastJsonParser extends AndroidTestCase {
+
+    // The first two steps of a five day forecast for Mountain View.  The second has no wind
+    // direction, which we don't store anyway.
+    static final String RECORDED_HOURLY =
+            "{\"cod\":\"200\",\"message\":0.0045,\"cnt\":2,\"list\":["
+            + "{\"dt\":1442070000,\"main\":{\"temp\":21.5,\"temp_min\":20.1,\"temp_max\":21.5,"
+            + "\"pressure\":1013.2,\"humidity\":64},\"weather\":[{\"id\":800,\"main\":\"Clear\","
+            + "\"description\":\"sky is clear\",\"icon\":\"01d\"}],\"clouds\":{\"all\":0},"
+            + "\"wind\":{\"speed\":3.1,\"deg\":290},\"dt_txt\":\"2015-09-12 15:00:00\"},"
+            + "{\"dt\":1442080800,\"main\":{\"temp\":24,\"temp_min\":23.4,\"temp_max\":24,"
+            + "\"pressure\":1012.8,\"humidity\":55},\"weather\":[{\"id\":801,\"main\":\"Clouds\","
+            + "\"description\":\"few clouds\",\"icon\":\"02d\"}],\"clouds\":{\"all\":12},"
+            + "\"wind\":{\"speed\":4.6},\"dt_txt\":\"2015-09-12 18:00:00\"}],"
+            + "\"city\":{\"id\":5375480,\"name\":\"Mountain View\","
+            + "\"coord\":{\"lat\":37.3861,\"lon\":-122.0839},\"country\":\"US\"}}";
+
+    static class RecordingListener implements HourlyForecastJsonParser.Listener {
+        final ArrayList<String> events = new ArrayList<String>();
+        int code = -1;
+
+        @Override
+        public void onMessageCode(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public void onStep(long time, double temperature, int humidity, double windSpeed,
+                           int weatherId) {
+            events.add(time + " " + temperature + " " + humidity + " " + windSpeed + " "
+                    + weatherId);
+        }
+    }
+
+    /*
+        Builds a forecast of the given number of three hour steps, starting at firstStep (in
+        milliseconds), in the shape OWM sends.
+     */
+    static String buildHourlyForecast(long firstStep, int steps) {
+        StringBuilder json = new StringBuilder("{\"cod\":\"200\",\"cnt\":")
+                .append(steps).append(",\"list\":[");
+        for (int i = 0; i < steps; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(firstStep / 1000 + i * 3 * 60 * 60)
+                    .append(",\"main\":{\"temp\":").append(10 + i % 8)
+                    .append(",\"humidity\":").append(50 + i % 20)
+                    .append("},\"weather\":[{\"id\":800,\"main\":\"Clear\"}]")
+                    .append(",\"wind\":{\"speed\":").append(1 + i % 5).append("}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        RecordingListener tree = new RecordingListener();
+        HourlyForecastJsonParser.parseTree(RECORDED_HOURLY, tree);
+
+        RecordingListener streaming = new RecordingListener();
+        HourlyForecastJsonParser.parseStreaming(new StringReader(RECORDED_HOURLY), streaming);
+
+        assertEquals(200, tree.code);
+        assertEquals(200, streaming.code);
+        assertEquals("Error: Tree parser did not report both steps", 2, tree.events.size());
+        assertEquals("Error: Streaming parser did not report the same steps as the tree parser",
+                tree.events, streaming.events);
+        assertEquals("1442070000000 21.5 64 3.1 800", streaming.events.get(0));
+        assertEquals("1442080800000 24.0 55 4.6 801", streaming.events.get(1));
+    }
+
+    public void testBuiltForecastParses() throws Exception {
+        RecordingListener streaming = new RecordingListener();
+        HourlyForecastJsonParser.parseStreaming(
+                new StringReader(buildHourlyForecast(1442070000000L, 40)), streaming);
+        assertEquals(40, streaming.events.size());
+    }
+
+    public void testStepWithoutTimeIsInvalid() {
+        String withoutTime = RECORDED_HOURLY.replace("\"dt\":1442080800,", "");
+        try {
+            HourlyForecastJsonParser.parseStreaming(new StringReader(withoutTime),
+                    new RecordingListener());
+            fail("Error: A step without a time can't be stored and should not parse");
+        } catch (JSONException expected) {
+            // the tree parser rejects this too
+        } catch (Exception e) {
+            fail("Error: Unexpected exception " + e);
+        }
+    }
+}
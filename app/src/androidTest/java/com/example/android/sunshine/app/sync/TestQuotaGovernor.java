@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestQuotaGovernor extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        QuotaGovernor.reset(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        QuotaGovernor.reset(mContext);
+        super.tearDown();
+    }
+
+    public void testBackgroundIsShedBeforeUser() {
+        QuotaGovernor quota = new QuotaGovernor(mContext);
+        int background = 0;
+        while (quota.tryAcquire(QuotaGovernor.PRIORITY_BACKGROUND)) {
+            background++;
+        }
+        assertEquals("Error: Background requests should stop at the user's reserve",
+                QuotaGovernor.CAPACITY - QuotaGovernor.USER_RESERVE, background);
+
+        int user = 0;
+        while (quota.tryAcquire(QuotaGovernor.PRIORITY_USER)) {
+            user++;
+        }
+        // A token may have come back while we were spending them
+        assertTrue("Error: User requests should be able to spend the reserve, got " + user,
+                user >= QuotaGovernor.USER_RESERVE && user <= QuotaGovernor.USER_RESERVE + 1);
+
+        // The bucket is shared by every instance
+        assertFalse(new QuotaGovernor(mContext).tryAcquire(QuotaGovernor.PRIORITY_USER));
+    }
+
+    public void testRateLimitPausesEverything() {
+        QuotaGovernor quota = new QuotaGovernor(mContext);
+        assertEquals((float) QuotaGovernor.CAPACITY, quota.getTokens(), 0.01f);
+
+        quota.onRateLimited();
+        assertFalse("Error: Nothing should go out after a 429",
+                quota.tryAcquire(QuotaGovernor.PRIORITY_USER));
+        assertFalse(quota.tryAcquire(QuotaGovernor.PRIORITY_BACKGROUND));
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.DayMath;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.http.HttpDiskCache;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Runs whole syncs, fetch to parse to database, against a StandInWeatherServer on the device
+    itself, so they behave the same with or without a network.  The throughput test writes the
+    time of a pass and the spread of request times to logcat under this class's tag.
+ */
+public class TestSyncAgainstStandInServer extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncAgainstStandInServer.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "94043";
+
+    private StandInWeatherServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    private String mSavedPreferredLocation;
+    private String mSavedOtherLocations;
+
+    /*
+        Wraps a source and records how long each fetch takes, download and parse together,
+        as the sync adapter sees it.
+     */
+    static class TimingWeatherSource implements WeatherSource {
+        private final WeatherSource mSource;
+        final List<Long> forecastNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+        TimingWeatherSource(WeatherSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public void warmUp() {
+            mSource.warmUp();
+        }
+
+        @Override
+        public FetchResult fetchForecast(String locationQuery, int numDays, String eTag,
+                                         String lastModified, ForecastJsonParser.Listener listener)
+                throws IOException, JSONException {
+            long start = System.nanoTime();
+            try {
+                return mSource.fetchForecast(locationQuery, numDays, eTag, lastModified, listener);
+            } finally {
+                forecastNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public FetchResult fetchCurrentWeather(int[] cityIds,
+                                               CurrentWeatherJsonParser.Listener listener)
+                throws IOException, JSONException {
+            return mSource.fetchCurrentWeather(cityIds, listener);
+        }
+
+        @Override
+        public FetchResult fetchHourlyForecast(String locationQuery,
+                                               HourlyForecastJsonParser.Listener listener)
+                throws IOException, JSONException {
+            return mSource.fetchHourlyForecast(locationQuery, listener);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedPreferredLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        mSavedOtherLocations = prefs.getString(mContext.getString(R.string.pref_saved_locations_key), null);
+        setLocations(TEST_LOCATION);
+        deleteAllWeather();
+        CircuitBreaker.reset(mContext);
+        QuotaGovernor.reset(mContext);
+        SyncJournal.reset(mContext);
+
+        mServer = new StandInWeatherServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setWeatherSource(new OwmWeatherSource(mServer.getBaseUrl()));
+        // Most tests sync back to back and expect every sync to fetch
+        mSyncAdapter.setCoalesceWindow(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAllWeather();
+        CircuitBreaker.reset(mContext);
+        QuotaGovernor.reset(mContext);
+        SyncJournal.reset(mContext);
+
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        putOrRemove(editor, mContext.getString(R.string.pref_location_key), mSavedPreferredLocation);
+        putOrRemove(editor, mContext.getString(R.string.pref_saved_locations_key), mSavedOtherLocations);
+        editor.commit();
+        super.tearDown();
+    }
+
+    public void testSyncStoresForecastFromServer() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.setCompress(true);
+        sync();
+
+        assertEquals("Error: The recorded forecast was not stored", 2, countWeather(TEST_LOCATION));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{TEST_LOCATION}, null);
+        assertTrue("Error: The location was not stored", cursor.moveToFirst());
+        assertEquals("Error: The city id was not stored with the location",
+                5375480, cursor.getInt(0));
+        cursor.close();
+    }
+
+    public void testSyncStoresHourlyForecast() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION,
+                TestHourlyForecastJsonParser.buildHourlyForecast(today, 40));
+        sync();
+
+        assertEquals("Error: The daily and hourly forecasts should take one request each",
+                2, mServer.getRequestCount());
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDate(TEST_LOCATION, today),
+                null, null, null, null);
+        assertEquals("Error: Today's hourly steps were not stored", 8, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testFreshHourlyStepsAreNotFetched() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION,
+                TestHourlyForecastJsonParser.buildHourlyForecast(today, 40));
+        sync();
+        assertEquals(2, mServer.getRequestCount());
+
+        sync();
+        assertEquals("Error: Steps downloaded moments ago should not be asked for again",
+                3, mServer.getRequestCount());
+
+        // As if the steps had been downloaded three hours ago
+        new ForecastHorizon(mContext).onHourlyFetched(TEST_LOCATION,
+                System.currentTimeMillis() - ForecastHorizon.HOURLY_MAX_AGE_MILLIS);
+        sync();
+        assertEquals("Error: Stale steps should be downloaded again",
+                5, mServer.getRequestCount());
+    }
+
+    public void testSyncFetchesOnlyStaleDays() {
+        mServer.addForecast(TEST_LOCATION,
+                TestForecastJsonParser.buildForecast(ForecastHorizon.MAX_DAYS));
+        sync();
+        assertEquals("Error: A location with nothing stored should be fetched in full",
+                ForecastHorizon.MAX_DAYS, mServer.getLastForecastDays());
+        assertEquals(ForecastHorizon.MAX_DAYS, countWeather(TEST_LOCATION));
+
+        // As if the next few days had been downloaded seven hours ago
+        new ForecastHorizon(mContext).onFetched(Collections.singletonList(TEST_LOCATION),
+                DayMath.today(), 3, System.currentTimeMillis() - 7 * 60 * 60 * 1000);
+        sync();
+        assertEquals("Error: Only the days up to the last stale one should be asked for",
+                3, mServer.getLastForecastDays());
+        assertEquals("Error: The days that weren't asked for should have been kept",
+                ForecastHorizon.MAX_DAYS, countWeather(TEST_LOCATION));
+    }
+
+    /*
+        Once every day but today is fresh, today is refreshed through the group endpoint.  Its
+        temp_max and temp_min are the spread across the city right now, so only the current
+        conditions should be taken from it.
+     */
+    public void testGroupSyncKeepsForecastHighAndLow() {
+        mServer.addForecast(TEST_LOCATION,
+                TestForecastJsonParser.buildForecast(ForecastHorizon.MAX_DAYS));
+        sync();
+        mServer.addCurrentWeather(5375480, "{\"weather\":[{\"id\":800,\"main\":\"Clear\"}],"
+                + "\"main\":{\"temp\":20,\"pressure\":1020,\"humidity\":35,"
+                + "\"temp_min\":19,\"temp_max\":21},\"wind\":{\"speed\":3.5,\"deg\":270},"
+                + "\"id\":5375480,\"name\":\"Mountain View\"}");
+        int requests = mServer.getRequestCount();
+        sync();
+        assertTrue("Error: Today should have been refreshed",
+                mServer.getRequestCount() > requests);
+        assertEquals("Error: Only the group should have been asked for",
+                ForecastHorizon.MAX_DAYS, mServer.getLastForecastDays());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TEST_LOCATION,
+                        System.currentTimeMillis()),
+                new String[]{WeatherEntry.COLUMN_WEATHER_ID, WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_WIND_SPEED, WeatherEntry.COLUMN_DEGREES,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP},
+                null, null, null);
+        assertTrue("Error: Today's weather was not stored", cursor.moveToFirst());
+        assertEquals("Error: The current conditions were not stored", 800, cursor.getInt(0));
+        assertEquals(35.0, cursor.getDouble(1));
+        assertEquals(3.5, cursor.getDouble(2));
+        assertEquals(270.0, cursor.getDouble(3));
+        assertEquals("Error: The forecast high was replaced", 12.36, cursor.getDouble(4), 0.001);
+        assertEquals("Error: The forecast low was replaced", 5.41, cursor.getDouble(5), 0.001);
+        cursor.close();
+    }
+
+    /*
+        A server's validators may not change with the number of days asked for, so they are
+        only sent with a request for as many days as the one they came with, and a 304 only
+        freshens the days the stored forecast holds.
+     */
+    public void testValidatorsOnlyVouchForTheirRequest() {
+        mServer.addForecast(TEST_LOCATION,
+                TestForecastJsonParser.buildForecast(ForecastHorizon.MAX_DAYS));
+        mServer.setETags(true);
+        sync();
+        assertEquals(ForecastHorizon.MAX_DAYS, mServer.getLastForecastDays());
+
+        // As if the next few days had been downloaded seven hours ago
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        int today = DayMath.today();
+        long sevenHoursAgo = System.currentTimeMillis() - 7 * 60 * 60 * 1000;
+        horizon.onFetched(Collections.singletonList(TEST_LOCATION), today,
+                ForecastHorizon.MAX_DAYS, sevenHoursAgo);
+        sync();
+        assertEquals(3, mServer.getLastForecastDays());
+        assertNull("Error: Validators for " + ForecastHorizon.MAX_DAYS + " days were sent with "
+                + "a request for 3", mServer.getLastIfNoneMatch());
+
+        // The same request again is answered with a 304
+        horizon.onFetched(Collections.singletonList(TEST_LOCATION), today,
+                ForecastHorizon.MAX_DAYS, sevenHoursAgo);
+        sync();
+        assertNotNull("Error: The validators should be sent with the same request",
+                mServer.getLastIfNoneMatch());
+        assertEquals("Error: A 304 should freshen the days that were asked for",
+                1, horizon.getDaysToFetch(TEST_LOCATION, today, System.currentTimeMillis()));
+
+        // A forecast stored yesterday holds one day less from today on
+        ForecastValidators validators = new ForecastValidators(mContext);
+        validators.save(TEST_LOCATION, validators.getETag(TEST_LOCATION), null,
+                validators.getFingerprint(TEST_LOCATION), today - 1, 3, 3);
+        horizon.onFetched(Collections.singletonList(TEST_LOCATION), today,
+                ForecastHorizon.MAX_DAYS, sevenHoursAgo);
+        sync();
+        assertNotNull(mServer.getLastIfNoneMatch());
+        assertEquals("Error: A 304 should not freshen a day the stored forecast doesn't hold",
+                3, horizon.getDaysToFetch(TEST_LOCATION, today, System.currentTimeMillis()));
+    }
+
+    public void testConnectionsAreReused() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION,
+                TestHourlyForecastJsonParser.buildHourlyForecast(today, 40));
+        mServer.setCompress(true);
+        sync();
+        // So the second sync asks for the hourly steps too
+        new ForecastHorizon(mContext).clear(TEST_LOCATION);
+        sync();
+
+        assertEquals(4, mServer.getRequestCount());
+        assertTrue("Error: " + mServer.getRequestCount() + " requests took "
+                        + mServer.getConnectionCount() + " connections, they should share one",
+                mServer.getConnectionCount() < mServer.getRequestCount());
+        assertTrue("Error: Request timings were not recorded",
+                TransferStats.getPreferences(mContext).getLong(TransferStats.KEY_TOTAL_REQUESTS, 0) > 0);
+    }
+
+    public void testFreshResponsesComeFromCache() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION,
+                TestHourlyForecastJsonParser.buildHourlyForecast(today, 40));
+        mServer.setCompress(true);
+        HttpDiskCache cache = HttpDiskCache.getInstance(mContext);
+        // A server from an earlier test may have had the same port
+        cache.clear();
+        mSyncAdapter.setWeatherSource(new OwmWeatherSource(mServer.getBaseUrl(), cache));
+        long hits = cache.getHitCount(HttpDiskCache.TYPE_JSON);
+        sync();
+        // So the second sync asks for the hourly steps too
+        new ForecastHorizon(mContext).clear(TEST_LOCATION);
+        sync();
+
+        assertEquals("Error: The second sync should have been answered from the cache",
+                2, mServer.getRequestCount());
+        assertEquals(hits + 2, cache.getHitCount(HttpDiskCache.TYPE_JSON));
+        assertEquals("Error: The cached forecast should have been stored as usual",
+                2, countWeather(TEST_LOCATION));
+    }
+
+    public void testSyncRecordsMetrics() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION,
+                TestHourlyForecastJsonParser.buildHourlyForecast(today, 40));
+        mServer.setCompress(true);
+        long lastRecord = newestSyncRecord();
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.onPerformSync(null, new Bundle(),
+                mContext.getString(R.string.content_authority), null, syncResult);
+
+        assertEquals("Error: The daily and hourly rows should be counted as inserts",
+                2 + 40, syncResult.stats.numInserts);
+        assertEquals("Error: Every parsed row should be counted", 2 + 40,
+                syncResult.stats.numEntries);
+
+        // The fan-out finishes after the sync returns, and the record is saved after it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (newestSyncRecord() == lastRecord && System.currentTimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertTrue("Error: The sync was not recorded",
+                cursor.moveToFirst() && cursor.getLong(0) > lastRecord);
+        assertEquals(SyncMetricsEntry.OUTCOME_COMPLETE,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_OUTCOME)));
+        assertEquals("Error: Both requests should be recorded", 2,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_REQUESTS)));
+        int wireBytes = cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_WIRE_BYTES));
+        int decodedBytes =
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_DECODED_BYTES));
+        assertTrue("Error: Compressed responses should take fewer bytes on the wire, got "
+                        + wireBytes + " for " + decodedBytes, wireBytes < decodedBytes);
+        assertTrue("Error: The fan-out should have run for a new forecast",
+                cursor.getInt(cursor.getColumnIndex(
+                        SyncMetricsEntry.COLUMN_FAN_OUT_WIDGETS)) >= 0);
+        cursor.close();
+    }
+
+    public void testBackToBackSyncsShareFetches() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.addHourlyForecast(TEST_LOCATION, TestHourlyForecastJsonParser.buildHourlyForecast(
+                WeatherContract.normalizeDate(System.currentTimeMillis()), 40));
+        mSyncAdapter.setCoalesceWindow(SunshineSyncAdapter.COALESCE_WINDOW_MILLIS);
+
+        sync();
+        assertEquals(2, mServer.getRequestCount());
+
+        // One right after it, e.g. a location edit just after the periodic sync, doesn't fetch
+        sync();
+        assertEquals("Error: A sync within the window should reuse the last fetch",
+                2, mServer.getRequestCount());
+        assertEquals(2, countWeather(TEST_LOCATION));
+    }
+
+    public void testReplayStoresSameForecastAsServer() {
+        mSyncAdapter.setWeatherSource(new ReplayWeatherSource()
+                .addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST));
+        sync();
+
+        assertEquals("Error: The replayed forecast was not stored", 2, countWeather(TEST_LOCATION));
+        assertEquals("Error: The replay source should never touch the network",
+                0, mServer.getRequestCount());
+    }
+
+    public void testInterruptedSyncResumes() throws Exception {
+        String otherLocation = "10001";
+        setLocations(TEST_LOCATION, otherLocation);
+
+        // A pass killed after it stored the first location and downloaded the second
+        SyncJournal journal = new SyncJournal(mContext);
+        journal.beginPass();
+        journal.onStored(Collections.singletonList(TEST_LOCATION), false, null);
+        SyncJournal.Recorder recorder =
+                new SyncJournal.Recorder(new TestForecastJsonParser.NullListener());
+        ForecastJsonParser.parseTree(TestForecastJsonParser.RECORDED_FORECAST, recorder);
+        journal.savePayload(otherLocation, recorder.toPayload(DayMath.today(),
+                new FetchResult(false, null, null, null, 0, 0)));
+
+        // The server has no daily forecasts, so anything stored came from the journal
+        sync();
+        assertEquals("Error: The stored location should not have been fetched again",
+                0, countWeather(TEST_LOCATION));
+        assertEquals("Error: The downloaded forecast was not stored from the journal",
+                2, countWeather(otherLocation));
+        assertEquals("Error: Only the hourly steps should have been requested",
+                1, mServer.getRequestCount());
+        assertFalse("Error: The finished pass should have been forgotten",
+                new SyncJournal(mContext).isStored(TEST_LOCATION));
+    }
+
+    /*
+        A pass that stored everything but was still telling the widgets and the rest, or was
+        killed while it did, when the next sync came round.  The next sync has to fetch.
+     */
+    public void testSyncDuringPendingFanOutFetches() {
+        SyncJournal journal = new SyncJournal(mContext);
+        long passStarted = journal.beginPass();
+        ForecastSnapshot snapshot = new ForecastSnapshot(TEST_LOCATION,
+                DayMath.startOfDay(DayMath.today()), 800, 21.5, 8.25, "Clear");
+        journal.onStored(Collections.singletonList(TEST_LOCATION), true, snapshot);
+        journal.finishFetch(passStarted, snapshot);
+
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        sync();
+        assertEquals("Error: The sync resumed a pass that had finished fetching",
+                2, countWeather(TEST_LOCATION));
+        assertFalse("Error: The new pass should have been forgotten",
+                new SyncJournal(mContext).isStored(TEST_LOCATION));
+    }
+
+    public void testUnknownLocationIsInvalid() {
+        sync();
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals("Error: A 404 from the server should mark the location invalid",
+                SunshineSyncAdapter.LOCATION_STATUS_INVALID, Utility.getLocationStatus(mContext));
+    }
+
+    public void testServerErrorIsServerDown() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.failNext(RetryPolicy.MAX_ATTEMPTS, 503);
+        sync();
+
+        assertEquals("Error: Each attempt should make one request",
+                RetryPolicy.MAX_ATTEMPTS, mServer.getRequestCount());
+        assertEquals(0, countWeather(TEST_LOCATION));
+        assertEquals("Error: A 503 from the server should report it as down",
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, Utility.getLocationStatus(mContext));
+
+        // and the next sync recovers
+        sync();
+        assertEquals(2, countWeather(TEST_LOCATION));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testServerErrorIsRetried() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.failNext(1, 503);
+        sync();
+
+        assertEquals("Error: The forecast should have been stored on the second attempt",
+                2, countWeather(TEST_LOCATION));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testBreakerStopsSyncsDuringOutage() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.failNext(Integer.MAX_VALUE, 503);
+
+        // Enough failed attempts to open the breaker
+        while (mServer.getRequestCount() < CircuitBreaker.FAILURE_THRESHOLD) {
+            sync();
+        }
+        assertEquals("Error: The breaker should open after " + CircuitBreaker.FAILURE_THRESHOLD
+                        + " failures in a row",
+                CircuitBreaker.STATE_OPEN, CircuitBreaker.getState(mContext));
+        assertTrue(CircuitBreaker.isOpen(mContext));
+
+        int requests = mServer.getRequestCount();
+        sync();
+        assertEquals("Error: No request should be made while the breaker is open",
+                requests, mServer.getRequestCount());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    /*
+        A refresh the user asks for while the breaker is open goes ahead as the probe, and
+        closes the breaker once the server answers.
+     */
+    public void testUserSyncProbesOpenBreaker() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.failNext(CircuitBreaker.FAILURE_THRESHOLD, 503);
+        while (mServer.getRequestCount() < CircuitBreaker.FAILURE_THRESHOLD) {
+            sync();
+        }
+        assertTrue("Error: The breaker should be open", CircuitBreaker.isOpen(mContext));
+
+        int requests = mServer.getRequestCount();
+        syncAsUser();
+        assertTrue("Error: The user's refresh should have been let through as the probe",
+                mServer.getRequestCount() > requests);
+        assertEquals("Error: An answer to the probe should close the breaker",
+                CircuitBreaker.STATE_CLOSED, CircuitBreaker.getState(mContext));
+        assertEquals(2, countWeather(TEST_LOCATION));
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testRateLimitPausesWithoutRetrying() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        mServer.failNext(1, 429);
+        sync();
+
+        assertEquals("Error: A 429 should not be retried", 1, mServer.getRequestCount());
+        assertFalse("Error: A 429 means the server is up",
+                Utility.getLocationStatus(mContext) == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertEquals(CircuitBreaker.STATE_CLOSED, CircuitBreaker.getState(mContext));
+
+        syncAsUser();
+        assertEquals("Error: Nothing should be sent during the pause after a 429",
+                1, mServer.getRequestCount());
+    }
+
+    public void testBackgroundSyncIsShedFirst() {
+        mServer.addForecast(TEST_LOCATION, TestForecastJsonParser.RECORDED_FORECAST);
+        QuotaGovernor quota = new QuotaGovernor(mContext);
+        while (quota.tryAcquire(QuotaGovernor.PRIORITY_BACKGROUND)) {
+            // spend everything but the user's reserve
+        }
+
+        sync();
+        assertEquals("Error: A background sync should not spend the user's reserve",
+                0, mServer.getRequestCount());
+
+        syncAsUser();
+        assertEquals("Error: A sync the user asked for should still fetch",
+                2, countWeather(TEST_LOCATION));
+    }
+
+    public void testThroughputOnSlowNetwork() {
+        final int locationCount = 12;
+        final int latencyMillis = 300;
+        String forecast = TestForecastJsonParser.buildForecast(14);
+
+        String[] locations = new String[locationCount];
+        for (int i = 0; i < locationCount; i++) {
+            locations[i] = "stand-in-" + i;
+            mServer.addForecast(locations[i], forecast);
+        }
+        setLocations(locations);
+        mServer.setLatencyMillis(latencyMillis);
+        mServer.setBytesPerSecond(32 * 1024);
+
+        TimingWeatherSource source =
+                new TimingWeatherSource(new OwmWeatherSource(mServer.getBaseUrl()));
+        mSyncAdapter.setWeatherSource(source);
+
+        long start = System.nanoTime();
+        sync();
+        long passMillis = (System.nanoTime() - start) / 1000000;
+
+        for (String location : locations) {
+            assertEquals("Error: Forecast for " + location + " was not stored",
+                    14, countWeather(location));
+        }
+        assertTrue("Error: " + locationCount + " fetches took " + passMillis
+                        + "ms, they don't seem to run in parallel",
+                passMillis < locationCount * latencyMillis);
+
+        Long[] nanos = source.forecastNanos.toArray(new Long[locationCount]);
+        Arrays.sort(nanos);
+        Log.d(LOG_TAG, locationCount + " locations at " + latencyMillis + "ms latency: pass "
+                + passMillis + "ms, fetch p50 " + nanos[nanos.length / 2] / 1000000
+                + "ms p95 " + nanos[(nanos.length * 95 - 1) / 100] / 1000000
+                + "ms max " + nanos[nanos.length - 1] / 1000000 + "ms");
+    }
+
+    private void sync() {
+        mSyncAdapter.onPerformSync(null, new Bundle(),
+                mContext.getString(R.string.content_authority), null, new SyncResult());
+    }
+
+    // Like a refresh or a change of location
+    private void syncAsUser() {
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        mSyncAdapter.onPerformSync(null, extras,
+                mContext.getString(R.string.content_authority), null, new SyncResult());
+    }
+
+    /*
+        Makes the first location the preferred one and saves the rest, forgetting any
+        validators so every location is downloaded in full.
+     */
+    private void setLocations(String... locations) {
+        ForecastValidators validators = new ForecastValidators(mContext);
+        StringBuilder others = new StringBuilder();
+        ForecastHorizon horizon = new ForecastHorizon(mContext);
+        for (int i = 0; i < locations.length; i++) {
+            validators.clear(locations[i]);
+            horizon.clear(locations[i]);
+            if (i > 1) others.append('\n');
+            if (i > 0) others.append(locations[i]);
+        }
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_location_key), locations[0])
+                .putString(mContext.getString(R.string.pref_saved_locations_key), others.toString())
+                .commit();
+    }
+
+    // The _id of the newest sync metrics record, or 0 if there are none
+    private long newestSyncRecord() {
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        long id = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return id;
+    }
+
+    private int countWeather(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(locationSetting), null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+}
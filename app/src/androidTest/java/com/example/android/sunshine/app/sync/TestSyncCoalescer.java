@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSyncCoalescer extends AndroidTestCase {
+
+    // Counts how often it ran
+    static class CountingFetch implements Callable<Integer> {
+        final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public Integer call() {
+            return runs.incrementAndGet();
+        }
+    }
+
+    public void testWindowSharesFinishedFetch() throws Exception {
+        SyncCoalescer<Integer> coalescer = new SyncCoalescer<Integer>(60 * 1000);
+        CountingFetch fetch = new CountingFetch();
+
+        coalescer.run("94043", fetch);
+        coalescer.run("94043", fetch);
+        assertEquals("Error: A fetch within the window should be shared", 1, fetch.runs.get());
+
+        coalescer.run("99705", fetch);
+        assertEquals("Error: Other keys should fetch on their own", 2, fetch.runs.get());
+
+        coalescer.forget("94043");
+        coalescer.run("94043", fetch);
+        assertEquals("Error: A forgotten fetch should run again", 3, fetch.runs.get());
+    }
+
+    public void testNoWindowSharesNothing() throws Exception {
+        SyncCoalescer<Integer> coalescer = new SyncCoalescer<Integer>(0);
+        CountingFetch fetch = new CountingFetch();
+
+        assertEquals(1, (int) coalescer.run("94043", fetch));
+        assertEquals("Error: With no window every request should fetch",
+                2, (int) coalescer.run("94043", fetch));
+    }
+
+    public void testFailedFetchIsRetried() throws Exception {
+        SyncCoalescer<Integer> coalescer = new SyncCoalescer<Integer>(60 * 1000);
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> failing = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                runs.incrementAndGet();
+                throw new IOException("Server down");
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                coalescer.run("94043", failing);
+                fail("Error: The fetch's exception should reach the caller");
+            } catch (IOException expected) {
+                // and the next request tries again
+            }
+        }
+        assertEquals("Error: A failed fetch should not be shared", 2, runs.get());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestSyncFanOut extends AndroidTestCase {
+
+    private static final ForecastSnapshot SNAPSHOT =
+            new ForecastSnapshot("94043", 1419033600L, 321, 75.5, 65.5, "Asteroids");
+
+    /*
+        A consumer that counts down when it has run, and another latch if it was interrupted.
+     */
+    static class LatchConsumer implements SyncFanOut.Consumer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        private final long mTimeoutMillis;
+        private final long mWorkMillis;
+        volatile ForecastSnapshot received;
+
+        LatchConsumer(long timeoutMillis, long workMillis) {
+            mTimeoutMillis = timeoutMillis;
+            mWorkMillis = workMillis;
+        }
+
+        @Override
+        public String getName() {
+            return "Latch";
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return mTimeoutMillis;
+        }
+
+        @Override
+        public void onForecastUpdated(ForecastSnapshot snapshot) throws Exception {
+            received = snapshot;
+            started.countDown();
+            try {
+                Thread.sleep(mWorkMillis);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }
+    }
+
+    public void testDispatchDoesNotWait() throws InterruptedException {
+        LatchConsumer slow = new LatchConsumer(5000, 1000);
+        LatchConsumer fast = new LatchConsumer(5000, 0);
+
+        long start = System.nanoTime();
+        SyncFanOut.dispatch(SNAPSHOT, slow, fast);
+        long dispatchMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Error: Dispatch waited " + dispatchMillis + "ms for its consumers",
+                dispatchMillis < 500);
+
+        // The fast consumer runs even though the slow one hasn't finished
+        assertTrue("Error: The fast consumer never ran", fast.started.await(500, TimeUnit.MILLISECONDS));
+        assertTrue("Error: The slow consumer never ran", slow.started.await(500, TimeUnit.MILLISECONDS));
+        assertSame("Error: Consumers should all see the same snapshot", SNAPSHOT, fast.received);
+        assertSame(SNAPSHOT, slow.received);
+    }
+
+    public void testConsumerIsInterruptedAfterTimeout() throws InterruptedException {
+        LatchConsumer stuck = new LatchConsumer(200, 10000);
+        SyncFanOut.dispatch(SNAPSHOT, stuck);
+
+        assertTrue("Error: A consumer past its deadline should be interrupted",
+                stuck.interrupted.await(2000, TimeUnit.MILLISECONDS));
+    }
+
+    public void testSnapshotSurvivesIntent() {
+        Intent intent = SNAPSHOT.putInto(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED));
+        ForecastSnapshot copy = ForecastSnapshot.fromIntent(intent);
+
+        assertNotNull("Error: The snapshot was not found in the intent", copy);
+        assertTrue(copy.isFor("94043"));
+        assertEquals(SNAPSHOT.date, copy.date);
+        assertEquals(SNAPSHOT.weatherId, copy.weatherId);
+        assertEquals(SNAPSHOT.high, copy.high);
+        assertEquals(SNAPSHOT.low, copy.low);
+        assertEquals(SNAPSHOT.description, copy.description);
+
+        assertNull("Error: An intent without a snapshot should give null",
+                ForecastSnapshot.fromIntent(new Intent(SunshineSyncAdapter.ACTION_DATA_UPDATED)));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.DayMath;
+
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+/*
+    Checks that the journal resumes an interrupted pass, and that a forecast kept in it replays
+    exactly as it was parsed, unless the file was damaged.
+ */
+public class TestSyncJournal extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncJournal.reset(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncJournal.reset(mContext);
+        super.tearDown();
+    }
+
+    public void testInterruptedPassIsResumed() {
+        SyncJournal journal = new SyncJournal(mContext);
+        long passStarted = journal.beginPass();
+        journal.onStored(Collections.singletonList(LOCATION), true, null);
+
+        // As if the process was killed and the next sync came round
+        SyncJournal next = new SyncJournal(mContext);
+        assertEquals("Error: A recent pass should be resumed", passStarted, next.beginPass());
+        assertTrue("Error: The stored location was forgotten", next.isStored(LOCATION));
+        assertTrue("Error: Old weather should still be owed a delete", next.isDeletePending());
+
+        next.finishFetch(passStarted, null);
+        assertFalse("Error: A finished pass should be forgotten", next.isStored(LOCATION));
+        assertFalse(next.isDeletePending());
+    }
+
+    public void testFinishedPassDoesNotClearTheNext() {
+        SyncJournal journal = new SyncJournal(mContext);
+        long firstPass = journal.beginPass();
+        journal.finishFetch(firstPass, null);
+        SystemClock.sleep(5);
+        long secondPass = journal.beginPass();
+        journal.onStored(Collections.singletonList(LOCATION), false, null);
+
+        // The first pass finishing late
+        journal.finishFetch(firstPass, null);
+        journal.finishFanOut(firstPass);
+        assertTrue("Error: A late finish cleared the pass after it", journal.isStored(LOCATION));
+        journal.finishFetch(secondPass, null);
+        assertFalse(journal.isStored(LOCATION));
+    }
+
+    /*
+        The fan-out runs after the sync has returned.  A sync that starts before it is done, or
+        after the process was killed during it, has to fetch again rather than resume a pass
+        that stored everything, but the fan-out owed should be kept until it has been given.
+     */
+    public void testSyncDuringPendingFanOutStartsAfresh() {
+        SyncJournal journal = new SyncJournal(mContext);
+        long firstPass = journal.beginPass();
+        long today = DayMath.startOfDay(DayMath.today());
+        ForecastSnapshot snapshot = new ForecastSnapshot(LOCATION, today, 800, 21.5, 8.25, "Clear");
+        journal.onStored(Collections.singletonList(LOCATION), true, snapshot);
+        journal.finishFetch(firstPass, snapshot);
+        SystemClock.sleep(5);
+
+        SyncJournal next = new SyncJournal(mContext);
+        long secondPass = next.beginPass();
+        assertTrue("Error: A pass that finished fetching should not be resumed",
+                secondPass != firstPass);
+        assertFalse("Error: The next pass would skip a location the last one stored",
+                next.isStored(LOCATION));
+        assertFalse(next.isDeletePending());
+        assertNotNull("Error: The fan-out owed was dropped", next.getPendingFanOut());
+
+        // The first pass's fan-out finishing while the second is fetching
+        journal.finishFanOut(firstPass);
+        assertNull("Error: A finished fan-out should be forgotten", next.getPendingFanOut());
+
+        // The second pass storing a change of its own keeps it from a late finish of the first
+        next.onStored(Collections.singletonList(LOCATION), true, snapshot);
+        journal.finishFanOut(firstPass);
+        assertNotNull("Error: A late finish cleared the next pass's fan-out",
+                next.getPendingFanOut());
+        next.finishFetch(secondPass, snapshot);
+        next.finishFanOut(secondPass);
+        assertNull(next.getPendingFanOut());
+    }
+
+    public void testPendingFanOutSurvives() {
+        SyncJournal journal = new SyncJournal(mContext);
+        journal.beginPass();
+        long today = DayMath.startOfDay(DayMath.today());
+        journal.onStored(Collections.singletonList(LOCATION), true,
+                new ForecastSnapshot(LOCATION, today, 800, 21.5, 8.25, "Clear"));
+
+        ForecastSnapshot snapshot = new SyncJournal(mContext).getPendingFanOut();
+        assertNotNull("Error: The fan-out owed was not kept", snapshot);
+        assertEquals(LOCATION, snapshot.locationSetting);
+        assertEquals(today, snapshot.date);
+        assertEquals(800, snapshot.weatherId);
+        assertEquals(21.5, snapshot.high);
+        assertEquals("Clear", snapshot.description);
+    }
+
+    public void testPayloadReplaysAsParsed() throws Exception {
+        TestForecastJsonParser.RecordingListener parsed =
+                new TestForecastJsonParser.RecordingListener();
+        SyncJournal.Recorder recorder = new SyncJournal.Recorder(parsed);
+        ForecastJsonParser.parseTree(TestForecastJsonParser.RECORDED_FORECAST, recorder);
+
+        SyncJournal journal = new SyncJournal(mContext);
+        journal.beginPass();
+        int today = DayMath.today();
+        journal.savePayload(LOCATION, recorder.toPayload(today,
+                new FetchResult(false, "\"v1\"", null, null, 0, 0)));
+
+        byte[] payload = journal.loadPayload(LOCATION, today);
+        assertNotNull("Error: The payload was not kept", payload);
+        TestForecastJsonParser.RecordingListener replayed =
+                new TestForecastJsonParser.RecordingListener();
+        FetchResult result = SyncJournal.replay(payload, replayed);
+        assertEquals("Error: The replay differs from the parse", parsed.events, replayed.events);
+        assertEquals(parsed.code, replayed.code);
+        assertEquals("Error: The validators were not kept", "\"v1\"", result.eTag);
+        assertNull(result.lastModified);
+
+        assertNull("Error: A forecast for another day should not be used",
+                journal.loadPayload(LOCATION, today + 1));
+
+        journal.onStored(Collections.singletonList(LOCATION), true, null);
+        assertNull("Error: A stored forecast should not be kept",
+                journal.loadPayload(LOCATION, today));
+    }
+
+    public void testDamagedPayloadIsRejected() throws Exception {
+        SyncJournal.Recorder recorder =
+                new SyncJournal.Recorder(new TestForecastJsonParser.NullListener());
+        ForecastJsonParser.parseTree(TestForecastJsonParser.RECORDED_FORECAST, recorder);
+        SyncJournal journal = new SyncJournal(mContext);
+        journal.beginPass();
+        int today = DayMath.today();
+        journal.savePayload(LOCATION, recorder.toPayload(today, FetchResult.notModified()));
+
+        RandomAccessFile file = new RandomAccessFile(journal.getPayloadFile(LOCATION), "rw");
+        file.seek(file.length() / 2);
+        int b = file.read();
+        file.seek(file.length() / 2);
+        file.write(b ^ 0xff);
+        file.close();
+
+        assertNull("Error: A damaged payload should not be used",
+                journal.loadPayload(LOCATION, today));
+        assertFalse("Error: A damaged payload should be deleted",
+                journal.getPayloadFile(LOCATION).exists());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final long TEST_DATE = WeatherContract.normalizeDate(1419033600000L);
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    public void testIntervalFollowsVolatility() {
+        int interval = SunshineSyncAdapter.SYNC_INTERVAL;
+
+        assertTrue("Error: A settled forecast should stretch the interval",
+                SyncScheduler.nextInterval(interval, 0.2) > interval);
+        assertTrue("Error: A volatile forecast should shrink the interval",
+                SyncScheduler.nextInterval(interval, 6.0) < interval);
+        assertEquals("Error: A moderate change should leave the interval alone",
+                interval, SyncScheduler.nextInterval(interval, 2.0));
+        assertEquals("Error: Nothing to compare against should leave the interval alone",
+                interval, SyncScheduler.nextInterval(interval, Double.NaN));
+
+        // Never beyond the bounds, however long the streak
+        for (int i = 0; i < 20; i++) {
+            interval = SyncScheduler.nextInterval(interval, 0);
+        }
+        assertEquals(SyncScheduler.MAX_SYNC_INTERVAL, interval);
+        for (int i = 0; i < 20; i++) {
+            interval = SyncScheduler.nextInterval(interval, 10);
+        }
+        assertEquals(SyncScheduler.MIN_SYNC_INTERVAL, interval);
+    }
+
+    public void testIsStale() {
+        long now = System.currentTimeMillis();
+        assertFalse("Error: Data synced a minute ago should not be stale",
+                SyncScheduler.isStale(now - 60 * 1000, now));
+        assertTrue("Error: Data synced a day ago should be stale",
+                SyncScheduler.isStale(now - DAY_IN_MILLIS, now));
+        assertTrue("Error: Data older than the fixed interval should be stale",
+                SyncScheduler.isStale(now - SunshineSyncAdapter.SYNC_INTERVAL * 1000L - HOUR_IN_MILLIS, now));
+    }
+
+    public void testMeasureChange() {
+        long locationId = insertLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{
+                createWeatherValues(locationId, TEST_DATE, 75, 65, 800),
+                createWeatherValues(locationId, TEST_DATE + DAY_IN_MILLIS, 70, 60, 800)
+        });
+
+        // First day 2 degrees warmer on both ends, second day turns to rain, third day is new
+        double change = SyncScheduler.measureChange(mContext.getContentResolver(), new ContentValues[]{
+                createWeatherValues(locationId, TEST_DATE, 77, 67, 800),
+                createWeatherValues(locationId, TEST_DATE + DAY_IN_MILLIS, 70, 60, 500),
+                createWeatherValues(locationId, TEST_DATE + 2 * DAY_IN_MILLIS, 50, 40, 500)
+        });
+        assertEquals("Error: Change should average the days we already had",
+                (2 + SyncScheduler.CONDITION_CHANGE) / 2, change, 0.001);
+
+        double unchanged = SyncScheduler.measureChange(mContext.getContentResolver(), new ContentValues[]{
+                createWeatherValues(locationId, TEST_DATE, 75, 65, 800)
+        });
+        assertEquals(0, unchanged, 0.001);
+
+        assertTrue("Error: With no stored days there should be nothing to measure",
+                Double.isNaN(SyncScheduler.measureChange(mContext.getContentResolver(), new ContentValues[]{
+                        createWeatherValues(locationId, TEST_DATE + 5 * DAY_IN_MILLIS, 75, 65, 800)
+                })));
+    }
+
+    private long insertLocation() {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, "99705");
+        values.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private static ContentValues createWeatherValues(long locationId, long date, double high,
+                                                     double low, int weatherId) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        values.put(WeatherEntry.COLUMN_DATE, date);
+        values.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        values.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return values;
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -20,13 +20,17 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
 
+import com.example.android.sunshine.app.data.DayMath;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.text.DateFormatSymbols;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -36,6 +40,34 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Returns the locations the user has saved besides the preferred one.  They are stored in a
+     * single preference, one per line, since a location setting never spans lines.
+     */
+    public static List<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String saved = prefs.getString(context.getString(R.string.pref_saved_locations_key), "");
+        ArrayList<String> locations = new ArrayList<String>();
+        for (String location : saved.split("\n")) {
+            location = location.trim();
+            if (location.length() > 0) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Returns every location a sync should fetch: the preferred location first, followed by the
+     * saved locations, without duplicates.
+     */
+    public static List<String> getSyncLocations(Context context) {
+        LinkedHashSet<String> locations = new LinkedHashSet<String>();
+        locations.add(getPreferredLocation(context));
+        locations.addAll(getSavedLocations(context));
+        return new ArrayList<String>(locations);
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
@@ -79,11 +111,8 @@ public class Utility {
         // For the next 5 days: "Wednesday" (just the day name)
         // For all days after that: "Mon Jun 8"
 
-        Time time = new Time();
-        time.setToNow();
-        long currentTime = System.currentTimeMillis();
-        int julianDay = Time.getJulianDay(dateInMillis, time.gmtoff);
-        int currentJulianDay = Time.getJulianDay(currentTime, time.gmtoff);
+        int julianDay = DayMath.julianDay(dateInMillis);
+        int currentJulianDay = DayMath.today();
 
         // If the date we're building the String for is today's date, the format
         // is "Today, June 24"
@@ -99,8 +128,10 @@ public class Utility {
             return getDayName(context, dateInMillis);
         } else {
             // Otherwise, use the form "Mon Jun 3"
-            SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
-            return shortenedDateFormat.format(dateInMillis);
+            DateNames names = getDateNames();
+            return names.shortWeekdays[DayMath.dayOfWeek(julianDay)] + " "
+                    + names.shortMonths[DayMath.month(julianDay)] + " "
+                    + names.twoDigits(DayMath.dayOfMonth(julianDay));
         }
     }
 
@@ -134,20 +165,15 @@ public class Utility {
         // If the date is today, return the localized version of "Today" instead of the actual
         // day name.
 
-        Time t = new Time();
-        t.setToNow();
-        int julianDay = Time.getJulianDay(dateInMillis, t.gmtoff);
-        int currentJulianDay = Time.getJulianDay(System.currentTimeMillis(), t.gmtoff);
+        int julianDay = DayMath.julianDay(dateInMillis);
+        int currentJulianDay = DayMath.today();
         if (julianDay == currentJulianDay) {
             return context.getString(R.string.today);
         } else if ( julianDay == currentJulianDay +1 ) {
             return context.getString(R.string.tomorrow);
         } else {
-            Time time = new Time();
-            time.setToNow();
             // Otherwise, the format is just the day of the week (e.g "Wednesday".
-            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
-            return dayFormat.format(dateInMillis);
+            return getDateNames().weekdays[DayMath.dayOfWeek(julianDay)];
         }
     }
 
@@ -159,12 +185,52 @@ public class Utility {
      * @return The day in the form of a string formatted "December 6"
      */
     public static String getFormattedMonthDay(Context context, long dateInMillis ) {
-        Time time = new Time();
-        time.setToNow();
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
-        SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
-        String monthDayString = monthDayFormat.format(dateInMillis);
-        return monthDayString;
+        int julianDay = DayMath.julianDay(dateInMillis);
+        DateNames names = getDateNames();
+        return names.months[DayMath.month(julianDay)] + " "
+                + names.twoDigits(DayMath.dayOfMonth(julianDay));
+    }
+
+    /**
+     * The names of days and months in the current locale, as SimpleDateFormat would print them,
+     * kept so that binding a list item doesn't build a formatter for every date.
+     */
+    private static class DateNames {
+        final Locale locale;
+        // Indexed by Calendar day and month constants
+        final String[] weekdays;
+        final String[] shortWeekdays;
+        final String[] months;
+        final String[] shortMonths;
+        final char zeroDigit;
+
+        DateNames(Locale locale) {
+            DateFormatSymbols symbols = DateFormatSymbols.getInstance(locale);
+            this.locale = locale;
+            weekdays = symbols.getWeekdays();
+            shortWeekdays = symbols.getShortWeekdays();
+            months = symbols.getMonths();
+            shortMonths = symbols.getShortMonths();
+            zeroDigit = DecimalFormatSymbols.getInstance(locale).getZeroDigit();
+        }
+
+        // The "dd" of a date pattern
+        String twoDigits(int value) {
+            return new String(new char[] {
+                    (char) (zeroDigit + value / 10), (char) (zeroDigit + value % 10)});
+        }
+    }
+
+    private static DateNames sDateNames;
+
+    private static DateNames getDateNames() {
+        Locale locale = Locale.getDefault();
+        DateNames names = sDateNames;
+        if (names == null || !names.locale.equals(locale)) {
+            names = new DateNames(locale);
+            sDateNames = names;
+        }
+        return names;
     }
 
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.SystemClock;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Day arithmetic on plain numbers, for the code that turns times into days many times over:
+ * the sync adapter for every forecast row, the provider for every inserted date, and the
+ * forecast list for every item it binds.  It gives the same answers as
+ * {@link android.text.format.Time}, whose {@code setJulianDay} and {@code getJulianDay} it
+ * replaces, but doesn't allocate anything.
+ *
+ * Days are julian day numbers in the default time zone, and the millisecond time of a day is
+ * its local midnight, which is how dates are stored in the database.
+ *
+ * Looking up a time zone offset is the expensive part, so offsets are kept in a small table
+ * with one slot per UTC day.  A day whose offset doesn't change within it, which is every day
+ * but the two a year with a daylight saving transition, is answered from the table.  The table
+ * is cleared when the default time zone changes, which is checked at most once a minute, or
+ * when {@link #invalidate()} is called.
+ */
+public final class DayMath {
+
+    public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // The julian day of 1970-01-01
+    public static final int EPOCH_JULIAN_DAY = 2440588;
+
+    // A power of two; covers well over a month of days either side of today
+    private static final int TABLE_SIZE = 128;
+
+    private static final long ZONE_CHECK_MILLIS = 60 * 1000;
+
+    // Which UTC day each slot holds, and the offset at its start and end
+    private static final long[] sTableDays = new long[TABLE_SIZE];
+    private static final int[] sTableStartOffsets = new int[TABLE_SIZE];
+    private static final int[] sTableEndOffsets = new int[TABLE_SIZE];
+
+    private static TimeZone sZone;
+    private static long sZoneCheckedAt;
+
+    static {
+        clearTable();
+    }
+
+    private DayMath() {
+    }
+
+    /**
+     * Returns the julian day that the given time falls on in the default time zone.
+     */
+    public static synchronized int julianDay(long millis) {
+        return (int) Math.floor((millis + offsetAt(millis)) / (double) DAY_MILLIS)
+                + EPOCH_JULIAN_DAY;
+    }
+
+    /**
+     * Returns today's julian day in the default time zone.
+     */
+    public static int today() {
+        return julianDay(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the time of local midnight at the start of the given julian day.
+     */
+    public static synchronized long startOfDay(int julianDay) {
+        long utcMidnight = (julianDay - EPOCH_JULIAN_DAY) * DAY_MILLIS;
+        // The offset at UTC midnight is right unless a transition falls in between; a second
+        // look from where the first one landed settles it
+        long guess = utcMidnight - offsetAt(utcMidnight);
+        long midnight = utcMidnight - offsetAt(guess);
+        if (midnight + offsetAt(midnight) != utcMidnight) {
+            // The clocks skip midnight on this day, so it starts when they jump forward
+            return guess;
+        }
+        return midnight;
+    }
+
+    /**
+     * Returns the local midnight at the start of the day the given time falls on.
+     */
+    public static long normalize(long millis) {
+        return startOfDay(julianDay(millis));
+    }
+
+    /**
+     * Returns the day of the week of a julian day, as one of {@link Calendar#SUNDAY} to
+     * {@link Calendar#SATURDAY}.
+     */
+    public static int dayOfWeek(int julianDay) {
+        // Julian day 0 was a Monday
+        return (julianDay + 1) % 7 + Calendar.SUNDAY;
+    }
+
+    /**
+     * Returns the month of a julian day in the Gregorian calendar, as one of
+     * {@link Calendar#JANUARY} to {@link Calendar#DECEMBER}.
+     */
+    public static int month(int julianDay) {
+        int h = civilH(julianDay);
+        return (h / 153 + 2) % 12 + Calendar.JANUARY;
+    }
+
+    /**
+     * Returns the day of the month of a julian day in the Gregorian calendar, from 1.
+     */
+    public static int dayOfMonth(int julianDay) {
+        int h = civilH(julianDay);
+        return (h % 153) / 5 + 1;
+    }
+
+    /**
+     * Forgets every cached offset, e.g. after the default time zone was changed.
+     */
+    public static synchronized void invalidate() {
+        sZone = null;
+        clearTable();
+    }
+
+    // The shared step of Richards' conversion from a julian day to a Gregorian date
+    private static int civilH(int julianDay) {
+        int f = julianDay + 1401 + (((4 * julianDay + 274277) / 146097) * 3) / 4 - 38;
+        int e = 4 * f + 3;
+        int g = (e % 1461) / 4;
+        return 5 * g + 2;
+    }
+
+    private static int offsetAt(long millis) {
+        TimeZone zone = currentZone();
+        long utcDay = (long) Math.floor(millis / (double) DAY_MILLIS);
+        int slot = (int) (utcDay & (TABLE_SIZE - 1));
+        if (sTableDays[slot] != utcDay) {
+            long dayStart = utcDay * DAY_MILLIS;
+            sTableDays[slot] = utcDay;
+            sTableStartOffsets[slot] = zone.getOffset(dayStart);
+            sTableEndOffsets[slot] = zone.getOffset(dayStart + DAY_MILLIS - 1);
+        }
+        if (sTableStartOffsets[slot] == sTableEndOffsets[slot]) {
+            return sTableStartOffsets[slot];
+        }
+        // The offset changes during this day
+        return zone.getOffset(millis);
+    }
+
+    private static TimeZone currentZone() {
+        long now = SystemClock.elapsedRealtime();
+        if (sZone == null || now - sZoneCheckedAt >= ZONE_CHECK_MILLIS) {
+            // getDefault() hands out a copy, which is why it isn't asked every time
+            TimeZone zone = TimeZone.getDefault();
+            if (sZone == null || !sZone.getID().equals(zone.getID())) {
+                sZone = zone;
+                clearTable();
+            }
+            sZoneCheckedAt = now;
+        }
+        return sZone;
+    }
+
+    private static void clearTable() {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            // No UTC day can map to the slot it doesn't belong in
+            sTableDays[i] = i + 1;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+import android.content.ContentValues;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import java.util.Arrays;
+
+/**
+ * Rows of the hourly table held column by column in primitive arrays, as {@link WeatherBatch}
+ * holds weather rows, so the provider binds each step to its statement without boxing it.
+ * Hand it to the provider under {@link HourlyEntry#EXTRA_BATCH}.
+ */
+public final class HourlyBatch implements Parcelable {
+    // Every column but the _id, which the table requires to be set
+    private static final String[] REQUIRED_COLUMNS = new String[] {
+            HourlyEntry.COLUMN_LOC_KEY,
+            HourlyEntry.COLUMN_TIME,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_TEMP,
+            HourlyEntry.COLUMN_HUMIDITY,
+            HourlyEntry.COLUMN_WIND_SPEED
+    };
+
+    private int mSize;
+    private long[] mLocationIds;
+    private long[] mTimes;
+    private int[] mWeatherIds;
+    private double[] mTemps;
+    private int[] mHumidities;
+    private double[] mWindSpeeds;
+
+    public HourlyBatch(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Copies rows of the hourly table.  Rows missing a column the table requires are left
+     * out, as the database would refuse them.
+     */
+    public static HourlyBatch fromValues(ContentValues[] values) {
+        HourlyBatch batch = new HourlyBatch(values.length);
+        for (ContentValues value : values) {
+            if (!isComplete(value)) {
+                continue;
+            }
+            batch.add(value.getAsLong(HourlyEntry.COLUMN_LOC_KEY),
+                    value.getAsLong(HourlyEntry.COLUMN_TIME),
+                    value.getAsInteger(HourlyEntry.COLUMN_WEATHER_ID),
+                    value.getAsDouble(HourlyEntry.COLUMN_TEMP),
+                    value.getAsInteger(HourlyEntry.COLUMN_HUMIDITY),
+                    value.getAsDouble(HourlyEntry.COLUMN_WIND_SPEED));
+        }
+        return batch;
+    }
+
+    private static boolean isComplete(ContentValues value) {
+        for (String column : REQUIRED_COLUMNS) {
+            if (value.get(column) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(long locationId, long time, int weatherId, double temp, int humidity,
+                    double windSpeed) {
+        if (mSize == mTimes.length) {
+            grow(mSize * 2);
+        }
+        mLocationIds[mSize] = locationId;
+        mTimes[mSize] = time;
+        mWeatherIds[mSize] = weatherId;
+        mTemps[mSize] = temp;
+        mHumidities[mSize] = humidity;
+        mWindSpeeds[mSize] = windSpeed;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getLocationId(int row) {
+        return mLocationIds[row];
+    }
+
+    public long getTime(int row) {
+        return mTimes[row];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[row];
+    }
+
+    public double getTemp(int row) {
+        return mTemps[row];
+    }
+
+    public int getHumidity(int row) {
+        return mHumidities[row];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[row];
+    }
+
+    /**
+     * Returns the rows as ContentValues, for bulkInsert where provider calls don't exist.
+     */
+    public ContentValues[] toValues() {
+        ContentValues[] values = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            values[i] = new ContentValues();
+            values[i].put(HourlyEntry.COLUMN_LOC_KEY, mLocationIds[i]);
+            values[i].put(HourlyEntry.COLUMN_TIME, mTimes[i]);
+            values[i].put(HourlyEntry.COLUMN_WEATHER_ID, mWeatherIds[i]);
+            values[i].put(HourlyEntry.COLUMN_TEMP, mTemps[i]);
+            values[i].put(HourlyEntry.COLUMN_HUMIDITY, mHumidities[i]);
+            values[i].put(HourlyEntry.COLUMN_WIND_SPEED, mWindSpeeds[i]);
+        }
+        return values;
+    }
+
+    private void allocate(int capacity) {
+        mLocationIds = new long[capacity];
+        mTimes = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mTemps = new double[capacity];
+        mHumidities = new int[capacity];
+        mWindSpeeds = new double[capacity];
+    }
+
+    private void grow(int capacity) {
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mTemps = Arrays.copyOf(mTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            dest.writeLong(mLocationIds[i]);
+            dest.writeLong(mTimes[i]);
+            dest.writeInt(mWeatherIds[i]);
+            dest.writeDouble(mTemps[i]);
+            dest.writeInt(mHumidities[i]);
+            dest.writeDouble(mWindSpeeds[i]);
+        }
+    }
+
+    public static final Parcelable.Creator<HourlyBatch> CREATOR =
+            new Parcelable.Creator<HourlyBatch>() {
+                @Override
+                public HourlyBatch createFromParcel(Parcel source) {
+                    int size = source.readInt();
+                    HourlyBatch batch = new HourlyBatch(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(source.readLong(), source.readLong(), source.readInt(),
+                                source.readDouble(), source.readInt(), source.readDouble());
+                    }
+                    return batch;
+                }
+
+                @Override
+                public HourlyBatch[] newArray(int size) {
+                    return new HourlyBatch[size];
+                }
+            };
+}
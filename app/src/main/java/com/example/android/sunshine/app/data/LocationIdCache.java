@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Remembers the row id and city id of each location setting for the whole process, so that
+ * neither the sync adapter nor {@link WeatherProvider} has to look a setting up in the location
+ * table, or join that table, every time they need its id.
+ *
+ * {@link WeatherProvider} keeps it in step with the table: an inserted location is added, and
+ * any other change to the table forgets everything.  Whoever looked an id up in the table may
+ * add it, passing the {@link #getGeneration() generation} it saw before the lookup, so an id
+ * read just before the location was deleted is never stored.
+ */
+public final class LocationIdCache {
+
+    // Returned for a setting the cache doesn't know
+    public static final long NO_ID = -1;
+
+    private static class Entry {
+        final long id;
+        final int cityId;
+
+        Entry(long id, int cityId) {
+            this.id = id;
+            this.cityId = cityId;
+        }
+    }
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+
+    // Moves on each time the cache is invalidated
+    private static long sGeneration;
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * Returns the row id of the location with the given setting, or {@link #NO_ID} if the
+     * cache doesn't know it.
+     */
+    public static synchronized long getId(String locationSetting) {
+        Entry entry = sEntries.get(locationSetting);
+        return entry == null ? NO_ID : entry.id;
+    }
+
+    /**
+     * Returns the server's city id for the location with the given setting, or 0 if the cache
+     * doesn't know it or the location has none yet.
+     */
+    public static synchronized int getCityId(String locationSetting) {
+        Entry entry = sEntries.get(locationSetting);
+        return entry == null ? 0 : entry.cityId;
+    }
+
+    /**
+     * Returns the current generation.  Read it before looking a location up in the table.
+     */
+    public static synchronized long getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Adds a location read from, or just inserted into, the table, unless the table has changed
+     * since the given generation.
+     *
+     * @param cityId the server's city id, or 0 if the location has none yet
+     */
+    public static synchronized void put(String locationSetting, long id, int cityId,
+                                        long generation) {
+        if (generation == sGeneration) {
+            sEntries.put(locationSetting, new Entry(id, cityId));
+        }
+    }
+
+    /**
+     * Forgets every location.  Called whenever locations are updated or deleted, or the
+     * database is created again.
+     */
+    public static synchronized void invalidate() {
+        sEntries.clear();
+        sGeneration++;
+    }
+}
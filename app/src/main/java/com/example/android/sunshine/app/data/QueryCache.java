@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the results of a few small, hot queries in memory, so that everything that reads
+ * today's weather after a sync doesn't query and join the tables again for it.  Results are
+ * kept by URI, projection and sort order, and handed out as new cursors over the same rows.
+ *
+ * {@link WeatherProvider} invalidates it once each write to the weather or location tables has
+ * committed.  A result may only be added with the {@link #getGeneration() generation} read
+ * before it was queried, so a query that raced a write never leaves its older rows behind.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+final class QueryCache {
+
+    // Today's weather is one row for each of a handful of locations and projections
+    static final int MAX_ENTRIES = 16;
+    static final int MAX_ROWS = 16;
+
+    private static class Result {
+        final String[] columns;
+        final Object[][] rows;
+
+        Result(String[] columns, Object[][] rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private final LinkedHashMap<String, Result> mResults =
+            new LinkedHashMap<String, Result>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Moves on each time the cache is invalidated
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    static String keyFor(Uri uri, String[] projection, String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + sortOrder;
+    }
+
+    /**
+     * Returns a cursor over the cached result, or null if there is none.
+     */
+    synchronized Cursor get(String key) {
+        Result result = mResults.get(key);
+        if (result == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return toCursor(result);
+    }
+
+    /**
+     * Returns the current generation.  Read it before querying for a result to add.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the cursor into memory and keeps its rows, unless there are too many of them or
+     * the tables have changed since the given generation.
+     *
+     * @return a cursor over the same rows, in place of the one passed in
+     */
+    Cursor put(String key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        Result result = read(cursor);
+        cursor.close();
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return toCursor(result);
+    }
+
+    /**
+     * Forgets every result.  Called once a write to the tables they come from has committed.
+     */
+    synchronized void invalidate() {
+        mResults.clear();
+        mGeneration++;
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private static Result read(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            Object[] row = new Object[columns.length];
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        row[column] = null;
+                }
+            }
+            rows[i] = row;
+        }
+        return new Result(columns, rows);
+    }
+
+    private static Cursor toCursor(Result result) {
+        MatrixCursor cursor = new MatrixCursor(result.columns, result.rows.length);
+        for (Object[] row : result.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
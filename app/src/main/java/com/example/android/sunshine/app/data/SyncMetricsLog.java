@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the metrics of the last {@link #CAPACITY} syncs in a file of fixed size, overwriting
+ * the oldest record once it is full, and reads them back for {@link WeatherProvider}.
+ *
+ * The file starts with a header giving its layout and how many records were ever written.
+ * Each record holds its own sequence number, so a record that was being overwritten when the
+ * process died is recognised and left out rather than read as garbage.
+ */
+public final class SyncMetricsLog {
+    private static final String LOG_TAG = SyncMetricsLog.class.getSimpleName();
+
+    static final String FILE_NAME = "sync_metrics.bin";
+
+    static final int CAPACITY = 100;
+
+    // Where each value goes in a record; the order of the columns after _id and started_at
+    public static final int FIELD_OUTCOME = 0;
+    public static final int FIELD_DURATION = 1;
+    public static final int FIELD_CONNECT = 2;
+    public static final int FIELD_FIRST_BYTE = 3;
+    public static final int FIELD_DOWNLOAD = 4;
+    public static final int FIELD_PARSE = 5;
+    public static final int FIELD_RESOLVE = 6;
+    public static final int FIELD_INSERT = 7;
+    public static final int FIELD_DELETE = 8;
+    public static final int FIELD_FAN_OUT_WIDGETS = 9;
+    public static final int FIELD_FAN_OUT_MUZEI = 10;
+    public static final int FIELD_FAN_OUT_NOTIFICATION = 11;
+    public static final int FIELD_FAN_OUT_WEAR = 12;
+    public static final int FIELD_REQUESTS = 13;
+    public static final int FIELD_WIRE_BYTES = 14;
+    public static final int FIELD_DECODED_BYTES = 15;
+    public static final int FIELD_ROWS_PARSED = 16;
+    public static final int FIELD_ROWS_INSERTED = 17;
+    public static final int FIELD_ROWS_UPDATED = 18;
+    public static final int FIELD_ROWS_DELETED = 19;
+    public static final int FIELD_IO_ERRORS = 20;
+    public static final int FIELD_PARSE_ERRORS = 21;
+    public static final int FIELD_COUNT = 22;
+
+    static final String[] COLUMNS = new String[] {
+            SyncMetricsEntry._ID,
+            SyncMetricsEntry.COLUMN_STARTED_AT,
+            SyncMetricsEntry.COLUMN_OUTCOME,
+            SyncMetricsEntry.COLUMN_DURATION,
+            SyncMetricsEntry.COLUMN_CONNECT,
+            SyncMetricsEntry.COLUMN_FIRST_BYTE,
+            SyncMetricsEntry.COLUMN_DOWNLOAD,
+            SyncMetricsEntry.COLUMN_PARSE,
+            SyncMetricsEntry.COLUMN_RESOLVE,
+            SyncMetricsEntry.COLUMN_INSERT,
+            SyncMetricsEntry.COLUMN_DELETE,
+            SyncMetricsEntry.COLUMN_FAN_OUT_WIDGETS,
+            SyncMetricsEntry.COLUMN_FAN_OUT_MUZEI,
+            SyncMetricsEntry.COLUMN_FAN_OUT_NOTIFICATION,
+            SyncMetricsEntry.COLUMN_FAN_OUT_WEAR,
+            SyncMetricsEntry.COLUMN_REQUESTS,
+            SyncMetricsEntry.COLUMN_WIRE_BYTES,
+            SyncMetricsEntry.COLUMN_DECODED_BYTES,
+            SyncMetricsEntry.COLUMN_ROWS_PARSED,
+            SyncMetricsEntry.COLUMN_ROWS_INSERTED,
+            SyncMetricsEntry.COLUMN_ROWS_UPDATED,
+            SyncMetricsEntry.COLUMN_ROWS_DELETED,
+            SyncMetricsEntry.COLUMN_IO_ERRORS,
+            SyncMetricsEntry.COLUMN_PARSE_ERRORS
+    };
+
+    // Bumped whenever the layout of a record changes; a file in another layout is started over
+    private static final int MAGIC = 0x53594e43;
+    private static final int VERSION = 1;
+
+    // magic, version, capacity, record size, then the number of records ever written
+    static final int HEADER_SIZE = 4 * 4 + 8;
+    private static final int COUNT_OFFSET = 4 * 4;
+
+    // sequence number and start time, then the fields
+    static final int RECORD_SIZE = 8 + 8 + FIELD_COUNT * 4;
+
+    private SyncMetricsLog() {
+    }
+
+    /**
+     * Adds the record of one sync, overwriting the oldest one if the file is full.  This does
+     * file I/O, so it must not be called from the UI thread.
+     *
+     * @param values the metrics, indexed by the FIELD constants
+     */
+    public static synchronized void append(Context context, long startedAt, int[] values) {
+        RandomAccessFile file = null;
+        try {
+            file = open(context);
+            long count = file.readLong();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(count + 1);
+            record.putLong(startedAt);
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                record.putInt(values[i]);
+            }
+            file.seek(HEADER_SIZE + (count % CAPACITY) * RECORD_SIZE);
+            file.write(record.array());
+            // Only counted once it is all there
+            file.seek(COUNT_OFFSET);
+            file.writeLong(count + 1);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't record sync metrics", e);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Returns the records, newest first, with the columns of {@link SyncMetricsEntry}.
+     */
+    public static synchronized Cursor query(Context context) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        RandomAccessFile file = null;
+        try {
+            file = open(context);
+            long count = file.readLong();
+            byte[] bytes = new byte[RECORD_SIZE];
+            for (long sequence = count; sequence > Math.max(0, count - CAPACITY); sequence--) {
+                file.seek(HEADER_SIZE + ((sequence - 1) % CAPACITY) * RECORD_SIZE);
+                file.readFully(bytes);
+                ByteBuffer record = ByteBuffer.wrap(bytes);
+                if (record.getLong() != sequence) {
+                    // Torn by a crash while it was being overwritten
+                    continue;
+                }
+                Object[] row = new Object[COLUMNS.length];
+                row[0] = sequence;
+                row[1] = record.getLong();
+                for (int i = 0; i < FIELD_COUNT; i++) {
+                    row[2 + i] = record.getInt();
+                }
+                cursor.addRow(row);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't read sync metrics", e);
+        } finally {
+            closeQuietly(file);
+        }
+        return cursor;
+    }
+
+    /**
+     * Forgets every record.  Only meant for tests.
+     */
+    static synchronized void clear(Context context) {
+        getFile(context).delete();
+    }
+
+    /**
+     * Opens the file positioned at the record count, creating it or starting it over if it
+     * isn't in the current layout.
+     */
+    private static RandomAccessFile open(Context context) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getFile(context), "rw");
+        boolean valid = file.length() == HEADER_SIZE + (long) CAPACITY * RECORD_SIZE
+                && file.readInt() == MAGIC
+                && file.readInt() == VERSION
+                && file.readInt() == CAPACITY
+                && file.readInt() == RECORD_SIZE;
+        if (!valid) {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+            file.seek(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(CAPACITY);
+            file.writeInt(RECORD_SIZE);
+            file.writeLong(0);
+        }
+        file.seek(COUNT_OFFSET);
+        return file;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing was left to write
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * Rows of the weather table held column by column in primitive arrays, for writing many rows
+ * at once.  Unlike an array of ContentValues, adding a row allocates nothing once the arrays
+ * have grown to the size of the batch, and the provider binds the values to its statement
+ * without boxing them.  Hand it to the provider under {@link WeatherEntry#EXTRA_BATCH}.
+ */
+public final class WeatherBatch implements Parcelable {
+    // Every column but the _id, which the table requires to be set
+    private static final String[] REQUIRED_COLUMNS = new String[] {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private int mSize;
+    private long[] mLocationIds;
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private String[] mDescriptions;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public WeatherBatch(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Copies rows of the weather table.  Rows missing a column the table requires are left
+     * out, as the database would refuse them.
+     */
+    public static WeatherBatch fromValues(ContentValues[] values) {
+        WeatherBatch batch = new WeatherBatch(values.length);
+        for (ContentValues value : values) {
+            if (!isComplete(value)) {
+                continue;
+            }
+            batch.add(value.getAsLong(WeatherEntry.COLUMN_LOC_KEY),
+                    value.getAsLong(WeatherEntry.COLUMN_DATE),
+                    value.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    value.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    value.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    value.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    value.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    value.getAsDouble(WeatherEntry.COLUMN_PRESSURE),
+                    value.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                    value.getAsDouble(WeatherEntry.COLUMN_DEGREES));
+        }
+        return batch;
+    }
+
+    private static boolean isComplete(ContentValues value) {
+        for (String column : REQUIRED_COLUMNS) {
+            if (value.get(column) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(long locationId, long date, int weatherId, String description,
+                    double minTemp, double maxTemp, double humidity, double pressure,
+                    double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow(mSize * 2);
+        }
+        mLocationIds[mSize] = locationId;
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mDescriptions[mSize] = description;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * Gives every row the same location, for rows collected before it was known.
+     */
+    public void setLocationId(long locationId) {
+        Arrays.fill(mLocationIds, 0, mSize, locationId);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getLocationId(int row) {
+        return mLocationIds[row];
+    }
+
+    public long getDate(int row) {
+        return mDates[row];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[row];
+    }
+
+    public String getDescription(int row) {
+        return mDescriptions[row];
+    }
+
+    public double getMinTemp(int row) {
+        return mMinTemps[row];
+    }
+
+    public double getMaxTemp(int row) {
+        return mMaxTemps[row];
+    }
+
+    public double getHumidity(int row) {
+        return mHumidities[row];
+    }
+
+    public double getPressure(int row) {
+        return mPressures[row];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[row];
+    }
+
+    public double getDegrees(int row) {
+        return mDegrees[row];
+    }
+
+    /**
+     * Returns one row as ContentValues, for the few places that want a row rather than a batch.
+     */
+    public ContentValues getValues(int row) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_LOC_KEY, mLocationIds[row]);
+        values.put(WeatherEntry.COLUMN_DATE, mDates[row]);
+        values.put(WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[row]);
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, mDescriptions[row]);
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[row]);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[row]);
+        values.put(WeatherEntry.COLUMN_HUMIDITY, mHumidities[row]);
+        values.put(WeatherEntry.COLUMN_PRESSURE, mPressures[row]);
+        values.put(WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds[row]);
+        values.put(WeatherEntry.COLUMN_DEGREES, mDegrees[row]);
+        return values;
+    }
+
+    public ContentValues[] toValues() {
+        ContentValues[] values = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            values[i] = getValues(i);
+        }
+        return values;
+    }
+
+    private void allocate(int capacity) {
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new String[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    private void grow(int capacity) {
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            dest.writeLong(mLocationIds[i]);
+            dest.writeLong(mDates[i]);
+            dest.writeInt(mWeatherIds[i]);
+            dest.writeString(mDescriptions[i]);
+            dest.writeDouble(mMinTemps[i]);
+            dest.writeDouble(mMaxTemps[i]);
+            dest.writeDouble(mHumidities[i]);
+            dest.writeDouble(mPressures[i]);
+            dest.writeDouble(mWindSpeeds[i]);
+            dest.writeDouble(mDegrees[i]);
+        }
+    }
+
+    public static final Parcelable.Creator<WeatherBatch> CREATOR =
+            new Parcelable.Creator<WeatherBatch>() {
+                @Override
+                public WeatherBatch createFromParcel(Parcel source) {
+                    int size = source.readInt();
+                    WeatherBatch batch = new WeatherBatch(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(source.readLong(), source.readLong(), source.readInt(),
+                                source.readString(), source.readDouble(), source.readDouble(),
+                                source.readDouble(), source.readDouble(), source.readDouble(),
+                                source.readDouble());
+                    }
+                    return batch;
+                }
+
+                @Override
+                public WeatherBatch[] newArray(int size) {
+                    return new WeatherBatch[size];
+                }
+            };
+}
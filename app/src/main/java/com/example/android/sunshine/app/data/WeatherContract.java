@@ -19,7 +19,6 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +42,27 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+
+    // Provider call, on BASE_CONTENT_URI, that checkpoints the database's write-ahead log.  The
+    // sync makes it once its writes are done.  The result holds the number of pages still in
+    // the log under EXTRA_WAL_PAGES, or -1 if the database has no log.
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    public static final String EXTRA_WAL_PAGES = "wal_pages";
+
+    // Provider call, on BASE_CONTENT_URI, that reports how often today's weather for a
+    // location was read from the provider's query cache.  The result holds the counts since
+    // the provider started under EXTRA_CACHE_HITS and EXTRA_CACHE_MISSES.
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return DayMath.normalize(startDate);
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -81,6 +92,10 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // The id openweathermap knows the city by, so several locations can be asked for in
+        // one group request.  Null until a forecast for the location has been downloaded.
+        public static final String COLUMN_CITY_ID = "city_id";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -126,6 +141,19 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Provider call that writes a batch of weather rows by comparing them with the rows
+        // already stored for the same location and date.  Rows that exist are updated in place,
+        // and only in the columns that changed, so their _ids stay the same.  Pass the rows as a
+        // WeatherBatch under EXTRA_BATCH, or as a ContentValues array under EXTRA_VALUES.  The
+        // result lists the _ids of the rows that were inserted and updated, and counts the rows
+        // that were already current.
+        public static final String METHOD_UPSERT = "upsert_weather";
+        public static final String EXTRA_BATCH = "batch";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_INSERTED_IDS = "inserted_ids";
+        public static final String EXTRA_UPDATED_IDS = "updated_ids";
+        public static final String EXTRA_UNCHANGED_COUNT = "unchanged_count";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +193,115 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly table, which holds the forecast
+       in three hour steps for the next five days */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the three hour step, stored as long in milliseconds since the epoch.  Unlike
+        // the daily dates it is not normalized.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature for the step, stored as a float
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as an integer percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Windspeed is stored as a float
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        // Provider call that writes a batch of steps through the same statement as bulkInsert,
+        // without boxing them.  Pass the rows as an HourlyBatch under EXTRA_BATCH; the result
+        // counts the rows written under EXTRA_INSERTED_COUNT.
+        public static final String METHOD_INSERT = "insert_hourly";
+        public static final String EXTRA_BATCH = "batch";
+        public static final String EXTRA_INSERTED_COUNT = "inserted_count";
+
+        /*
+            The steps of one day, from its start to the start of the next, for a location.
+         */
+        public static Uri buildHourlyLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+    }
+
+    /* Inner class that defines the columns of the sync metrics, one row for each of the most
+       recent syncs, newest first.  They are kept in a file rather than a table, see
+       SyncMetricsLog.  The _id is the sync's sequence number.  Durations are in milliseconds;
+       the stages of the fetches are summed over every fetch of the sync, which run in
+       parallel, so together they can add up to more than the sync's duration. */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_SYNC_METRICS;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_STARTED_AT = "started_at";
+        // One of the OUTCOME constants
+        public static final String COLUMN_OUTCOME = "outcome";
+        // From the start of the sync until its last stage finished, fan-out included
+        public static final String COLUMN_DURATION = "duration";
+
+        // Getting connections and sending requests, DNS lookups included
+        public static final String COLUMN_CONNECT = "connect";
+        // Waiting for the server to start answering
+        public static final String COLUMN_FIRST_BYTE = "first_byte";
+        // Waiting for response bodies to arrive
+        public static final String COLUMN_DOWNLOAD = "download";
+        // Parsing response bodies, as they arrived
+        public static final String COLUMN_PARSE = "parse";
+        // Looking up and adding locations
+        public static final String COLUMN_RESOLVE = "resolve";
+        // Writing the weather and hourly rows
+        public static final String COLUMN_INSERT = "insert_rows";
+        // Deleting the days and steps that have passed
+        public static final String COLUMN_DELETE = "delete_rows";
+
+        // The consumers told about a new forecast; -1 if they weren't told
+        public static final String COLUMN_FAN_OUT_WIDGETS = "fan_out_widgets";
+        public static final String COLUMN_FAN_OUT_MUZEI = "fan_out_muzei";
+        public static final String COLUMN_FAN_OUT_NOTIFICATION = "fan_out_notification";
+        public static final String COLUMN_FAN_OUT_WEAR = "fan_out_wear";
+
+        public static final String COLUMN_REQUESTS = "requests";
+        // Bytes read from the connections, and after decompression
+        public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+        public static final String COLUMN_DECODED_BYTES = "decoded_bytes";
+        // Rows the responses held, and what writing them did
+        public static final String COLUMN_ROWS_PARSED = "rows_parsed";
+        public static final String COLUMN_ROWS_INSERTED = "rows_inserted";
+        public static final String COLUMN_ROWS_UPDATED = "rows_updated";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+        // Fetches that couldn't reach the server, and responses that couldn't be parsed
+        public static final String COLUMN_IO_ERRORS = "io_errors";
+        public static final String COLUMN_PARSE_ERRORS = "parse_errors";
+
+        public static final int OUTCOME_COMPLETE = 0;
+        // Skipped because the server was known to be down
+        public static final int OUTCOME_SERVER_DOWN = 1;
+        public static final int OUTCOME_CANCELLED = 2;
+    }
 }
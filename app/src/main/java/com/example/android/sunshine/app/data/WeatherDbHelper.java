@@ -15,37 +15,149 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database is written by the sync while the list, the detail view, the widgets, Muzei and
+ * the wearable read it, so it uses write-ahead logging where the platform has it, from
+ * Honeycomb on.  Readers then see the last committed forecast while a sync writes, instead of
+ * queueing behind its transaction for the one connection.  Older platforms keep the rollback
+ * journal, where a read waits for the write in progress.
+ *
+ * The sync writes in bursts of a few hundred pages at most, then nothing for hours.  The log
+ * is only checkpointed automatically once it is well past the size of a burst, so the inserts
+ * of a sync don't stop to wait on the checkpoint's fsyncs, and the sync checkpoints it through
+ * {@link #checkpoint()} once its writes are done.  After a checkpoint the log file is cut back,
+ * so a burst bigger than usual doesn't leave a large file behind.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 5;
+
+    // The first version with every table the current one has, which only lacks indexes
+    private static final int FIRST_MIGRATED_VERSION = 4;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Pages the log may grow to before a commit checkpoints it; several syncs' worth
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    // What the log file is truncated to once checkpointed
+    static final long JOURNAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    // Every weather query but the retention delete is for one location, by day or from a day
+    // on, and the index behind the table's unique key leads with the date.  This one leads with
+    // the location, so a location's days are one range of it in date order.  It also carries
+    // the columns the list, the widgets, Muzei and the notification read, so reading a
+    // location's days for them never touches the table.  The retention delete, by date alone,
+    // still goes through the unique key's index.
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + WEATHER_LOCATION_DATE_INDEX + " ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.COLUMN_SHORT_DESC + ");";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        // Takes effect as the database is opened, before onCreate or onUpgrade
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+        pragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+        pragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT_BYTES);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(LOG_TAG, "Write-ahead logging unavailable, readers will wait for writes");
+        }
+    }
+
+    /**
+     * Copies the pages in the write-ahead log into the database, as far as the readers still
+     * using older pages allow, without waiting for them.  Does nothing on the rollback journal.
+     * Does file I/O, so never on the UI thread.
+     *
+     * @return the number of pages left in the log, or -1 if the database has no log
+     */
+    public int checkpoint() {
+        SQLiteDatabase db = getWritableDatabase();
+        // Passive: it never blocks the readers, which matters more than finishing
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint", null);
+        try {
+            // busy, pages in the log, pages checkpointed; -1 for both counts without a log
+            if (!cursor.moveToFirst() || cursor.getColumnCount() < 3
+                    || cursor.getInt(1) < 0) {
+                return -1;
+            }
+            return cursor.getInt(1) - cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs a pragma that sets a value.  They all answer with the new value, which execSQL
+     * won't accept on every platform, so it goes through a query.
+     */
+    private static void pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, the latitude and longitude, and the city id used
+        // by the server
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER " +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,13 +191,45 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // The hourly table gets about 40 rows per location each sync, and is always read a
+        // location and a time range at a time.  Its unique key therefore leads with the
+        // location, so the index behind it serves both the replacing inserts and the range
+        // queries, with the rows of one location next to each other in time order.  Only the
+        // columns the hourly views need are kept.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // One row per step per location; a newer forecast for the step replaces it
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        // Ids remembered from a database that has gone mean nothing in this one
+        LocationIdCache.invalidate();
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
+        if (oldVersion >= FIRST_MIGRATED_VERSION) {
+            // Only indexes were added since, so the stored forecast stays and the next sync
+            // can skip the days it already has
+            sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+            return;
+        }
+        // Older databases are only a cache for online data, so their upgrade policy is
         // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
@@ -93,6 +237,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
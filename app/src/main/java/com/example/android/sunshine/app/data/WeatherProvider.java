@@ -17,12 +17,27 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
 
@@ -30,12 +45,22 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // While a thread is applying a batch, the URIs its operations changed, to be notified once
+    // each when the batch commits.  Other threads' writes are notified as they happen.
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
+    // Today's weather for a location, which everything showing the weather reads after a sync
+    private final QueryCache mQueryCache = new QueryCache();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION_AND_DATE = 401;
+    static final int SYNC_METRICS = 500;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,46 +76,108 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    // Every column of an hourly row in table order, so a row can be written by position
+    private static final String sInsertHourlyStatement =
+            "INSERT INTO " + WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_TEMP + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    // Every column of a weather row but the _id, in the order WeatherBatch rows are bound
+    private static final String sInsertWeatherStatement =
+            "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+                    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherContract.WeatherEntry.COLUMN_DEGREES +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // Locations are looked up by setting through LocationIdCache, so the weather and hourly
+    // queries below filter on the location id column and only join the location table when
+    // the caller asked for its columns.  TestQueryPlans checks each of them against the indexes.
+
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date >= ? AND date <= ?
+    static final String sLocationIdAndDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //hourly.location_id = ? AND time >= ? AND time < ?
+    static final String sLocationIdAndTimeRangeSelection =
+            WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    // Columns only the location table has, which a query can't return without the join
+    private static final String[] sLocationOnlyColumns = {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID
+    };
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        String locationId = Long.toString(getLocationId(locationSetting));
 
         String[] selectionArgs;
         String selection;
 
         if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{locationId};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
-        }
-
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+            selectionArgs = new String[]{locationId, Long.toString(startDate)};
+            selection = sLocationIdWithStartDateSelection;
+        }
+
+        return queryWeather(projection, selection, selectionArgs, sortOrder);
     }
 
     private Cursor getWeatherByLocationSettingAndDate(
@@ -98,14 +185,105 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+        return queryWeather(projection, sLocationIdAndDaySelection,
+                new String[]{Long.toString(getLocationId(locationSetting)), Long.toString(date)},
+                sortOrder);
+    }
+
+    // Reading a cursor's rows into memory needs its column types, which only exist from Honeycomb
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Cursor getCachedWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String key = QueryCache.keyFor(uri, projection, sortOrder);
+        Cursor cursor = mQueryCache.get(key);
+        if (cursor != null) {
+            return cursor;
+        }
+        long generation = mQueryCache.getGeneration();
+        return mQueryCache.put(key, getWeatherByLocationSettingAndDate(uri, projection, sortOrder),
+                generation);
+    }
+
+    // Queries the weather table, joined to the location table only if the projection needs it
+    private Cursor queryWeather(String[] projection, String selection, String[] selectionArgs,
+                                String sortOrder) {
+        if (needsLocationColumns(projection)) {
+            return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                    projection, selection, selectionArgs, null, null, sortOrder);
+        }
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.WeatherEntry.TABLE_NAME,
+                projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    private Cursor getHourlyByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.HourlyEntry.getDateFromUri(uri);
+
+        // The day's steps are one range of the hourly table's (location, time) index
+        String[] selectionArgs = new String[]{Long.toString(getLocationId(locationSetting)),
+                Long.toString(date), Long.toString(date + DAY_IN_MILLIS)};
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+        }
+        if (needsLocationColumns(projection)) {
+            return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                    projection, sLocationIdAndTimeRangeSelection, selectionArgs, null, null,
+                    sortOrder);
+        }
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.HourlyEntry.TABLE_NAME,
+                projection, sLocationIdAndTimeRangeSelection, selectionArgs, null, null,
+                sortOrder);
+    }
+
+    /**
+     * Returns the id of the location with the given setting, from {@link LocationIdCache} when
+     * it knows it, or {@link LocationIdCache#NO_ID} if there is no such location, which matches
+     * no rows.
+     */
+    private long getLocationId(String locationSetting) {
+        long id = LocationIdCache.getId(locationSetting);
+        if (id != LocationIdCache.NO_ID) {
+            return id;
+        }
+        long generation = LocationIdCache.getGeneration();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                // Not cached; the location may be added any moment
+                return LocationIdCache.NO_ID;
+            }
+            id = cursor.getLong(0);
+            LocationIdCache.put(locationSetting, id, cursor.isNull(1) ? 0 : cursor.getInt(1),
+                    generation);
+            return id;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // A null projection asks for every column, the location's included
+    private static boolean needsLocationColumns(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (column.startsWith(WeatherContract.LocationEntry.TABLE_NAME + ".")) {
+                return true;
+            }
+            for (String locationColumn : sLocationOnlyColumns) {
+                if (locationColumn.equals(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /*
@@ -130,6 +308,11 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#", HOURLY_WITH_LOCATION_AND_DATE);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
         return matcher;
     }
 
@@ -164,6 +347,11 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -179,7 +367,12 @@ public class WeatherProvider extends ContentProvider {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    retCursor = getCachedWeatherByLocationSettingAndDate(uri, projection,
+                            sortOrder);
+                } else {
+                    retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                }
                 break;
             }
             // "weather/*"
@@ -213,6 +406,29 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*/*"
+            case HOURLY_WITH_LOCATION_AND_DATE: {
+                retCursor = getHourlyByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_metrics", always every column and newest first
+            case SYNC_METRICS: {
+                retCursor = SyncMetricsLog.query(getContext());
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -241,17 +457,23 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
             case LOCATION: {
+                long generation = LocationIdCache.getGeneration();
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Write through, so the sync that added it doesn't have to look it up again
+                Integer cityId = values.getAsInteger(WeatherContract.LocationEntry.COLUMN_CITY_ID);
+                LocationIdCache.put(
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING),
+                        _id, cityId == null ? 0 : cityId, generation);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -270,13 +492,20 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    LocationIdCache.invalidate();
+                }
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -305,12 +534,16 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    // Any row may have changed; the next lookups read them again
+                    LocationIdCache.invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +554,379 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                getContext().getContentResolver().notifyChange(uri, null);
+                int returnCount = bulkInsertWeather(db, WeatherBatch.fromValues(values));
+                notifyChange(uri);
                 return returnCount;
+            case HOURLY:
+                return bulkInsertHourly(uri, HourlyBatch.fromValues(values));
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Writes weather rows through one compiled statement in one transaction, binding each
+     * value as the primitive it is, so the SQL is parsed once for the batch and nothing is
+     * boxed on the way.  A row for a day we already have replaces it.
+     */
+    private static int bulkInsertWeather(SQLiteDatabase db, WeatherBatch batch) {
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(sInsertWeatherStatement);
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (insertWeather(insert, batch, i, DayMath.normalize(batch.getDate(i)))
+                            != -1) {
+                        returnCount++;
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Writes one row of a batch through the compiled insert statement.
+     *
+     * @param date the row's date, normalized
+     * @return the _id of the row, or -1 if it broke a constraint
+     */
+    private static long insertWeather(SQLiteStatement insert, WeatherBatch batch, int row,
+                                      long date) {
+        insert.bindLong(1, batch.getLocationId(row));
+        insert.bindLong(2, date);
+        insert.bindLong(3, batch.getWeatherId(row));
+        if (batch.getDescription(row) == null) {
+            insert.bindNull(4);
+        } else {
+            insert.bindString(4, batch.getDescription(row));
+        }
+        insert.bindDouble(5, batch.getMinTemp(row));
+        insert.bindDouble(6, batch.getMaxTemp(row));
+        insert.bindDouble(7, batch.getHumidity(row));
+        insert.bindDouble(8, batch.getPressure(row));
+        insert.bindDouble(9, batch.getWindSpeed(row));
+        insert.bindDouble(10, batch.getDegrees(row));
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            // As SQLiteDatabase.insert does, skip the row rather than fail the batch
+            return -1;
+        }
+    }
+
+    /**
+     * Writes hourly rows through one compiled statement in one transaction, binding each
+     * value as the primitive it is, as for the weather.  A sync writes about 40 of them per
+     * location, so the SQL is parsed once for the batch rather than once per row.  A row for a
+     * step we already have replaces it.
+     */
+    private int bulkInsertHourly(Uri uri, HourlyBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(sInsertHourlyStatement);
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    insert.bindLong(1, batch.getLocationId(i));
+                    insert.bindLong(2, batch.getTime(i));
+                    insert.bindLong(3, batch.getWeatherId(i));
+                    insert.bindDouble(4, batch.getTemp(i));
+                    insert.bindLong(5, batch.getHumidity(i));
+                    insert.bindDouble(6, batch.getWindSpeed(i));
+                    if (insert.executeInsert() != -1) {
+                        returnCount++;
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (returnCount > 0) {
+            notifyChange(uri);
+        }
+        return returnCount;
+    }
+
+    /**
+     * Applies the operations in one transaction, so they are stored all together or not at
+     * all, and observers hear of each changed URI once, after the commit, instead of once per
+     * operation.  A sync's writes would otherwise have every open loader query again for each.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results;
+        boolean successful = false;
+        mPendingNotifications.set(changedUris);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            if (!changedUris.isEmpty()) {
+                // Results read while the batch was being applied may hold rows it replaced
+                mQueryCache.invalidate();
+            }
+            if (!successful) {
+                // A location inserted by the batch may have been cached with an id that was
+                // rolled back
+                LocationIdCache.invalidate();
+            }
+        }
+        for (Uri uri : changedUris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    /**
+     * Tells observers the data under the URI changed, or, inside applyBatch, remembers to tell
+     * them once the batch commits.  Every write path calls it once its write has committed,
+     * which is when cached results of the weather and location tables go stale.
+     */
+    private void notifyChange(Uri uri) {
+        if (!WeatherContract.PATH_HOURLY.equals(uri.getPathSegments().get(0))) {
+            mQueryCache.invalidate();
+        }
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.WeatherEntry.METHOD_UPSERT.equals(method)) {
+            extras.setClassLoader(WeatherBatch.class.getClassLoader());
+            WeatherBatch batch = extras.getParcelable(WeatherContract.WeatherEntry.EXTRA_BATCH);
+            if (batch == null) {
+                Parcelable[] parcelables =
+                        extras.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES);
+                ContentValues[] values = new ContentValues[parcelables.length];
+                for (int i = 0; i < parcelables.length; i++) {
+                    values[i] = (ContentValues) parcelables[i];
+                }
+                batch = WeatherBatch.fromValues(values);
+            }
+            return upsertWeather(batch);
+        } else if (WeatherContract.HourlyEntry.METHOD_INSERT.equals(method)) {
+            extras.setClassLoader(HourlyBatch.class.getClassLoader());
+            HourlyBatch batch = extras.getParcelable(WeatherContract.HourlyEntry.EXTRA_BATCH);
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.HourlyEntry.EXTRA_INSERTED_COUNT,
+                    bulkInsertHourly(WeatherContract.HourlyEntry.CONTENT_URI, batch));
+            return result;
+        } else if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.EXTRA_WAL_PAGES, mOpenHelper.checkpoint());
+            return result;
+        } else if (WeatherContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.EXTRA_CACHE_HITS, mQueryCache.getHitCount());
+            result.putLong(WeatherContract.EXTRA_CACHE_MISSES, mQueryCache.getMissCount());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Writes the rows in one transaction, inserting the days we don't have yet and updating
+     * only the changed columns of the days we do.  Observers are told once, and only if
+     * something was written.  New days go through the compiled insert statement, and the
+     * stored days are found by binary search on their dates, so a batch of thousands of rows
+     * costs about as much per row as one of a few.
+     */
+    private Bundle upsertWeather(WeatherBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int size = batch.size();
+        long[] insertedIds = new long[size];
+        long[] updatedIds = new long[size];
+        int insertedCount = 0;
+        int updatedCount = 0;
+        int unchangedCount = 0;
+
+        long[] dates = new long[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = DayMath.normalize(batch.getDate(i));
+        }
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(sInsertWeatherStatement);
+            try {
+                // A batch may hold several locations; each one's stored rows are read with
+                // one query
+                boolean[] done = new boolean[size];
+                for (int first = 0; first < size; first++) {
+                    if (done[first]) {
+                        continue;
+                    }
+                    long locationId = batch.getLocationId(first);
+                    long minDate = Long.MAX_VALUE;
+                    long maxDate = Long.MIN_VALUE;
+                    for (int i = first; i < size; i++) {
+                        if (batch.getLocationId(i) == locationId) {
+                            minDate = Math.min(minDate, dates[i]);
+                            maxDate = Math.max(maxDate, dates[i]);
+                        }
+                    }
+
+                    // A day given twice would be inserted twice, the second insert replacing
+                    // the first and leaving its _id behind in the result, so the last row for
+                    // each day is the only one written
+                    HashSet<Long> seenDates = new HashSet<Long>();
+                    for (int i = size - 1; i >= first; i--) {
+                        if (!done[i] && batch.getLocationId(i) == locationId
+                                && !seenDates.add(dates[i])) {
+                            done[i] = true;
+                        }
+                    }
+
+                    Cursor stored = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            sLocationIdAndDateRangeSelection,
+                            new String[]{Long.toString(locationId), Long.toString(minDate),
+                                    Long.toString(maxDate)},
+                            null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                    try {
+                        int idIndex = stored.getColumnIndex(WeatherContract.WeatherEntry._ID);
+                        int dateIndex =
+                                stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+                        // One row per day and location, so the dates are unique and sorted
+                        long[] storedDates = new long[stored.getCount()];
+                        for (int i = 0; stored.moveToPosition(i); i++) {
+                            storedDates[i] = stored.getLong(dateIndex);
+                        }
+
+                        for (int i = first; i < size; i++) {
+                            if (done[i] || batch.getLocationId(i) != locationId) {
+                                continue;
+                            }
+                            done[i] = true;
+                            int position = Arrays.binarySearch(storedDates, dates[i]);
+                            if (position < 0) {
+                                long _id = insertWeather(insert, batch, i, dates[i]);
+                                if (_id != -1) {
+                                    insertedIds[insertedCount++] = _id;
+                                }
+                                continue;
+                            }
+
+                            stored.moveToPosition(position);
+                            if (isSameWeather(stored, batch, i)) {
+                                unchangedCount++;
+                                continue;
+                            }
+                            ContentValues values = batch.getValues(i);
+                            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, dates[i]);
+                            long _id = stored.getLong(idIndex);
+                            db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                                    getChangedColumns(stored, values),
+                                    WeatherContract.WeatherEntry._ID + " = ?",
+                                    new String[]{Long.toString(_id)});
+                            updatedIds[updatedCount++] = _id;
+                        }
+                    } finally {
+                        stored.close();
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (insertedCount > 0 || updatedCount > 0) {
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(WeatherContract.WeatherEntry.EXTRA_INSERTED_IDS,
+                Arrays.copyOf(insertedIds, insertedCount));
+        result.putLongArray(WeatherContract.WeatherEntry.EXTRA_UPDATED_IDS,
+                Arrays.copyOf(updatedIds, updatedCount));
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED_COUNT, unchangedCount);
+        return result;
+    }
+
+    /**
+     * Returns whether the row the cursor is on already holds a row of the batch, compared as
+     * the types they are stored with.  Most days of a forecast don't change between syncs, so
+     * this spares them building ContentValues.
+     */
+    private static boolean isSameWeather(Cursor stored, WeatherBatch batch, int row) {
+        return stored.getInt(stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID))
+                        == batch.getWeatherId(row)
+                && TextUtils.equals(batch.getDescription(row), stored.getString(
+                        stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        batch.getMinTemp(row))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        batch.getMaxTemp(row))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                        batch.getHumidity(row))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                        batch.getPressure(row))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                        batch.getWindSpeed(row))
+                && isSame(stored, WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                        batch.getDegrees(row));
+    }
+
+    private static boolean isSame(Cursor stored, String column, double value) {
+        return stored.getDouble(stored.getColumnIndex(column)) == value;
+    }
+
+    /**
+     * Returns the columns of the new values that differ from the row the cursor is on, compared
+     * as the type they are stored with.
+     */
+    private static ContentValues getChangedColumns(Cursor stored, ContentValues values) {
+        ContentValues changed = new ContentValues(values);
+        for (String column : values.keySet()) {
+            int index = stored.getColumnIndex(column);
+            Object value = values.get(column);
+            boolean same;
+            if (value == null) {
+                same = stored.isNull(index);
+            } else if (stored.isNull(index)) {
+                same = false;
+            } else if (value instanceof Double || value instanceof Float) {
+                same = stored.getDouble(index) == ((Number) value).doubleValue();
+            } else if (value instanceof Number) {
+                same = stored.getLong(index) == ((Number) value).longValue();
+            } else if (value instanceof Boolean) {
+                same = stored.getLong(index) == ((Boolean) value ? 1 : 0);
+            } else {
+                same = value.toString().equals(stored.getString(index));
+            }
+            if (same) {
+                changed.remove(column);
+            }
+        }
+        return changed;
+    }
+
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
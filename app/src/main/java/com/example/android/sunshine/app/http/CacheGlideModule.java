@@ -0,0 +1,25 @@
+package com.example.android.sunshine.app.http;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.module.GlideModule;
+
+import java.io.InputStream;
+
+/**
+ * Has Glide download through the {@link HttpDiskCache}.  Declared in the manifest, where Glide
+ * looks for its modules.
+ */
+public class CacheGlideModule implements GlideModule {
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new CachingUrlLoader.Factory());
+    }
+}
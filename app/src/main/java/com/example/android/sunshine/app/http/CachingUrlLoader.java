@@ -0,0 +1,81 @@
+package com.example.android.sunshine.app.http;
+
+import android.content.Context;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads Glide's URLs through the {@link HttpDiskCache}.  Glide's own loader turns off the
+ * platform's HTTP cache, and its disk cache only holds the decoded and resized images, so
+ * without this every new size of an art pack image was downloaded again.
+ */
+public class CachingUrlLoader implements ModelLoader<GlideUrl, InputStream> {
+    private final HttpDiskCache mCache;
+
+    public CachingUrlLoader(HttpDiskCache cache) {
+        mCache = cache;
+    }
+
+    @Override
+    public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width, int height) {
+        return new Fetcher(mCache, model);
+    }
+
+    public static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+        @Override
+        public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                         GenericLoaderFactory factories) {
+            return new CachingUrlLoader(HttpDiskCache.getInstance(context));
+        }
+
+        @Override
+        public void teardown() {
+        }
+    }
+
+    private static class Fetcher implements DataFetcher<InputStream> {
+        private final HttpDiskCache mCache;
+        private final GlideUrl mUrl;
+        private InputStream mStream;
+
+        Fetcher(HttpDiskCache cache, GlideUrl url) {
+            mCache = cache;
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            mStream = mCache.open(mUrl.toString(), HttpDiskCache.TYPE_IMAGE);
+            return mStream;
+        }
+
+        @Override
+        public void cleanup() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // nothing was left to read
+                }
+            }
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            // Let a download in progress finish; the next load of the image finds it cached
+        }
+    }
+}
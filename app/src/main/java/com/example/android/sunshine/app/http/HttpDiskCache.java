@@ -0,0 +1,845 @@
+package com.example.android.sunshine.app.http;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An on-disk cache of HTTP responses shared by everything in the app that downloads: the sync
+ * for forecast JSON, Glide for the art pack and Muzei for the wallpapers.  Muzei downloads in
+ * its own process, so it is handed a content URI of ours to read the cached image from.
+ *
+ * How long a response stays fresh depends on its Content-Type: forecasts change every few
+ * minutes at most, the images never do.  A response of any other type, or one the server asks
+ * not to be stored, is passed through uncached.  Once the cache outgrows its size the entries
+ * used least recently are removed, except for one image that can be {@link #pin pinned}: the
+ * wallpaper Muzei is showing, which it may read again at any time.
+ *
+ * Each entry is one file named after the hash of its URL: its headers and expiry, then the
+ * body.  It is written under a temporary name and renamed into place in one step, so an entry
+ * is either the old response or the new one, and one that was being written when the process
+ * died is never read.  The order of use is kept in memory and stored on disk as the
+ * modification time of the entry.
+ *
+ * Hits and misses are counted by type, in memory, and saved to their own preferences file
+ * every {@link #STATS_SAVE_COUNT} counts or {@link #STATS_SAVE_INTERVAL_MILLIS}, whichever
+ * comes first, rather than on every lookup.  The same file remembers the pinned entry.
+ */
+public class HttpDiskCache {
+    private static final String LOG_TAG = HttpDiskCache.class.getSimpleName();
+
+    static final String DIR_NAME = "http";
+
+    static final long MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+    // A response bigger than this would push most of the others out
+    static final long MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+
+    static final long JSON_MAX_AGE_MILLIS = 5 * 60 * 1000;
+    static final long IMAGE_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    // What the caller expects to get, for the statistics
+    public static final String TYPE_JSON = "json";
+    public static final String TYPE_IMAGE = "image";
+
+    private static final String PREFS_NAME = "http_cache_stats";
+
+    public static final String KEY_HITS = "hits:";
+    public static final String KEY_MISSES = "misses:";
+    public static final String KEY_EVICTIONS = "evictions";
+    private static final String KEY_PINNED = "pinned";
+
+    static final int STATS_SAVE_COUNT = 32;
+    static final long STATS_SAVE_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+    private static final int MAX_REDIRECTS = 5;
+
+    // Bumped whenever the layout of an entry changes; older entries are thrown away
+    private static final int MAGIC = 0x48545450;
+    private static final int VERSION = 2;
+
+    // The magic, the version, the body's length and the size of the headers that follow
+    private static final int LENGTH_OFFSET = 8;
+    private static final int PREFIX_BYTES = 20;
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static HttpDiskCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final SharedPreferences mStats;
+
+    // By key, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mSize;
+    private boolean mLoaded;
+    // The key of the entry that is never removed, or null
+    private String mPinned;
+
+    // Read from the preferences on first use
+    private HashMap<String, Long> mCounts;
+    private int mUnsavedCounts;
+    private long mCountsSavedAt;
+
+    /**
+     * Returns the app's cache, in its cache directory.  Cheap enough for the UI thread; the
+     * directory is only read on first use.
+     */
+    public static synchronized HttpDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new HttpDiskCache(new File(appContext.getCacheDir(), DIR_NAME),
+                    MAX_SIZE_BYTES, getPreferences(appContext));
+        }
+        return sInstance;
+    }
+
+    public static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    HttpDiskCache(File directory, long maxSize, SharedPreferences stats) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mStats = stats;
+    }
+
+    /**
+     * Returns the fresh response stored for a URL, or null, and counts a hit or a miss.
+     *
+     * @param type TYPE_JSON or TYPE_IMAGE, to count the hit or miss under
+     */
+    public Snapshot get(String url, String type) {
+        return get(url, type, System.currentTimeMillis());
+    }
+
+    synchronized Snapshot get(String url, String type, long now) {
+        String key = keyFor(url);
+        Entry entry = getFresh(key, url, now);
+        if (entry == null) {
+            count(KEY_MISSES + type, 1, now);
+            return null;
+        }
+        getEntryFile(key).setLastModified(now);
+        count(KEY_HITS + type, 1, now);
+        return new Snapshot(entry, getEntryFile(key));
+    }
+
+    /**
+     * Returns whether a fresh response is stored for a URL, without counting a hit or miss.
+     */
+    public synchronized boolean contains(String url) {
+        return getFresh(keyFor(url), url, System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * Keeps the image stored for a URL, however old it gets and however full the cache, until
+     * another is pinned in its place.  This should not be called from the UI thread because it
+     * uses commit to write to the shared preferences.
+     *
+     * @return the key to read it back with from {@link #getPinned}, or null if there is no
+     *         image stored for the URL
+     */
+    public synchronized String pin(String url) {
+        ensureLoaded();
+        String key = keyFor(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.url.equals(url) || !isImage(entry.contentType)) {
+            return null;
+        }
+        if (!key.equals(mPinned)) {
+            mPinned = key;
+            mStats.edit().putString(KEY_PINNED, key).commit();
+            // The image pinned before may have been all that kept the cache under its size
+            trimToSize();
+        }
+        return key;
+    }
+
+    /**
+     * Returns the pinned image, stale or not, if it is the one with the given key, and null
+     * otherwise.  No hit or miss is counted.
+     */
+    public synchronized Snapshot getPinned(String key) {
+        ensureLoaded();
+        if (key == null || !key.equals(mPinned)) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        return entry == null ? null : new Snapshot(entry, getEntryFile(key));
+    }
+
+    /**
+     * Starts storing the response of a connection, or returns null if it shouldn't be: it
+     * isn't a 200, its type isn't one we cache, the server asks us not to, or it is too big.
+     *
+     * @param url the URL that was asked for, which may differ from the connection's after a
+     *            redirect
+     */
+    public Editor edit(String url, HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase(Locale.US);
+            if (directives.contains("no-store") || directives.contains("no-cache")) {
+                return null;
+            }
+        }
+        return edit(url, connection.getContentType(), connection.getContentEncoding(),
+                connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"),
+                connection.getContentLength(), System.currentTimeMillis());
+    }
+
+    /**
+     * @param length the Content-Length, or -1 if it wasn't given
+     */
+    Editor edit(String url, String contentType, String contentEncoding, String eTag,
+                String lastModified, long length, long now) throws IOException {
+        long maxAge = getMaxAgeMillis(contentType);
+        if (maxAge <= 0 || length > MAX_ENTRY_BYTES) {
+            return null;
+        }
+        Entry entry = new Entry(url, contentType, contentEncoding, eTag, lastModified,
+                now, now + maxAge);
+        synchronized (this) {
+            ensureLoaded();
+        }
+        return new Editor(keyFor(url), entry);
+    }
+
+    /**
+     * Opens the body of a URL, from the cache if it is there and from the network otherwise.
+     * A response from the network is stored in full before it is returned, unless it can't be
+     * cached, in which case it is read straight off the connection.  Redirects are followed,
+     * including from http to https, which HttpURLConnection won't do by itself.  Does network
+     * and file I/O, so never on the UI thread.
+     *
+     * @param type TYPE_JSON or TYPE_IMAGE, to count the hit or miss under
+     */
+    public InputStream open(String url, String type) throws IOException {
+        Snapshot snapshot = get(url, type);
+        if (snapshot != null) {
+            return snapshot.open();
+        }
+        InputStream in = download(url, true);
+        if (in == null) {
+            // Turned out too big to keep once it was downloaded
+            in = download(url, false);
+        }
+        return in;
+    }
+
+    /**
+     * Returns the body of the response for a URL, or null if it was supposed to be stored but
+     * couldn't be.
+     */
+    private InputStream download(String url, boolean store) throws IOException {
+        URL current = new URL(url);
+        for (int redirects = 0; ; redirects++) {
+            final HttpURLConnection connection = (HttpURLConnection) current.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setInstanceFollowRedirects(false);
+            // This is the cache, the platform's would only keep a second copy
+            connection.setUseCaches(false);
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode();
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+
+            if (isRedirect(responseCode)) {
+                String location = connection.getHeaderField("Location");
+                connection.disconnect();
+                if (location == null || redirects == MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects, or none given, for " + url);
+                }
+                current = new URL(current, location);
+                continue;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("HTTP " + responseCode + " for " + url);
+            }
+
+            Editor editor = store ? edit(url, connection) : null;
+            InputStream body = connection.getInputStream();
+            if (editor == null) {
+                return new FilterInputStream(body) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            connection.disconnect();
+                        }
+                    }
+                };
+            }
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                OutputStream out = editor.getBody();
+                while ((read = body.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                editor.abort();
+                throw e;
+            } finally {
+                body.close();
+            }
+            Snapshot snapshot = editor.commit();
+            return snapshot == null ? null : snapshot.open();
+        }
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_MOVED_PERM
+                || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+                || responseCode == HttpURLConnection.HTTP_SEE_OTHER
+                || responseCode == 307 || responseCode == 308;
+    }
+
+    /**
+     * Returns how long a response of a Content-Type stays fresh, or 0 if it isn't cached.
+     */
+    static long getMaxAgeMillis(String contentType) {
+        if (contentType == null) {
+            return 0;
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        if (type.startsWith("application/json")) {
+            return JSON_MAX_AGE_MILLIS;
+        } else if (isImage(type)) {
+            return IMAGE_MAX_AGE_MILLIS;
+        }
+        return 0;
+    }
+
+    private static boolean isImage(String contentType) {
+        return contentType != null && contentType.toLowerCase(Locale.US).startsWith("image/");
+    }
+
+    public synchronized long getHitCount(String type) {
+        return getCount(KEY_HITS + type);
+    }
+
+    public synchronized long getMissCount(String type) {
+        return getCount(KEY_MISSES + type);
+    }
+
+    public synchronized long getEvictionCount() {
+        return getCount(KEY_EVICTIONS);
+    }
+
+    /**
+     * Returns how many bytes the stored bodies take.
+     */
+    public synchronized long getSize() {
+        ensureLoaded();
+        return mSize;
+    }
+
+    /**
+     * Removes every entry and resets the statistics.  Only meant for tests.
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+        mLoaded = false;
+        mPinned = null;
+        mCounts = new HashMap<String, Long>();
+        mUnsavedCounts = 0;
+        mStats.edit().clear().commit();
+    }
+
+    private Entry getFresh(String key, String url, long now) {
+        ensureLoaded();
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.url.equals(url)) {
+            return null;
+        }
+        // A clock that went backwards can't vouch for it either
+        if (now >= entry.expiresAt || now < entry.storedAt) {
+            if (!key.equals(mPinned)) {
+                remove(key);
+            }
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(String key, Entry entry) {
+        Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mSize -= previous.length;
+        }
+        mSize += entry.length;
+        trimToSize();
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.length;
+        }
+        getEntryFile(key).delete();
+    }
+
+    private void trimToSize() {
+        int evicted = 0;
+        // Looking an entry up would move it to the end, so walk the entries themselves
+        Iterator<Map.Entry<String, Entry>> entries = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && entries.hasNext()) {
+            Map.Entry<String, Entry> eldest = entries.next();
+            String key = eldest.getKey();
+            if (key.equals(mPinned)) {
+                continue;
+            }
+            mSize -= eldest.getValue().length;
+            entries.remove();
+            getEntryFile(key).delete();
+            evicted++;
+        }
+        if (evicted > 0) {
+            count(KEY_EVICTIONS, evicted, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Reads the entries on disk, in the order they were last used, and throws away anything
+     * that isn't a whole entry.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mPinned = mStats.getString(KEY_PINNED, null);
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                entries.add(file);
+            } else {
+                // Half written, or left from an older layout
+                file.delete();
+            }
+        }
+        File[] sorted = entries.toArray(new File[entries.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long difference = lhs.lastModified() - rhs.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : sorted) {
+            String name = file.getName();
+            String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+            Entry entry = readEntry(file);
+            if (entry == null || file.length() != entry.offset + entry.length) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(key, entry);
+            mSize += entry.length;
+        }
+        trimToSize();
+    }
+
+    private static Entry readEntry(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 512));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long length = in.readLong();
+            int headersSize = in.readInt();
+            Entry entry = new Entry(in.readUTF(), readNullable(in), readNullable(in),
+                    readNullable(in), readNullable(in), in.readLong(), in.readLong());
+            entry.length = length;
+            entry.offset = PREFIX_BYTES + headersSize;
+            return entry;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable cache entry " + file.getName());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes what goes before the body, with the body's length left as 0.
+     *
+     * @return where the body starts
+     */
+    private static int writeHeaders(OutputStream out, Entry entry) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream(256);
+        DataOutputStream headersOut = new DataOutputStream(headers);
+        headersOut.writeUTF(entry.url);
+        writeNullable(headersOut, entry.contentType);
+        writeNullable(headersOut, entry.contentEncoding);
+        writeNullable(headersOut, entry.eTag);
+        writeNullable(headersOut, entry.lastModified);
+        headersOut.writeLong(entry.storedAt);
+        headersOut.writeLong(entry.expiresAt);
+
+        DataOutputStream prefix = new DataOutputStream(out);
+        prefix.writeInt(MAGIC);
+        prefix.writeInt(VERSION);
+        prefix.writeLong(0);
+        prefix.writeInt(headers.size());
+        headers.writeTo(out);
+        return PREFIX_BYTES + headers.size();
+    }
+
+    private static void writeLength(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(LENGTH_OFFSET);
+            out.writeLong(length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    private long getCount(String key) {
+        Long count = getCounts().get(key);
+        return count == null ? 0 : count;
+    }
+
+    private void count(String key, long delta, long now) {
+        getCounts().put(key, getCount(key) + delta);
+        mUnsavedCounts++;
+        // A clock that went backwards saves them too, rather than holding them back
+        if (mUnsavedCounts >= STATS_SAVE_COUNT || now < mCountsSavedAt
+                || now - mCountsSavedAt >= STATS_SAVE_INTERVAL_MILLIS) {
+            SharedPreferences.Editor editor = mStats.edit();
+            for (Map.Entry<String, Long> count : mCounts.entrySet()) {
+                editor.putLong(count.getKey(), count.getValue());
+            }
+            editor.apply();
+            mUnsavedCounts = 0;
+            mCountsSavedAt = now;
+        }
+    }
+
+    private HashMap<String, Long> getCounts() {
+        if (mCounts == null) {
+            mCounts = new HashMap<String, Long>();
+            for (Map.Entry<String, ?> saved : mStats.getAll().entrySet()) {
+                if (saved.getValue() instanceof Long) {
+                    mCounts.put(saved.getKey(), (Long) saved.getValue());
+                }
+            }
+        }
+        return mCounts;
+    }
+
+    static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every platform has MD5 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was left to read
+            }
+        }
+    }
+
+    private static class Entry {
+        final String url;
+        final String contentType;
+        final String contentEncoding;
+        final String eTag;
+        final String lastModified;
+        final long storedAt;
+        final long expiresAt;
+        // Where the body starts in the entry's file, and how long it is
+        int offset;
+        long length;
+
+        Entry(String url, String contentType, String contentEncoding, String eTag,
+              String lastModified, long storedAt, long expiresAt) {
+            this.url = url;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A stored response.  Its body stays readable once opened, even if the entry is evicted or
+     * replaced.
+     */
+    public static class Snapshot {
+        private final Entry mEntry;
+        private final File mFile;
+
+        private Snapshot(Entry entry, File file) {
+            mEntry = entry;
+            mFile = file;
+        }
+
+        public String getContentType() {
+            return mEntry.contentType;
+        }
+
+        public String getContentEncoding() {
+            return mEntry.contentEncoding;
+        }
+
+        public String getETag() {
+            return mEntry.eTag;
+        }
+
+        public String getLastModified() {
+            return mEntry.lastModified;
+        }
+
+        public long getLength() {
+            return mEntry.length;
+        }
+
+        /**
+         * Returns the file the body is in, starting at {@link #getOffset()}.
+         */
+        public File getFile() {
+            return mFile;
+        }
+
+        public long getOffset() {
+            return mEntry.offset;
+        }
+
+        public InputStream open() throws IOException {
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                in.getChannel().position(mEntry.offset);
+            } catch (IOException e) {
+                closeQuietly(in);
+                throw e;
+            }
+            return in;
+        }
+    }
+
+    /**
+     * A response being stored.  Nothing is visible until {@link #commit()}, and
+     * {@link #abort()} leaves the cache as it was.
+     */
+    public class Editor {
+        private final String mKey;
+        private final Entry mEntry;
+        private final File mTempFile;
+        private final OutputStream mBody;
+        private boolean mDone;
+
+        private Editor(String key, Entry entry) throws IOException {
+            mKey = key;
+            mEntry = entry;
+            mTempFile = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+            mBody = new BufferedOutputStream(new FileOutputStream(mTempFile));
+            try {
+                mEntry.offset = writeHeaders(mBody, mEntry);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        public OutputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns a stream that copies whatever is read from a source into the body, commits
+         * once the source has been read to its end, and aborts if it is closed before that.
+         */
+        public InputStream copyWhileReading(InputStream source) {
+            return new FilterInputStream(source) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        commitQuietly();
+                    } else {
+                        writeQuietly(new byte[] {(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read == -1) {
+                        commitQuietly();
+                    } else {
+                        writeQuietly(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    abort();
+                    super.close();
+                }
+            };
+        }
+
+        /**
+         * Makes the response visible, evicting others if the cache has outgrown its size, and
+         * returns it.  Returns null if it was too big to keep.
+         */
+        public Snapshot commit() throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("Already committed or aborted");
+            }
+            mDone = true;
+            try {
+                mBody.close();
+                mEntry.length = mTempFile.length() - mEntry.offset;
+                if (mEntry.length > MAX_ENTRY_BYTES) {
+                    mTempFile.delete();
+                    return null;
+                }
+                writeLength(mTempFile, mEntry.length);
+                File file = getEntryFile(mKey);
+                synchronized (HttpDiskCache.this) {
+                    // A reader may still have the old entry open; it keeps reading that one
+                    if (!mTempFile.renameTo(file)) {
+                        remove(mKey);
+                        throw new IOException("Couldn't store the response for " + mEntry.url);
+                    }
+                    put(mKey, mEntry);
+                }
+                return new Snapshot(mEntry, file);
+            } catch (IOException e) {
+                mTempFile.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Throws away what was written.  Does nothing once committed.
+         */
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                // it is deleted anyway
+            }
+            mTempFile.delete();
+        }
+
+        private void writeQuietly(byte[] buffer, int offset, int count) {
+            if (mDone) {
+                return;
+            }
+            try {
+                mBody.write(buffer, offset, count);
+            } catch (IOException e) {
+                // Out of space, say; the reader shouldn't suffer for it
+                Log.w(LOG_TAG, "Couldn't cache " + mEntry.url, e);
+                abort();
+            }
+        }
+
+        private void commitQuietly() {
+            if (mDone) {
+                return;
+            }
+            try {
+                commit();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't cache " + mEntry.url, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.muzei;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.http.HttpDiskCache;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Hands Muzei the wallpaper from our {@link HttpDiskCache}.  Muzei loads artwork in its own
+ * process, where our cache can't be reached, so we publish a URI of this provider rather than
+ * the image's URL.  Only the image the app pinned last is served, read-only, under the key
+ * the cache gave it; nothing else in the cache, such as the forecasts, can be asked for.
+ */
+public class ArtworkProvider extends ContentProvider {
+
+    /**
+     * Returns the URI Muzei can read the image pinned under a key from.
+     *
+     * @param key what {@link HttpDiskCache#pin} returned
+     */
+    public static Uri buildArtworkUri(Context context, String key) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getString(R.string.artwork_authority))
+                .appendPath(key)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Artwork is read-only: " + uri);
+        }
+        HttpDiskCache.Snapshot snapshot =
+                HttpDiskCache.getInstance(getContext()).getPinned(uri.getLastPathSegment());
+        if (snapshot == null) {
+            // Not the wallpaper being shown, or not one of ours at all
+            throw new FileNotFoundException("No artwork for " + uri);
+        }
+        // The image is stored after its headers, in the same file
+        ParcelFileDescriptor fd = ParcelFileDescriptor.open(snapshot.getFile(),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        return new AssetFileDescriptor(fd, snapshot.getOffset(), snapshot.getLength());
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "image/*";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        throw new UnsupportedOperationException("Unknown uri: " + uri);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Unknown uri: " + uri);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Unknown uri: " + uri);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Unknown uri: " + uri);
+    }
+}
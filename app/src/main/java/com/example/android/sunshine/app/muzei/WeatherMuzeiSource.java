@@ -18,18 +18,26 @@ package com.example.android.sunshine.app.muzei;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.http.HttpDiskCache;
+import com.example.android.sunshine.app.sync.ForecastSnapshot;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.MuzeiArtSource;
 
+import java.io.IOException;
+
 /**
  * Muzei source that changes your background based on the current weather conditions
  */
 public class WeatherMuzeiSource extends MuzeiArtSource {
+    private static final String LOG_TAG = WeatherMuzeiSource.class.getSimpleName();
+
     private static final String[] FORECAST_COLUMNS = new String[]{
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
@@ -48,12 +56,23 @@ public class WeatherMuzeiSource extends MuzeiArtSource {
         boolean dataUpdated = intent != null &&
                 SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction());
         if (dataUpdated && isEnabled()) {
-            onUpdate(UPDATE_REASON_OTHER);
+            ForecastSnapshot snapshot = ForecastSnapshot.fromIntent(intent);
+            String location = Utility.getPreferredLocation(this);
+            if (snapshot != null && snapshot.isFor(location)) {
+                // The sync sent today's weather along, no need to query for it
+                publishWeather(location, snapshot.weatherId, snapshot.description);
+            } else {
+                onUpdate(UPDATE_REASON_OTHER);
+            }
         }
     }
 
     @Override
     protected void onUpdate(int reason) {
+        if (reason != UPDATE_REASON_OTHER) {
+            // Muzei is asking for new art; make sure the next weather it gets is current
+            SyncScheduler.syncIfStale(this);
+        }
         String location = Utility.getPreferredLocation(this);
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 location, System.currentTimeMillis());
@@ -62,18 +81,39 @@ public class WeatherMuzeiSource extends MuzeiArtSource {
         if (cursor.moveToFirst()) {
             int weatherId = cursor.getInt(INDEX_WEATHER_ID);
             String desc = cursor.getString(INDEX_SHORT_DESC);
+            publishWeather(location, weatherId, desc);
+        }
+        cursor.close();
+    }
 
-            String imageUrl = Utility.getImageUrlForWeatherCondition(weatherId);
-            // Only publish a new wallpaper if we have a valid image
-            if (imageUrl != null) {
-                publishArtwork(new Artwork.Builder()
-                        .imageUri(Uri.parse(imageUrl))
-                        .title(desc)
-                        .byline(location)
-                        .viewIntent(new Intent(this, MainActivity.class))
-                        .build());
+    private void publishWeather(String location, int weatherId, String desc) {
+        String imageUrl = Utility.getImageUrlForWeatherCondition(weatherId);
+        // Only publish a new wallpaper if we have a valid image
+        if (imageUrl != null) {
+            publishArtwork(new Artwork.Builder()
+                    .imageUri(getCachedImageUri(imageUrl))
+                    .title(desc)
+                    .byline(location)
+                    .viewIntent(new Intent(this, MainActivity.class))
+                    .build());
+        }
+    }
+
+    /**
+     * Downloads the image into our cache unless it is already there, and returns the URI
+     * Muzei should read it from: ours if it is cached, the image's own URL otherwise.  The
+     * image is pinned, so it stays in the cache for as long as Muzei shows it.
+     */
+    private Uri getCachedImageUri(String imageUrl) {
+        HttpDiskCache cache = HttpDiskCache.getInstance(this);
+        if (!cache.contains(imageUrl)) {
+            try {
+                cache.open(imageUrl, HttpDiskCache.TYPE_IMAGE).close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't cache " + imageUrl + ", Muzei will download it", e);
             }
         }
-        cursor.close();
+        String key = cache.pin(imageUrl);
+        return key != null ? ArtworkProvider.buildArtworkUri(this, key) : Uri.parse(imageUrl);
     }
 }
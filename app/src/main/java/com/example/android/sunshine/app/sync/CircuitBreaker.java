@@ -0,0 +1,190 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Stops the app from talking to the weather server while it is down.  After
+ * {@link #FAILURE_THRESHOLD} requests in a row could not reach the server, the breaker opens and
+ * no request is made until its open period has passed.  Then a single request is let through as
+ * a probe: if it gets an answer the breaker closes, and if not it opens again for twice as long,
+ * up to {@link #MAX_OPEN_MILLIS}.  A refresh the user asks for is let through as the probe
+ * straight away, so it never just does nothing.
+ *
+ * The state lives in its own preferences file, so it holds across process restarts and is
+ * respected by everything that asks for a sync, not just the sync adapter.
+ */
+public class CircuitBreaker {
+    private static final String LOG_TAG = CircuitBreaker.class.getSimpleName();
+
+    private static final String PREFS_NAME = "circuit_breaker";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_OPEN_UNTIL = "open_until";
+    private static final String KEY_OPEN_MILLIS = "open_millis";
+    private static final String KEY_PROBE_STARTED = "probe_started";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    // Consecutive requests that must fail before the breaker opens
+    static final int FAILURE_THRESHOLD = 5;
+
+    static final long MIN_OPEN_MILLIS = 5 * 60 * 1000;
+    static final long MAX_OPEN_MILLIS = SunshineSyncAdapter.SYNC_INTERVAL * 1000L;
+
+    // A probe that hasn't reported by then probably died with its sync; let another one through
+    private static final long PROBE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    // Every instance shares the one preferences file
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+    private final Random mRandom = new Random();
+
+    CircuitBreaker(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns whether a request may be made now.  When the open period has passed, the first
+     * caller is let through as the probe and the others are turned away until it reports back
+     * through {@link #onSuccess} or {@link #onFailure}.
+     */
+    boolean allowRequest() {
+        return allowRequest(false);
+    }
+
+    /**
+     * Like {@link #allowRequest()}, but a request the user asked for doesn't wait for the open
+     * period to pass: it is let through as the probe, unless one is already out.
+     */
+    boolean allowRequest(boolean userInitiated) {
+        synchronized (sLock) {
+            SharedPreferences prefs = getPrefs(mContext);
+            long now = System.currentTimeMillis();
+            switch (prefs.getInt(KEY_STATE, STATE_CLOSED)) {
+                case STATE_OPEN:
+                    if (!userInitiated && now < prefs.getLong(KEY_OPEN_UNTIL, 0)) {
+                        return false;
+                    }
+                    break;
+                case STATE_HALF_OPEN:
+                    if (now - prefs.getLong(KEY_PROBE_STARTED, 0) < PROBE_TIMEOUT_MILLIS) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return true;
+            }
+            Log.d(LOG_TAG, "Probing the server");
+            prefs.edit()
+                    .putInt(KEY_STATE, STATE_HALF_OPEN)
+                    .putLong(KEY_PROBE_STARTED, now)
+                    .commit();
+            return true;
+        }
+    }
+
+    /**
+     * Records that a request got an answer from the server, whatever the answer was.
+     */
+    void onSuccess() {
+        synchronized (sLock) {
+            SharedPreferences prefs = getPrefs(mContext);
+            if (prefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_CLOSED
+                    && prefs.getInt(KEY_FAILURES, 0) == 0) {
+                // The usual case; nothing to write
+                return;
+            }
+            Log.d(LOG_TAG, "Server reachable, closing");
+            prefs.edit()
+                    .putInt(KEY_STATE, STATE_CLOSED)
+                    .putInt(KEY_FAILURES, 0)
+                    .remove(KEY_OPEN_MILLIS)
+                    .commit();
+        }
+    }
+
+    /**
+     * Records that a request could not reach the server, or that the server failed it.
+     */
+    void onFailure() {
+        synchronized (sLock) {
+            SharedPreferences prefs = getPrefs(mContext);
+            int state = prefs.getInt(KEY_STATE, STATE_CLOSED);
+            int failures = prefs.getInt(KEY_FAILURES, 0) + 1;
+            long openMillis;
+            if (state == STATE_HALF_OPEN) {
+                // The probe failed; stay away twice as long as last time
+                openMillis = Math.min(MAX_OPEN_MILLIS,
+                        prefs.getLong(KEY_OPEN_MILLIS, MIN_OPEN_MILLIS) * 2);
+            } else if (state == STATE_CLOSED && failures >= FAILURE_THRESHOLD) {
+                openMillis = MIN_OPEN_MILLIS;
+            } else {
+                // Still counting, or already open because of a request that raced the opening
+                prefs.edit().putInt(KEY_FAILURES, failures).commit();
+                return;
+            }
+
+            // Spread the probes of devices that lost the server at the same time
+            long openUntil = System.currentTimeMillis() + openMillis
+                    + (long) (mRandom.nextDouble() * openMillis / 4);
+            Log.d(LOG_TAG, failures + " failures in a row, opening for " + openMillis / 1000 + "s");
+            prefs.edit()
+                    .putInt(KEY_STATE, STATE_OPEN)
+                    .putInt(KEY_FAILURES, failures)
+                    .putLong(KEY_OPEN_MILLIS, openMillis)
+                    .putLong(KEY_OPEN_UNTIL, openUntil)
+                    .commit();
+        }
+    }
+
+    /**
+     * Returns whether requests are being held back, so there is no point in asking for a sync.
+     * Safe to call from the UI thread.
+     */
+    public static boolean isOpen(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        switch (prefs.getInt(KEY_STATE, STATE_CLOSED)) {
+            case STATE_OPEN:
+                return System.currentTimeMillis() < prefs.getLong(KEY_OPEN_UNTIL, 0);
+            case STATE_HALF_OPEN:
+                return System.currentTimeMillis() - prefs.getLong(KEY_PROBE_STARTED, 0)
+                        < PROBE_TIMEOUT_MILLIS;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns when the breaker will next let a probe through, in milliseconds since the epoch,
+     * or 0 if it isn't open.
+     */
+    static long getOpenUntil(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        return prefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_OPEN ?
+                prefs.getLong(KEY_OPEN_UNTIL, 0) : 0;
+    }
+
+    static int getState(Context context) {
+        return getPrefs(context).getInt(KEY_STATE, STATE_CLOSED);
+    }
+
+    /**
+     * Closes the breaker and forgets every failure.  Only meant for tests.
+     */
+    static void reset(Context context) {
+        synchronized (sLock) {
+            getPrefs(context).edit().clear().commit();
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
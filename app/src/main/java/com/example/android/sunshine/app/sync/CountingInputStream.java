@@ -0,0 +1,67 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it.  Placed either side of a decompressing stream it tells us
+ * how many bytes came over the wire and how many the parser saw.
+ *
+ * It also times the reads, so that placed on the connection it tells how much of reading a
+ * response was spent waiting for the network rather than parsing.
+ */
+class CountingInputStream extends FilterInputStream {
+    private long mCount;
+    private long mReadNanos;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    // Time spent in the reads of the stream underneath
+    long getReadMillis() {
+        return mReadNanos / 1000000;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int result = in.read();
+        mReadNanos += System.nanoTime() - start;
+        if (result != -1) {
+            mCount++;
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        long start = System.nanoTime();
+        int result = in.read(buffer, offset, count);
+        mReadNanos += System.nanoTime() - start;
+        if (result != -1) {
+            mCount += result;
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long start = System.nanoTime();
+        long result = in.skip(byteCount);
+        mReadNanos += System.nanoTime() - start;
+        mCount += result;
+        return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // Rewinding would make us count the same bytes twice
+        return false;
+    }
+}
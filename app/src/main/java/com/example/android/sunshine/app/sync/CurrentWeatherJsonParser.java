@@ -0,0 +1,244 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Parser for the OpenWeatherMap group response, which carries the current weather of several
+ * cities at once.  Each city is handed to the {@link Listener} together with the city id it
+ * was requested by, so the caller can work out which of its locations the weather belongs to.
+ *
+ * Like {@link ForecastJsonParser}, it streams on Honeycomb and later and falls back to the
+ * org.json tree before that.
+ */
+public class CurrentWeatherJsonParser {
+
+    static final String OWM_LIST = "list";
+    static final String OWM_CITY_ID = "id";
+
+    // Pressure, humidity and temperatures are children of the "main" object.
+    static final String OWM_MAIN = "main";
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_MAX = "temp_max";
+    static final String OWM_MIN = "temp_min";
+
+    // Wind speed and direction are children of the "wind" object.  OWM leaves out the direction
+    // when the air is still.
+    static final String OWM_WIND = "wind";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to make sure every required field of a city was present
+    private static final int FIELD_CITY_ID = 1;
+    private static final int FIELD_PRESSURE = 1 << 1;
+    private static final int FIELD_HUMIDITY = 1 << 2;
+    private static final int FIELD_MAX = 1 << 3;
+    private static final int FIELD_MIN = 1 << 4;
+    private static final int FIELD_WINDSPEED = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+    private static final int FIELD_ALL = (1 << 8) - 1;
+
+    /**
+     * Receives the current weather of each city in the order they appear in the response,
+     * which is not necessarily the order they were asked for in.
+     */
+    public interface Listener {
+        void onMessageCode(int code);
+
+        void onCurrentWeather(int cityId, double pressure, int humidity, double windSpeed,
+                              double windDirection, double high, double low, String description,
+                              int weatherId);
+    }
+
+    private CurrentWeatherJsonParser() {
+    }
+
+    /**
+     * Parses the response on the given stream, picking the streaming parser when the platform
+     * supports it.  The stream is not closed.
+     *
+     * @throws IOException if the stream could not be read or was empty
+     * @throws JSONException if the response was not a valid group response
+     */
+    public static void parse(InputStream in, Listener listener)
+            throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            parseStreaming(reader, listener);
+        } else {
+            String json = ForecastJsonParser.readFully(reader);
+            if (json.length() == 0) {
+                // Stream was empty.  No point in parsing.
+                throw new EOFException("Empty group response");
+            }
+            parseTree(json, listener);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void parseStreaming(Reader in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    listener.onMessageCode(Integer.parseInt(reader.nextString()));
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readCity(reader, listener);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Bad documents are reported the same way the tree parser reports them
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Listener listener)
+            throws IOException, JSONException {
+        int cityId = 0;
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextInt();
+                seen |= FIELD_CITY_ID;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                        seen |= FIELD_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextInt();
+                        seen |= FIELD_HUMIDITY;
+                    } else if (OWM_MAX.equals(mainName)) {
+                        high = reader.nextDouble();
+                        seen |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(mainName)) {
+                        low = reader.nextDouble();
+                        seen |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                        seen |= FIELD_WINDSPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            seen |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            seen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != FIELD_ALL) {
+            throw new JSONException("Incomplete current weather for city " + cityId);
+        }
+        listener.onCurrentWeather(cityId, pressure, humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    static void parseTree(String groupJsonStr, Listener listener) throws JSONException {
+        JSONObject groupJson = new JSONObject(groupJsonStr);
+
+        // do we have an error?
+        if (groupJson.has(OWM_MESSAGE_CODE)) {
+            listener.onMessageCode(groupJson.getInt(OWM_MESSAGE_CODE));
+            if (!groupJson.has(OWM_LIST)) {
+                return;
+            }
+        }
+
+        JSONArray cityArray = groupJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < cityArray.length(); i++) {
+            JSONObject cityJson = cityArray.getJSONObject(i);
+
+            JSONObject mainObject = cityJson.getJSONObject(OWM_MAIN);
+            JSONObject windObject = cityJson.getJSONObject(OWM_WIND);
+            JSONObject weatherObject = cityJson.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            listener.onCurrentWeather(cityJson.getInt(OWM_CITY_ID),
+                    mainObject.getDouble(OWM_PRESSURE),
+                    mainObject.getInt(OWM_HUMIDITY),
+                    windObject.getDouble(OWM_WINDSPEED),
+                    windObject.optDouble(OWM_WIND_DIRECTION, 0),
+                    mainObject.getDouble(OWM_MAX),
+                    mainObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * What a {@link WeatherSource} reports about a request, besides the weather itself.
+ */
+public class FetchResult {
+    private static final FetchResult NOT_MODIFIED = new FetchResult(true, null, null, null, 0, 0);
+
+    // True if the server said the weather we have is still current; the listener was not called
+    public final boolean notModified;
+
+    // Validators to send with the next request for the same weather, or null
+    public final String eTag;
+    public final String lastModified;
+
+    // The Content-Encoding of the response, or null if it was not compressed
+    public final String encoding;
+
+    // Bytes read from the connection, and bytes handed to the parser after decompression
+    public final long wireBytes;
+    public final long decodedBytes;
+
+    // How long the request took to connect, to get the first byte of the response, and to
+    // transfer and parse the body, in milliseconds.  All zero when nothing went over the network.
+    public final long connectMillis;
+    public final long firstByteMillis;
+    public final long transferMillis;
+    // The part of transferMillis spent parsing rather than waiting for the body to arrive
+    public final long parseMillis;
+
+    public FetchResult(boolean notModified, String eTag, String lastModified, String encoding,
+                       long wireBytes, long decodedBytes) {
+        this(notModified, eTag, lastModified, encoding, wireBytes, decodedBytes, 0, 0, 0, 0);
+    }
+
+    public FetchResult(boolean notModified, String eTag, String lastModified, String encoding,
+                       long wireBytes, long decodedBytes, long connectMillis,
+                       long firstByteMillis, long transferMillis, long parseMillis) {
+        this.notModified = notModified;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.wireBytes = wireBytes;
+        this.decodedBytes = decodedBytes;
+        this.connectMillis = connectMillis;
+        this.firstByteMillis = firstByteMillis;
+        this.transferMillis = transferMillis;
+        this.parseMillis = parseMillis;
+    }
+
+    public static FetchResult notModified() {
+        return NOT_MODIFIED;
+    }
+}
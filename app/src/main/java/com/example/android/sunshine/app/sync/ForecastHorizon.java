@@ -0,0 +1,159 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.List;
+
+/**
+ * Remembers, for each location setting, when each day of its stored forecast was last
+ * downloaded, so a sync only asks for as many days as it has to.  OWM always starts a
+ * forecast with today, so the request covers today up to the furthest day that is missing or
+ * stale, and the days after it stay as they are in the database.
+ *
+ * How long a day stays fresh grows with how far ahead it is: the next few days change from
+ * one run of the forecast model to the next, the second week hardly moves between syncs.
+ * Today is never fresh, since it is what the app shows.
+ *
+ * The hourly steps come from a request of their own and are kept fresh on their own clock,
+ * one time per location, whichever way the location's daily forecast is refreshed.
+ *
+ * The times live in their own preferences file, one value per location holding the julian
+ * day of the first time followed by the times, which keeps a read to one lookup.
+ */
+class ForecastHorizon {
+    private static final String PREFS_NAME = "forecast_horizon";
+
+    private static final String KEY_FETCHED = "fetched:";
+    private static final String KEY_HOURLY_FETCHED = "hourly_fetched:";
+
+    // The most days OWM forecasts, and the most we store
+    static final int MAX_DAYS = 14;
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    // OWM's steps are three hours apart, and its model runs about as often
+    static final long HOURLY_MAX_AGE_MILLIS = 3 * HOUR_IN_MILLIS;
+
+    private final SharedPreferences mPrefs;
+
+    ForecastHorizon(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns how long a day that far ahead stays fresh once downloaded.
+     *
+     * @param dayOffset days after today
+     */
+    static long getMaxAgeMillis(int dayOffset) {
+        if (dayOffset == 0) {
+            return 0;
+        } else if (dayOffset < 3) {
+            return 6 * HOUR_IN_MILLIS;
+        } else if (dayOffset < 7) {
+            return 12 * HOUR_IN_MILLIS;
+        }
+        return 24 * HOUR_IN_MILLIS;
+    }
+
+    /**
+     * Returns how many days, starting with today, have to be downloaded so that no day of the
+     * forecast is missing or stale.  This is at least 1, for today.
+     *
+     * @param today the julian day the forecast would start on
+     */
+    int getDaysToFetch(String locationSetting, int today, long now) {
+        long[] fetched = getFetchTimes(locationSetting, today);
+        for (int offset = MAX_DAYS - 1; offset > 0; offset--) {
+            long fetchedAt = fetched[offset];
+            // A clock that went backwards can't vouch for anything
+            if (fetchedAt == 0 || fetchedAt > now
+                    || now - fetchedAt >= getMaxAgeMillis(offset)) {
+                return offset + 1;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Records that days were downloaded and stored for the locations.  The days after them
+     * keep their times.  This should not be called from the UI thread because it uses commit
+     * to write to the shared preferences.
+     *
+     * @param firstDay the julian day of the first day downloaded, which is today
+     * @param numDays how many days were stored
+     */
+    void onFetched(List<String> locationSettings, int firstDay, int numDays, long now) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String locationSetting : locationSettings) {
+            long[] fetched = getFetchTimes(locationSetting, firstDay);
+            for (int offset = 0; offset < Math.min(numDays, MAX_DAYS); offset++) {
+                fetched[offset] = now;
+            }
+            StringBuilder value = new StringBuilder(16 * (MAX_DAYS + 1));
+            value.append(firstDay);
+            for (long fetchedAt : fetched) {
+                value.append(',').append(fetchedAt);
+            }
+            editor.putString(KEY_FETCHED + locationSetting, value.toString());
+        }
+        editor.commit();
+    }
+
+    /**
+     * Returns whether the location's hourly steps are missing or stale, and should be
+     * downloaded again.
+     */
+    boolean isHourlyStale(String locationSetting, long now) {
+        long fetchedAt = mPrefs.getLong(KEY_HOURLY_FETCHED + locationSetting, 0);
+        // A clock that went backwards can't vouch for anything
+        return fetchedAt == 0 || fetchedAt > now || now - fetchedAt >= HOURLY_MAX_AGE_MILLIS;
+    }
+
+    /**
+     * Records that the location's hourly steps were downloaded and stored.  This should not be
+     * called from the UI thread because it uses commit to write to the shared preferences.
+     */
+    void onHourlyFetched(String locationSetting, long now) {
+        mPrefs.edit().putLong(KEY_HOURLY_FETCHED + locationSetting, now).commit();
+    }
+
+    /**
+     * Forgets when the location was downloaded, so the next sync downloads every day and the
+     * hourly steps.
+     */
+    void clear(String locationSetting) {
+        mPrefs.edit()
+                .remove(KEY_FETCHED + locationSetting)
+                .remove(KEY_HOURLY_FETCHED + locationSetting)
+                .commit();
+    }
+
+    /**
+     * Returns when each of the MAX_DAYS days from the given one was downloaded, or 0 for the
+     * days we never stored.
+     */
+    private long[] getFetchTimes(String locationSetting, int firstDay) {
+        long[] fetched = new long[MAX_DAYS];
+        String value = mPrefs.getString(KEY_FETCHED + locationSetting, null);
+        if (value == null) {
+            return fetched;
+        }
+        String[] parts = value.split(",");
+        try {
+            int storedDay = Integer.parseInt(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                // Days before firstDay have passed, and their rows are deleted
+                int offset = storedDay + i - 1 - firstDay;
+                if (offset >= 0 && offset < MAX_DAYS) {
+                    fetched[offset] = Long.parseLong(parts[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Written by nobody but us; start over
+            return new long[MAX_DAYS];
+        }
+        return fetched;
+    }
+}
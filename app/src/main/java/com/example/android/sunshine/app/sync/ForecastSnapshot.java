@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Intent;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Today's weather for a location, as it was just stored by a sync.  The sync hands it to the
+ * widgets, Muzei, the notification and the wearable, so none of them has to query the
+ * provider for what the sync already had in memory.
+ *
+ * It travels in intents as plain extras rather than as a Parcelable, so any component can
+ * read it without worrying about class loaders.
+ */
+public final class ForecastSnapshot {
+    private static final String EXTRA_LOCATION_SETTING = "snapshot_location_setting";
+    private static final String EXTRA_DATE = "snapshot_date";
+    private static final String EXTRA_WEATHER_ID = "snapshot_weather_id";
+    private static final String EXTRA_HIGH = "snapshot_high";
+    private static final String EXTRA_LOW = "snapshot_low";
+    private static final String EXTRA_DESCRIPTION = "snapshot_description";
+
+    public final String locationSetting;
+    public final long date;
+    public final int weatherId;
+    public final double high;
+    public final double low;
+    public final String description;
+
+    public ForecastSnapshot(String locationSetting, long date, int weatherId, double high,
+                            double low, String description) {
+        this.locationSetting = locationSetting;
+        this.date = date;
+        this.weatherId = weatherId;
+        this.high = high;
+        this.low = low;
+        this.description = description;
+    }
+
+    /**
+     * Builds a snapshot from a weather row as the sync adapter writes it.
+     */
+    static ForecastSnapshot fromValues(String locationSetting, ContentValues values) {
+        return new ForecastSnapshot(locationSetting,
+                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+    }
+
+    /**
+     * Reads the snapshot carried by an intent.
+     *
+     * @return the snapshot, or null if the intent doesn't carry one
+     */
+    public static ForecastSnapshot fromIntent(Intent intent) {
+        if (intent == null || !intent.hasExtra(EXTRA_LOCATION_SETTING)) {
+            return null;
+        }
+        return new ForecastSnapshot(intent.getStringExtra(EXTRA_LOCATION_SETTING),
+                intent.getLongExtra(EXTRA_DATE, 0),
+                intent.getIntExtra(EXTRA_WEATHER_ID, 0),
+                intent.getDoubleExtra(EXTRA_HIGH, 0),
+                intent.getDoubleExtra(EXTRA_LOW, 0),
+                intent.getStringExtra(EXTRA_DESCRIPTION));
+    }
+
+    /**
+     * Adds the snapshot to an intent, returning the intent for chaining.
+     */
+    public Intent putInto(Intent intent) {
+        return intent.putExtra(EXTRA_LOCATION_SETTING, locationSetting)
+                .putExtra(EXTRA_DATE, date)
+                .putExtra(EXTRA_WEATHER_ID, weatherId)
+                .putExtra(EXTRA_HIGH, high)
+                .putExtra(EXTRA_LOW, low)
+                .putExtra(EXTRA_DESCRIPTION, description);
+    }
+
+    /**
+     * Whether the snapshot still describes the given location.  The preferred location may
+     * have changed between the sync and the moment a consumer gets to it.
+     */
+    public boolean isFor(String locationSetting) {
+        return this.locationSetting.equals(locationSetting);
+    }
+}
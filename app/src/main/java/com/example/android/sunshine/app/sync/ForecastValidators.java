@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, for each location setting, the HTTP validators that came with the last forecast
+ * we stored and a fingerprint of that forecast.  The sync adapter uses them to make
+ * conditional requests and to recognise a response that would not change anything.  The
+ * validators only vouch for the request they came with, so the number of days it asked for is
+ * kept with them.
+ *
+ * The values live in their own preferences file so they never show up in the settings screen.
+ */
+class ForecastValidators {
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_FINGERPRINT = "fingerprint:";
+    private static final String KEY_FORECAST_DAY = "forecast_day:";
+    private static final String KEY_REQUEST_DAYS = "request_days:";
+    private static final String KEY_FORECAST_DAYS = "forecast_days:";
+
+    // A fingerprint nothing will ever hash to, used when we have never stored a forecast
+    static final long NO_FINGERPRINT = 0;
+    static final int NO_FORECAST_DAY = -1;
+
+    private final SharedPreferences mPrefs;
+
+    ForecastValidators(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    String getETag(String locationSetting) {
+        return mPrefs.getString(KEY_ETAG + locationSetting, null);
+    }
+
+    String getLastModified(String locationSetting) {
+        return mPrefs.getString(KEY_LAST_MODIFIED + locationSetting, null);
+    }
+
+    long getFingerprint(String locationSetting) {
+        return mPrefs.getLong(KEY_FINGERPRINT + locationSetting, NO_FINGERPRINT);
+    }
+
+    /**
+     * Returns the julian day the stored forecast starts on, which is the day it was downloaded.
+     */
+    int getForecastDay(String locationSetting) {
+        return mPrefs.getInt(KEY_FORECAST_DAY + locationSetting, NO_FORECAST_DAY);
+    }
+
+    /**
+     * Returns how many days the request the validators came with asked for, or 0 if none.
+     */
+    int getRequestDays(String locationSetting) {
+        return mPrefs.getInt(KEY_REQUEST_DAYS + locationSetting, 0);
+    }
+
+    /**
+     * Returns how many days the stored forecast holds, counted from its first day.
+     */
+    int getForecastDays(String locationSetting) {
+        return mPrefs.getInt(KEY_FORECAST_DAYS + locationSetting, 0);
+    }
+
+    /**
+     * Stores the validators and fingerprint of a forecast that has just been persisted.  This
+     * should not be called from the UI thread because it uses commit to write to the shared
+     * preferences.
+     *
+     * @param requestDays the days the request asked for
+     * @param forecastDays the days the response held
+     */
+    void save(String locationSetting, String eTag, String lastModified, long fingerprint,
+              int forecastDay, int requestDays, int forecastDays) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, KEY_ETAG + locationSetting, eTag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + locationSetting, lastModified);
+        editor.putLong(KEY_FINGERPRINT + locationSetting, fingerprint);
+        editor.putInt(KEY_FORECAST_DAY + locationSetting, forecastDay);
+        editor.putInt(KEY_REQUEST_DAYS + locationSetting, requestDays);
+        editor.putInt(KEY_FORECAST_DAYS + locationSetting, forecastDays);
+        editor.commit();
+    }
+
+    /**
+     * Forgets everything about a location, so the next sync downloads and stores it in full.
+     */
+    void clear(String locationSetting) {
+        mPrefs.edit()
+                .remove(KEY_ETAG + locationSetting)
+                .remove(KEY_LAST_MODIFIED + locationSetting)
+                .remove(KEY_FINGERPRINT + locationSetting)
+                .remove(KEY_FORECAST_DAY + locationSetting)
+                .remove(KEY_REQUEST_DAYS + locationSetting)
+                .remove(KEY_FORECAST_DAYS + locationSetting)
+                .commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Parser for the OpenWeatherMap five day forecast, which comes in three hour steps.  Each step
+ * is handed to the {@link Listener} as soon as it has been read.
+ *
+ * Like {@link ForecastJsonParser}, it streams on Honeycomb and later and falls back to the
+ * org.json tree before that.
+ */
+public class HourlyForecastJsonParser {
+
+    static final String OWM_LIST = "list";
+
+    // Start of the step, in seconds since the epoch
+    static final String OWM_TIME = "dt";
+
+    // Temperature and humidity are children of the "main" object.
+    static final String OWM_MAIN = "main";
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_HUMIDITY = "humidity";
+
+    static final String OWM_WIND = "wind";
+    static final String OWM_WINDSPEED = "speed";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to make sure every required field of a step was present
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_TEMPERATURE = 1 << 1;
+    private static final int FIELD_HUMIDITY = 1 << 2;
+    private static final int FIELD_WINDSPEED = 1 << 3;
+    private static final int FIELD_WEATHER_ID = 1 << 4;
+    private static final int FIELD_ALL = (1 << 5) - 1;
+
+    /**
+     * Receives the steps of the forecast in the order they appear in the response.
+     */
+    public interface Listener {
+        void onMessageCode(int code);
+
+        /**
+         * @param time start of the step, in milliseconds since the epoch
+         */
+        void onStep(long time, double temperature, int humidity, double windSpeed, int weatherId);
+    }
+
+    private HourlyForecastJsonParser() {
+    }
+
+    /**
+     * Parses the forecast on the given stream, picking the streaming parser when the platform
+     * supports it.  The stream is not closed.
+     *
+     * @throws IOException if the stream could not be read or was empty
+     * @throws JSONException if the response was not a valid forecast
+     */
+    public static void parse(InputStream in, Listener listener)
+            throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            parseStreaming(reader, listener);
+        } else {
+            String json = ForecastJsonParser.readFully(reader);
+            if (json.length() == 0) {
+                // Stream was empty.  No point in parsing.
+                throw new EOFException("Empty hourly forecast");
+            }
+            parseTree(json, listener);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void parseStreaming(Reader in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    listener.onMessageCode(Integer.parseInt(reader.nextString()));
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readStep(reader, listener);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Bad documents are reported the same way the tree parser reports them
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readStep(JsonReader reader, Listener listener)
+            throws IOException, JSONException {
+        long time = 0;
+        double temperature = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                time = reader.nextLong() * 1000;
+                seen |= FIELD_TIME;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        temperature = reader.nextDouble();
+                        seen |= FIELD_TEMPERATURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextInt();
+                        seen |= FIELD_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (OWM_WINDSPEED.equals(reader.nextName())) {
+                        windSpeed = reader.nextDouble();
+                        seen |= FIELD_WINDSPEED;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                            weatherId = reader.nextInt();
+                            seen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != FIELD_ALL) {
+            throw new JSONException("Incomplete forecast step at " + time);
+        }
+        listener.onStep(time, temperature, humidity, windSpeed, weatherId);
+    }
+
+    static void parseTree(String forecastJsonStr, Listener listener) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            listener.onMessageCode(forecastJson.getInt(OWM_MESSAGE_CODE));
+            if (!forecastJson.has(OWM_LIST)) {
+                return;
+            }
+        }
+
+        JSONArray stepArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < stepArray.length(); i++) {
+            JSONObject stepJson = stepArray.getJSONObject(i);
+
+            JSONObject mainObject = stepJson.getJSONObject(OWM_MAIN);
+            JSONObject windObject = stepJson.getJSONObject(OWM_WIND);
+            JSONObject weatherObject = stepJson.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            listener.onStep(stepJson.getLong(OWM_TIME) * 1000,
+                    mainObject.getDouble(OWM_TEMPERATURE),
+                    mainObject.getInt(OWM_HUMIDITY),
+                    windObject.getDouble(OWM_WINDSPEED),
+                    weatherObject.getInt(OWM_WEATHER_ID));
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.http.HttpDiskCache;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches the weather from OpenWeatherMap.  The base URL can be pointed at another server
+ * speaking the same API, such as a local stand-in used for testing.  Given a cache, a
+ * response that is still fresh there is read from it instead of asking again.
+ */
+public class OwmWeatherSource implements WeatherSource {
+    public static final String DEFAULT_BASE_URL = "http://api.openweathermap.org/data/2.5/";
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    private static final String FORECAST_PATH = "forecast/daily";
+    private static final String GROUP_PATH = "group";
+    private static final String HOURLY_PATH = "forecast";
+    private static final String QUERY_PARAM = "q";
+    private static final String IDS_PARAM = "id";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    // Not among HttpURLConnection's constants
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+
+    /**
+     * Reads a response body into a parser.
+     */
+    private interface BodyParser {
+        void parse(InputStream in) throws IOException, JSONException;
+    }
+
+    private final String mBaseUrl;
+    private final HttpDiskCache mCache;
+    private final SyncHttpClient mClient = SyncHttpClient.getInstance();
+
+    public OwmWeatherSource() {
+        this(DEFAULT_BASE_URL);
+    }
+
+    public OwmWeatherSource(String baseUrl) {
+        this(baseUrl, null);
+    }
+
+    public OwmWeatherSource(HttpDiskCache cache) {
+        this(DEFAULT_BASE_URL, cache);
+    }
+
+    /**
+     * @param cache where responses are looked for before asking the server, and stored
+     *              after; null to always ask
+     */
+    public OwmWeatherSource(String baseUrl, HttpDiskCache cache) {
+        mBaseUrl = baseUrl;
+        mCache = cache;
+    }
+
+    @Override
+    public void warmUp() {
+        mClient.warmUp(Uri.parse(mBaseUrl).getHost());
+    }
+
+    @Override
+    public FetchResult fetchForecast(String locationQuery, int numDays, String eTag,
+                                     String lastModified, final ForecastJsonParser.Listener listener)
+            throws IOException, JSONException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendEncodedPath(FORECAST_PATH)
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return execute(builtUri, eTag, lastModified, new BodyParser() {
+            @Override
+            public void parse(InputStream in) throws IOException, JSONException {
+                ForecastJsonParser.parse(in, listener);
+            }
+        });
+    }
+
+    @Override
+    public FetchResult fetchCurrentWeather(int[] cityIds,
+                                           final CurrentWeatherJsonParser.Listener listener)
+            throws IOException, JSONException {
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < cityIds.length; i++) {
+            if (i > 0) ids.append(',');
+            ids.append(cityIds[i]);
+        }
+
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendEncodedPath(GROUP_PATH)
+                .appendQueryParameter(IDS_PARAM, ids.toString())
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return execute(builtUri, null, null, new BodyParser() {
+            @Override
+            public void parse(InputStream in) throws IOException, JSONException {
+                CurrentWeatherJsonParser.parse(in, listener);
+            }
+        });
+    }
+
+    @Override
+    public FetchResult fetchHourlyForecast(String locationQuery,
+                                           final HourlyForecastJsonParser.Listener listener)
+            throws IOException, JSONException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendEncodedPath(HOURLY_PATH)
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return execute(builtUri, null, null, new BodyParser() {
+            @Override
+            public void parse(InputStream in) throws IOException, JSONException {
+                HourlyForecastJsonParser.parse(in, listener);
+            }
+        });
+    }
+
+    private FetchResult execute(Uri uri, String eTag, String lastModified, BodyParser parser)
+            throws IOException, JSONException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        // Ask for a compressed response ourselves rather than leaving it to the platform, so
+        // that we can count the bytes on both sides of the decoder.
+        headers.put("Accept-Encoding", "gzip, deflate");
+        if (eTag != null) {
+            headers.put("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+
+        SyncHttpClient.Response response = mClient.get(new URL(uri.toString()), headers,
+                mCache);
+        try {
+            int responseCode = response.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.close();
+                return new FetchResult(true, null, null, null, 0, 0,
+                        response.getConnectMillis(), response.getFirstByteMillis(),
+                        response.getTransferMillis(), 0);
+            }
+
+            if (responseCode == HTTP_TOO_MANY_REQUESTS) {
+                throw new RateLimitedException("Over the API key's quota");
+            }
+
+            // OWM explains its errors in a JSON body with the same "cod" a success has, so
+            // error responses go through the parser too when they have a body.
+            InputStream body = response.getBody();
+            if (body == null) {
+                throw new IOException("HTTP " + responseCode + " without a body");
+            }
+
+            // Parse straight off the input stream, without first copying the whole response
+            // into a String.
+            String encoding = response.getContentEncoding();
+            CountingInputStream wireStream = new CountingInputStream(body);
+            CountingInputStream decodedStream =
+                    new CountingInputStream(decodeStream(wireStream, encoding));
+
+            parser.parse(decodedStream);
+
+            // Reading the rest of the body, e.g. the gzip trailer, lets the connection be reused
+            response.close();
+            return new FetchResult(false,
+                    response.getHeaderField("ETag"),
+                    response.getHeaderField("Last-Modified"),
+                    encoding,
+                    // Nothing crossed the wire for a response from the cache
+                    response.isFromCache() ? 0 : wireStream.getCount(),
+                    decodedStream.getCount(),
+                    response.getConnectMillis(), response.getFirstByteMillis(),
+                    response.getTransferMillis(),
+                    // Whatever wasn't spent waiting on the connection went on decoding and parsing
+                    Math.max(0, response.getTransferMillis() - wireStream.getReadMillis()));
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Wraps the response stream in the decoder for its Content-Encoding, so the parser reads
+     * plain JSON whatever the server chose to send.
+     */
+    private static InputStream decodeStream(InputStream in, String encoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Keeps the app's calls to OpenWeatherMap within what one API key is allowed, with a token
+ * bucket: each request takes a token, and tokens come back at a steady rate up to
+ * {@link #CAPACITY}, so a sync can spend a burst of them and the next one finds them refilled.
+ *
+ * Background fetches, such as the periodic sync and the hourly steps, are shed first: they
+ * may not take the last {@link #USER_RESERVE} tokens, which are kept for refreshes the user
+ * asked for.  When the server says we are over quota anyway, the bucket is emptied and nothing
+ * is let through for {@link #RATE_LIMITED_PAUSE_MILLIS}.
+ *
+ * The bucket lives in its own preferences file, so restarting the process doesn't refill it.
+ */
+public class QuotaGovernor {
+    private static final String LOG_TAG = QuotaGovernor.class.getSimpleName();
+
+    private static final String PREFS_NAME = "api_quota";
+    private static final String KEY_TOKENS = "tokens";
+    private static final String KEY_UPDATED = "updated";
+    private static final String KEY_PAUSED_UNTIL = "paused_until";
+
+    static final int PRIORITY_USER = 0;
+    static final int PRIORITY_BACKGROUND = 1;
+
+    // Enough for a full sync of a long list of saved locations
+    static final int CAPACITY = 60;
+
+    // One token back every this many milliseconds, i.e. 120 calls an hour
+    static final long REFILL_MILLIS = 30 * 1000;
+
+    // Tokens only user requests may take
+    static final int USER_RESERVE = 20;
+
+    static final long RATE_LIMITED_PAUSE_MILLIS = 10 * 60 * 1000;
+
+    // Every instance shares the one preferences file
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+
+    QuotaGovernor(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Takes a token for one request, if the bucket has one to spare at the given priority.
+     *
+     * @param priority PRIORITY_USER or PRIORITY_BACKGROUND
+     * @return whether the request may be made
+     */
+    boolean tryAcquire(int priority) {
+        synchronized (sLock) {
+            SharedPreferences prefs = getPrefs(mContext);
+            long now = System.currentTimeMillis();
+            if (now < prefs.getLong(KEY_PAUSED_UNTIL, 0)) {
+                return false;
+            }
+            float tokens = refill(prefs, now);
+            float floor = priority == PRIORITY_USER ? 0 : USER_RESERVE;
+            if (tokens - 1 < floor) {
+                Log.d(LOG_TAG, "Out of quota at priority " + priority + ", " + tokens + " tokens left");
+                return false;
+            }
+            prefs.edit()
+                    .putFloat(KEY_TOKENS, tokens - 1)
+                    .putLong(KEY_UPDATED, now)
+                    .commit();
+            return true;
+        }
+    }
+
+    /**
+     * Records that the server answered with 429 Too Many Requests.
+     */
+    void onRateLimited() {
+        synchronized (sLock) {
+            long now = System.currentTimeMillis();
+            Log.w(LOG_TAG, "Rate limited by the server, pausing for "
+                    + RATE_LIMITED_PAUSE_MILLIS / 1000 + "s");
+            getPrefs(mContext).edit()
+                    .putFloat(KEY_TOKENS, 0)
+                    .putLong(KEY_UPDATED, now)
+                    .putLong(KEY_PAUSED_UNTIL, now + RATE_LIMITED_PAUSE_MILLIS)
+                    .commit();
+        }
+    }
+
+    /**
+     * Returns the tokens in the bucket now, without taking any.
+     */
+    float getTokens() {
+        synchronized (sLock) {
+            return refill(getPrefs(mContext), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Fills the bucket and lifts any pause.  Only meant for tests.
+     */
+    static void reset(Context context) {
+        synchronized (sLock) {
+            getPrefs(context).edit().clear().commit();
+        }
+    }
+
+    // Works out the tokens after the time since the last update; doesn't write them
+    private static float refill(SharedPreferences prefs, long now) {
+        if (!prefs.contains(KEY_UPDATED)) {
+            return CAPACITY;
+        }
+        // A clock set backwards refills nothing rather than taking tokens away
+        long elapsed = Math.max(0, now - prefs.getLong(KEY_UPDATED, now));
+        return Math.min(CAPACITY, prefs.getFloat(KEY_TOKENS, CAPACITY)
+                + (float) elapsed / REFILL_MILLIS);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link WeatherSource} when the server turned a request away because the API key
+ * has made too many calls.  The server is up, so this is not worth retrying straight away.
+ */
+public class RateLimitedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RateLimitedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.SparseArray;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+/**
+ * Serves recorded responses instead of going to the network, so the parse and store steps of
+ * a sync can be run and measured on their own.  Locations without a recorded forecast get the
+ * response OWM gives for a city it doesn't know.
+ *
+ * Record everything before handing the source to a sync; it is not safe to add responses
+ * while fetches are running.
+ */
+public class ReplayWeatherSource implements WeatherSource {
+    static final String NOT_FOUND = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    private final HashMap<String, byte[]> mForecasts = new HashMap<String, byte[]>();
+    private final HashMap<String, byte[]> mHourlyForecasts = new HashMap<String, byte[]>();
+    private final SparseArray<String> mCurrentWeather = new SparseArray<String>();
+
+    /**
+     * Records the daily forecast response to replay for a location.
+     */
+    public ReplayWeatherSource addForecast(String locationQuery, String forecastJson) {
+        mForecasts.put(locationQuery, toBytes(forecastJson));
+        return this;
+    }
+
+    /**
+     * Records the three hour forecast response to replay for a location.
+     */
+    public ReplayWeatherSource addHourlyForecast(String locationQuery, String forecastJson) {
+        mHourlyForecasts.put(locationQuery, toBytes(forecastJson));
+        return this;
+    }
+
+    /**
+     * Records the current weather of one city, as it appears in the list of a group response.
+     */
+    public ReplayWeatherSource addCurrentWeather(int cityId, String cityJson) {
+        mCurrentWeather.put(cityId, cityJson);
+        return this;
+    }
+
+    @Override
+    public void warmUp() {
+        // Nothing to connect to
+    }
+
+    @Override
+    public FetchResult fetchForecast(String locationQuery, int numDays, String eTag,
+                                     String lastModified, ForecastJsonParser.Listener listener)
+            throws IOException, JSONException {
+        byte[] body = mForecasts.get(locationQuery);
+        if (body == null) {
+            body = toBytes(NOT_FOUND);
+        }
+        ForecastJsonParser.parse(new ByteArrayInputStream(body), listener);
+        return new FetchResult(false, null, null, null, body.length, body.length);
+    }
+
+    @Override
+    public FetchResult fetchCurrentWeather(int[] cityIds,
+                                           CurrentWeatherJsonParser.Listener listener)
+            throws IOException, JSONException {
+        // Put together a group response from the recorded cities, leaving out those we don't
+        // have just like OWM does
+        StringBuilder group = new StringBuilder("{\"cnt\":");
+        StringBuilder list = new StringBuilder();
+        int count = 0;
+        for (int cityId : cityIds) {
+            String cityJson = mCurrentWeather.get(cityId);
+            if (cityJson != null) {
+                if (count++ > 0) list.append(',');
+                list.append(cityJson);
+            }
+        }
+        group.append(count).append(",\"list\":[").append(list).append("]}");
+
+        byte[] body = toBytes(group.toString());
+        CurrentWeatherJsonParser.parse(new ByteArrayInputStream(body), listener);
+        return new FetchResult(false, null, null, null, body.length, body.length);
+    }
+
+    @Override
+    public FetchResult fetchHourlyForecast(String locationQuery,
+                                           HourlyForecastJsonParser.Listener listener)
+            throws IOException, JSONException {
+        byte[] body = mHourlyForecasts.get(locationQuery);
+        if (body == null) {
+            body = toBytes(NOT_FOUND);
+        }
+        HourlyForecastJsonParser.parse(new ByteArrayInputStream(body), listener);
+        return new FetchResult(false, null, null, null, body.length, body.length);
+    }
+
+    private static byte[] toBytes(String json) {
+        try {
+            return json.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Random;
+
+/**
+ * How often, and how far apart, a fetch that failed because the server could not be reached is
+ * tried again within a sync.  The wait doubles with each attempt up to {@link #MAX_DELAY_MILLIS},
+ * and the actual wait is picked at random below that, so that many devices losing the server at
+ * the same moment don't all come back at the same moment too.
+ */
+class RetryPolicy {
+
+    // Including the first try
+    static final int MAX_ATTEMPTS = 3;
+
+    static final long BASE_DELAY_MILLIS = 2 * 1000;
+    static final long MAX_DELAY_MILLIS = 30 * 1000;
+
+    private RetryPolicy() {
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     *
+     * @param failedAttempts attempts that have failed so far, at least 1
+     */
+    static long delayMillis(int failedAttempts, Random random) {
+        long ceiling = backoffMillis(failedAttempts, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        // Never retry immediately, even when the dice say so
+        return BASE_DELAY_MILLIS / 2 + (long) (random.nextDouble() * (ceiling - BASE_DELAY_MILLIS / 2));
+    }
+
+    /**
+     * The exponential part: base, twice base, four times base and so on, up to max.
+     */
+    static long backoffMillis(int failedAttempts, long baseMillis, long maxMillis) {
+        // Past this many doublings any sensible base is beyond the cap anyway
+        int doublings = Math.min(Math.max(failedAttempts - 1, 0), 20);
+        return Math.min(maxMillis, baseMillis << doublings);
+    }
+}
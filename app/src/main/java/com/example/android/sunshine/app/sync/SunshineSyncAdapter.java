@@ -3,15 +3,19 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,36 +26,47 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.DayMath;
+import com.example.android.sunshine.app.data.HourlyBatch;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.SyncMetricsLog;
+import com.example.android.sunshine.app.data.WeatherBatch;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.http.HttpDiskCache;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.example.android.sunshine.app.wearupdate.WearUpdateService;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -64,20 +79,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -88,180 +89,945 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Outcome of syncing a single location
+    private static final int SYNC_RESULT_CHANGED = 0;
+    private static final int SYNC_RESULT_UNCHANGED = 1;
+    private static final int SYNC_RESULT_FAILED = 2;
+    // Failed because the server couldn't be reached or failed the request, so worth retrying.
+    // Never leaves fetchWithRetries, which turns it into SYNC_RESULT_FAILED.
+    private static final int SYNC_RESULT_SERVER_DOWN = 3;
+
+    // Most forecasts we download at once, however many locations are saved
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+
+    // How long each consumer of a new forecast gets before it is given up on.  Starting a
+    // service or sending a broadcast should be quick; the notification may have to download
+    // its large icon.
+    private static final long FAN_OUT_SERVICE_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long FAN_OUT_NOTIFICATION_TIMEOUT_MILLIS = 20 * 1000;
+
+    // Most cities OWM accepts in a single group request
+    private static final int MAX_GROUP_SIZE = 20;
+
+    // A location fetched this recently by another sync isn't fetched again.  Settings, the app
+    // and the periodic schedule can each ask for a sync within seconds of each other.
+    static final long COALESCE_WINDOW_MILLIS = 30 * 1000;
+
+    private static final String[] GROUP_MEMBER_PROJECTION = new String[] {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_ID
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_SETTING = 1;
+    private static final int INDEX_CITY_ID = 2;
+
+    // Shared by every sync; the threads go away when there is nothing to fetch
+    private static final ThreadPoolExecutor sFetchExecutor;
+    static {
+        sFetchExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_FETCHES, MAX_CONCURRENT_FETCHES,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        sFetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Picks the waits between retries
+    private static final Random sRandom = new Random();
+
+    private WeatherSource mWeatherSource;
+
+    // Moves the periodic sync according to how much the forecast changes
+    private final SyncScheduler mScheduler;
+
+    // Shares fetches between syncs that follow each other closely
+    private SyncCoalescer<Integer> mCoalescer = new SyncCoalescer<Integer>(COALESCE_WINDOW_MILLIS);
+
+    // Keeps every fetch away from the server while it is down
+    private final CircuitBreaker mBreaker;
+
+    // Keeps the requests of every sync within the API key's quota
+    private final QuotaGovernor mQuota;
+
+    // Lets a sync that was killed part way through carry on where it stopped
+    private final SyncJournal mJournal;
+
+    // Knows which days of each location's forecast are worth downloading again
+    private final ForecastHorizon mHorizon;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mScheduler = new SyncScheduler(context);
+        mBreaker = new CircuitBreaker(context);
+        mQuota = new QuotaGovernor(context);
+        mJournal = new SyncJournal(context);
+        mHorizon = new ForecastHorizon(context);
+        mWeatherSource = new OwmWeatherSource(HttpDiskCache.getInstance(context));
+    }
+
+    /**
+     * Replaces the source the weather is fetched from, e.g. with a replay of recorded responses
+     * or a server on the local machine.  Only meant for tests; call it before syncing.
+     */
+    void setWeatherSource(WeatherSource weatherSource) {
+        mWeatherSource = weatherSource;
+    }
+
+    /**
+     * Changes how long a fetch is shared with later syncs.  Only meant for tests; call it
+     * before syncing.
+     */
+    void setCoalesceWindow(long windowMillis) {
+        mCoalescer = new SyncCoalescer<Integer>(windowMillis);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        final SyncMetrics metrics = new SyncMetrics();
+        // Only syncs the user asked for may spend the last of the API quota, or probe the
+        // server while the breaker is open
+        final int priority = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false) ?
+                QuotaGovernor.PRIORITY_USER : QuotaGovernor.PRIORITY_BACKGROUND;
+        if (priority != QuotaGovernor.PRIORITY_USER && CircuitBreaker.isOpen(getContext())) {
+            // Periodic syncs still come round while the server is down; tell the framework
+            // when it is worth trying again, which also spares a pass full of failed fetches.
+            long openUntil = CircuitBreaker.getOpenUntil(getContext());
+            Log.d(LOG_TAG, "Server down, not syncing");
+            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            if (openUntil > 0) {
+                syncResult.delayUntil = openUntil / 1000;
+            }
+            metrics.save(getContext(), WeatherContract.SyncMetricsEntry.OUTCOME_SERVER_DOWN);
+            return;
+        }
+        final String preferredLocation = Utility.getPreferredLocation(getContext());
+        List<String> locations = Utility.getSyncLocations(getContext());
+        // If the last pass was killed part way through, what it stored is still current
+        final long passStarted = mJournal.beginPass();
+        ArrayList<String> remaining = new ArrayList<String>(locations.size());
+        for (String location : locations) {
+            if (!mJournal.isStored(location)) {
+                remaining.add(location);
+            }
+        }
+        if (remaining.size() < locations.size()) {
+            Log.d(LOG_TAG, "Resuming an interrupted sync, " + remaining.size() + " of "
+                    + locations.size() + " locations left");
+            locations = remaining;
+        }
+        mScheduler.startPass();
+        // Overlaps the DNS lookup with the database work below
+        mWeatherSource.warmUp();
+
+        // Locations whose full forecast was already downloaded today only need today's
+        // conditions refreshed, and the group endpoint does that for many cities per request.
+        ArrayList<String> forecastLocations = new ArrayList<String>();
+        ArrayList<GroupMember> groupMembers = new ArrayList<GroupMember>();
+        long resolveStarted = SyncMetrics.startStage();
+        sortByFetchMode(locations, forecastLocations, groupMembers);
+        metrics.endStage(SyncMetricsLog.FIELD_RESOLVE, resolveStarted);
+
+        // Fetch everything on the shared pool.  Each fetch parses and stores its own response,
+        // so the sync window only stays open for as long as the slowest batch of requests.
+        // Whichever fetch stores a change to the preferred location leaves today's weather here
+        final AtomicReference<ForecastSnapshot> preferredSnapshot =
+                new AtomicReference<ForecastSnapshot>();
+        ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        ArrayList<String> taskNames = new ArrayList<String>();
+        for (final String locationQuery : forecastLocations) {
+            final boolean preferred = locationQuery.equals(preferredLocation);
+            tasks.add(coalesced(locationQuery, new Callable<Integer>() {
+                @Override
+                public Integer call() throws InterruptedException {
+                    byte[] payload = mJournal.loadPayload(locationQuery, DayMath.today());
+                    int result = SYNC_RESULT_SERVER_DOWN;
+                    if (payload != null) {
+                        // Downloaded by the pass that was killed, so there is no request to
+                        // make, retry or count against the quota
+                        result = syncLocation(locationQuery, preferred, preferredSnapshot,
+                                metrics, payload);
+                    }
+                    if (result == SYNC_RESULT_SERVER_DOWN) {
+                        result = fetchWithRetries(locationQuery, priority, preferred,
+                                new Callable<Integer>() {
+                                    @Override
+                                    public Integer call() {
+                                        return syncLocation(locationQuery, preferred,
+                                                preferredSnapshot, metrics, null);
+                                    }
+                                });
+                    }
+                    if (result != SYNC_RESULT_FAILED) {
+                        mJournal.onStored(Collections.singletonList(locationQuery),
+                                result == SYNC_RESULT_CHANGED,
+                                preferred ? preferredSnapshot.get() : null);
+                        // The location is stored by now, so its steps have somewhere to go
+                        syncHourly(locationQuery, metrics);
+                    }
+                    return result;
+                }
+            }));
+            taskNames.add(locationQuery);
+        }
+        for (int start = 0; start < groupMembers.size(); start += MAX_GROUP_SIZE) {
+            final List<GroupMember> chunk = groupMembers.subList(start,
+                    Math.min(start + MAX_GROUP_SIZE, groupMembers.size()));
+            final String key = groupKey(chunk);
+            final ArrayList<String> chunkLocations = new ArrayList<String>(chunk.size());
+            for (GroupMember member : chunk) {
+                chunkLocations.add(member.locationSetting);
+            }
+            final boolean hasPreferred = chunkLocations.contains(preferredLocation);
+            tasks.add(coalesced(key, new Callable<Integer>() {
+                @Override
+                public Integer call() throws InterruptedException {
+                    int result = fetchWithRetries(key, priority, hasPreferred,
+                            new Callable<Integer>() {
+                                @Override
+                                public Integer call() {
+                                    return syncGroup(chunk, preferredLocation,
+                                            preferredSnapshot, metrics);
+                                }
+                            });
+                    if (result != SYNC_RESULT_FAILED) {
+                        mJournal.onStored(chunkLocations, result == SYNC_RESULT_CHANGED,
+                                hasPreferred ? preferredSnapshot.get() : null);
+                        // The group only refreshes today, the steps go stale on their own
+                        for (String location : chunkLocations) {
+                            syncHourly(location, metrics);
+                        }
+                    }
+                    return result;
+                }
+            }));
+            taskNames.add("group of " + chunk.size());
+        }
+
+        int changedFetches = 0;
+        try {
+            List<Future<Integer>> results = sFetchExecutor.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (results.get(i).get() == SYNC_RESULT_CHANGED) {
+                        changedFetches++;
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error syncing " + taskNames.get(i), e.getCause());
+                    // Reaches the framework's stats with the rest of the metrics below
+                    metrics.addFetchError();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled.  invokeAll has already cancelled whatever was still running.
+            // The journal is left as it is, so the next sync picks up from here.
+            Thread.currentThread().interrupt();
+            metrics.copyTo(syncResult.stats);
+            metrics.save(getContext(), WeatherContract.SyncMetricsEntry.OUTCOME_CANCELLED);
+            return;
+        }
+
+        Log.d(LOG_TAG, "Sync Complete. " + changedFetches + " of " + tasks.size()
+                + " fetches changed data, " + groupMembers.size() + " of " + locations.size()
+                + " locations grouped");
+        // The pass that was killed may have stored rows without getting this far
+        if (changedFetches > 0 || mJournal.isDeletePending()) {
+            deleteOldWeather(metrics);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                checkpointDatabase();
+            }
+        }
+        mScheduler.finishPass();
+        metrics.copyTo(syncResult.stats);
+
+        // Everything that shows the weather only shows the preferred location, so there is
+        // nobody to tell unless it changed.  They are told once for the whole pass, on their
+        // own threads, and the sync returns without waiting for them.
+        ForecastSnapshot snapshot = preferredSnapshot.get();
+        if (snapshot == null) {
+            // The pass that was killed may still owe them a change it stored
+            snapshot = mJournal.getPendingFanOut();
+            if (snapshot != null && !snapshot.locationSetting.equals(preferredLocation)) {
+                snapshot = null;
+            }
+        }
+        // Everything is stored, so the next pass fetches afresh even if this one is killed
+        // while telling them; only what they are owed is kept until they have been told
+        mJournal.finishFetch(passStarted, snapshot);
+        if (snapshot == null) {
+            metrics.save(getContext(), WeatherContract.SyncMetricsEntry.OUTCOME_COMPLETE);
+            return;
+        }
+        final Context context = getContext();
+        SyncFanOut.dispatch(snapshot, new SyncFanOut.Listener() {
+            @Override
+            public void onFanOutFinished(long[] millis) {
+                // In the order the consumers are given below
+                metrics.setFanOut(SyncMetricsLog.FIELD_FAN_OUT_WIDGETS, millis[0]);
+                metrics.setFanOut(SyncMetricsLog.FIELD_FAN_OUT_MUZEI, millis[1]);
+                metrics.setFanOut(SyncMetricsLog.FIELD_FAN_OUT_NOTIFICATION, millis[2]);
+                metrics.setFanOut(SyncMetricsLog.FIELD_FAN_OUT_WEAR, millis[3]);
+                mJournal.finishFanOut(passStarted);
+                metrics.save(context, WeatherContract.SyncMetricsEntry.OUTCOME_COMPLETE);
+            }
+        }, new SyncFanOut.Consumer[] {
+                new SyncFanOut.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "Widgets";
+                    }
+
+                    @Override
+                    public long getTimeoutMillis() {
+                        return FAN_OUT_SERVICE_TIMEOUT_MILLIS;
+                    }
+
+                    @Override
+                    public void onForecastUpdated(ForecastSnapshot snapshot) {
+                        updateWidgets(snapshot);
+                    }
+                },
+                new SyncFanOut.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "Muzei";
+                    }
+
+                    @Override
+                    public long getTimeoutMillis() {
+                        return FAN_OUT_SERVICE_TIMEOUT_MILLIS;
+                    }
+
+                    @Override
+                    public void onForecastUpdated(ForecastSnapshot snapshot) {
+                        updateMuzei(snapshot);
+                    }
+                },
+                new SyncFanOut.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "Notification";
+                    }
+
+                    @Override
+                    public long getTimeoutMillis() {
+                        return FAN_OUT_NOTIFICATION_TIMEOUT_MILLIS;
+                    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+                    @Override
+                    public void onForecastUpdated(ForecastSnapshot snapshot) {
+                        notifyWeather(snapshot);
+                    }
+                },
+                new SyncFanOut.Consumer() {
+                    @Override
+                    public String getName() {
+                        return "Wear";
+                    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+                    @Override
+                    public long getTimeoutMillis() {
+                        return FAN_OUT_SERVICE_TIMEOUT_MILLIS;
+                    }
+
+                    @Override
+                    public void onForecastUpdated(ForecastSnapshot snapshot) {
+                        /** Function used to send weather data to android wear device **/
+                        updateWearDevice(snapshot);
+                    }
+                }
+        });
+    }
+
+    /**
+     * Wraps a fetch so that a sync following it within {@link #COALESCE_WINDOW_MILLIS} reuses
+     * it rather than fetching the same thing again.  Only the sync that did the fetch told the
+     * widgets and the rest about what it stored, so to a sync that reuses it nothing changed.
+     */
+    private Callable<Integer> coalesced(final String key, final Callable<Integer> fetch) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                final AtomicBoolean fetched = new AtomicBoolean();
+                int result = mCoalescer.run(key, new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        fetched.set(true);
+                        return fetch.call();
+                    }
+                });
+                if (!fetched.get() && result == SYNC_RESULT_CHANGED) {
+                    return SYNC_RESULT_UNCHANGED;
+                }
+                if (result == SYNC_RESULT_FAILED) {
+                    // Let the next sync try again straight away
+                    mCoalescer.forget(key);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Makes a fetch, and makes it again after a growing, jittered wait for as long as it can't
+     * reach the server, up to {@link RetryPolicy#MAX_ATTEMPTS} times.  Every attempt takes a
+     * token from the quota and goes through the circuit breaker first, and reports back to the
+     * breaker.  The first attempt of a sync the user asked for may probe an open breaker; if
+     * the breaker turns it away all the same, the server is reported down.
+     *
+     * @param priority the QuotaGovernor priority of the sync
+     * @param preferred whether the fetch is for the location shown in the app
+     * @param fetch returns one of the SYNC_RESULT constants
+     * @return the result of the last attempt, with SYNC_RESULT_SERVER_DOWN reported as
+     *         SYNC_RESULT_FAILED
+     * @throws InterruptedException if the sync was cancelled while waiting to retry
+     */
+    private int fetchWithRetries(String name, int priority, boolean preferred,
+                                 Callable<Integer> fetch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            // Before the breaker, which would otherwise spend its probe on a request we don't make
+            if (!mQuota.tryAcquire(priority)) {
+                Log.d(LOG_TAG, name + ": out of quota, leaving it for a later sync");
+                return SYNC_RESULT_FAILED;
+            }
+            boolean userInitiated = priority == QuotaGovernor.PRIORITY_USER && attempt == 1;
+            if (!mBreaker.allowRequest(userInitiated)) {
+                Log.d(LOG_TAG, name + ": server down, not fetching");
+                reportStatus(preferred, LOCATION_STATUS_SERVER_DOWN);
+                return SYNC_RESULT_FAILED;
+            }
+            int result;
+            try {
+                result = fetch.call();
+            } catch (Exception e) {
+                // The fetches catch everything they expect
+                throw new RuntimeException(e);
+            }
+            if (result != SYNC_RESULT_SERVER_DOWN) {
+                // Whatever the answer, the server gave one.  That includes a 429, which comes
+                // back as SYNC_RESULT_FAILED and closes a half-open breaker on purpose: the
+                // server is up, and the quota's pause keeps requests away until it is over.
+                mBreaker.onSuccess();
+                return result;
+            }
+            mBreaker.onFailure();
+            if (attempt == RetryPolicy.MAX_ATTEMPTS) {
+                return SYNC_RESULT_FAILED;
+            }
+            long delay = RetryPolicy.delayMillis(attempt, sRandom);
+            Log.d(LOG_TAG, name + ": attempt " + attempt + " failed, retrying in " + delay + "ms");
+            Thread.sleep(delay);
+        }
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    // Group fetches are shared when they ask for the same locations
+    private static String groupKey(List<GroupMember> members) {
+        StringBuilder key = new StringBuilder("group");
+        for (GroupMember member : members) {
+            key.append(' ').append(member.locationSetting);
+        }
+        return key.toString();
+    }
 
+    /**
+     * Fetches and stores the forecast for one location.  This runs on the fetch pool, so it
+     * must not touch anything but the database and its own location's state.
+     *
+     * @param preferred whether this is the location shown in the app; only its result is
+     *                  reported through the location status
+     * @param preferredSnapshot receives today's weather if this is the preferred location and
+     *                          it changed
+     * @param metrics the metrics of the sync the fetch is part of
+     * @param payload the forecast an interrupted sync downloaded and kept in the journal, to
+     *                store instead of fetching it, or null to fetch it
+     * @return one of the SYNC_RESULT constants
+     */
+    private int syncLocation(String locationQuery, boolean preferred,
+                             AtomicReference<ForecastSnapshot> preferredSnapshot,
+                             SyncMetrics metrics, byte[] payload) {
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            // If what we stored last time is still there, ask the server to only send the
+            // forecast when it has changed since then.
+            ForecastValidators validators = new ForecastValidators(getContext());
+            boolean haveStoredForecast = hasStoredForecast(locationQuery);
+
+            // Rows are collected as the days stream in, and kept until they are stored
+            ForecastCollector forecast = new ForecastCollector();
+            // Only the days that are stale; the rest stay as they are in the database
+            int numDays = ForecastHorizon.MAX_DAYS;
+            if (haveStoredForecast) {
+                numDays = mHorizon.getDaysToFetch(locationQuery, forecast.julianStartDay,
+                        System.currentTimeMillis());
+            }
+            // The validators only vouch for a request for as many days as theirs asked for
+            String eTag = null;
+            String lastModified = null;
+            if (haveStoredForecast && validators.getRequestDays(locationQuery) == numDays) {
+                eTag = validators.getETag(locationQuery);
+                lastModified = validators.getLastModified(locationQuery);
+            }
+            SyncJournal.Recorder recorder = null;
+            FetchResult result;
+            if (payload != null) {
+                Log.d(LOG_TAG, locationQuery + ": storing the forecast of the interrupted sync");
+                result = SyncJournal.replay(payload, forecast);
+            } else {
+                recorder = new SyncJournal.Recorder(forecast);
+                result = mWeatherSource.fetchForecast(locationQuery, numDays,
+                        eTag, lastModified, recorder);
+                TransferStats.record(getContext(), result);
+                metrics.addFetch(result);
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            if (result.notModified) {
+                // Nothing changed, so there is nothing to store and nobody to tell
+                Log.d(LOG_TAG, locationQuery + ": forecast not modified");
+                // Only the days the stored forecast holds from today on are vouched for
+                int coveredDays = validators.getForecastDay(locationQuery)
+                        + validators.getForecastDays(locationQuery) - forecast.julianStartDay;
+                if (coveredDays > 0) {
+                    mHorizon.onFetched(Collections.singletonList(locationQuery),
+                            forecast.julianStartDay, Math.min(numDays, coveredDays),
+                            System.currentTimeMillis());
+                }
+                reportStatus(preferred, LOCATION_STATUS_OK);
+                if (preferred) {
+                    mScheduler.onPreferredFetched(0);
+                }
+                return SYNC_RESULT_UNCHANGED;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            if (recorder != null) {
+                Log.d(LOG_TAG, locationQuery + ": downloaded " + result.wireBytes + " bytes ("
+                        + (result.encoding == null ? "identity" : result.encoding)
+                        + "), decoded to " + result.decodedBytes + " for " + numDays + " days");
+            }
+
+            if (haveStoredForecast && forecast.messageCode == HttpURLConnection.HTTP_OK
+                    && forecast.fingerprint() == validators.getFingerprint(locationQuery)) {
+                // The server sent the forecast we already have.  Skip the database writes and
+                // the widget, Muzei, notification and wear updates.
+                Log.d(LOG_TAG, locationQuery + ": forecast unchanged");
+                mHorizon.onFetched(Collections.singletonList(locationQuery),
+                        forecast.julianStartDay, forecast.rows.size(),
+                        System.currentTimeMillis());
+                reportStatus(preferred, LOCATION_STATUS_OK);
+                if (preferred) {
+                    mScheduler.onPreferredFetched(0);
+                }
+                return SYNC_RESULT_UNCHANGED;
+            }
+
+            if (recorder != null && forecast.messageCode == HttpURLConnection.HTTP_OK) {
+                // If the sync is killed while this is stored, the next one stores it from here
+                mJournal.savePayload(locationQuery,
+                        recorder.toPayload(forecast.julianStartDay, result));
+            }
+            @LocationStatus int status = storeForecast(forecast, locationQuery, preferred,
+                    metrics);
+            reportStatus(preferred, status);
+            if (status == LOCATION_STATUS_SERVER_DOWN) {
+                return SYNC_RESULT_SERVER_DOWN;
+            } else if (status != LOCATION_STATUS_OK) {
+                return SYNC_RESULT_FAILED;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            validators.save(locationQuery, result.eTag, result.lastModified,
+                    forecast.fingerprint(), forecast.julianStartDay, numDays,
+                    forecast.rows.size());
+            mHorizon.onFetched(Collections.singletonList(locationQuery),
+                    forecast.julianStartDay, forecast.rows.size(), System.currentTimeMillis());
+            if (forecast.changedRows == 0) {
+                return SYNC_RESULT_UNCHANGED;
+            }
+            if (preferred) {
+                // The first day of a forecast is always today
+                preferredSnapshot.set(ForecastSnapshot.fromValues(locationQuery,
+                        forecast.rows.getValues(0)));
+            }
+            return SYNC_RESULT_CHANGED;
+        } catch (RateLimitedException e) {
+            // The forecast we have is still the one to show; try again once the pause is over
+            Log.w(LOG_TAG, locationQuery + ": " + e.getMessage());
+            mQuota.onRateLimited();
+            return SYNC_RESULT_FAILED;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
+            metrics.addIoError();
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            reportStatus(preferred, LOCATION_STATUS_SERVER_DOWN);
+            return SYNC_RESULT_SERVER_DOWN;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            metrics.addParseError();
+            reportStatus(preferred, LOCATION_STATUS_SERVER_INVALID);
+            return SYNC_RESULT_FAILED;
+        }
+    }
+
+    /**
+     * Splits the locations between those that need days of their forecast downloaded and those
+     * that can be refreshed through a group request: locations with a known city id whose
+     * stored forecast is fresh but for today.
+     */
+    private void sortByFetchMode(List<String> locations, List<String> forecastLocations,
+                                 List<GroupMember> groupMembers) {
+        HashMap<String, GroupMember> known = new HashMap<String, GroupMember>();
+        long generation = LocationIdCache.getGeneration();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, GROUP_MEMBER_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_CITY_ID + " IS NOT NULL", null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                GroupMember member = new GroupMember(cursor.getString(INDEX_LOCATION_SETTING),
+                        cursor.getLong(INDEX_LOCATION_ID), cursor.getInt(INDEX_CITY_ID));
+                known.put(member.locationSetting, member);
+                // Saves storing the forecasts of these locations a lookup each
+                LocationIdCache.put(member.locationSetting, member.locationId, member.cityId,
+                        generation);
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            cursor.close();
+        }
+
+        int julianToday = DayMath.today();
+        long now = System.currentTimeMillis();
+        for (String location : locations) {
+            GroupMember member = known.get(location);
+            if (member != null && mHorizon.getDaysToFetch(location, julianToday, now) == 1
+                    && readTodaysForecast(member)) {
+                groupMembers.add(member);
+            } else {
+                forecastLocations.add(location);
             }
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Refreshes the current conditions in today's row for up to {@link #MAX_GROUP_SIZE}
+     * locations with a single request to the group endpoint, then stores the rows of the whole
+     * group in one transaction.  Today's high and low stay as the forecast gave them.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param preferredSnapshot receives today's weather if the preferred location is in the
+     *                          group and the group changed
+     * @param metrics the metrics of the sync the fetch is part of
+     * @return one of the SYNC_RESULT constants
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    private int syncGroup(List<GroupMember> members, String preferredLocation,
+                          AtomicReference<ForecastSnapshot> preferredSnapshot,
+                          SyncMetrics metrics) {
+        boolean hasPreferred = false;
+        long preferredLocationId = -1;
+        SparseArray<ArrayList<GroupMember>> membersByCity = new SparseArray<ArrayList<GroupMember>>();
+        for (GroupMember member : members) {
+            // Different location settings can resolve to the same city, e.g. a zip code and
+            // the city name.  Ask for the city once and store it for each of them.
+            ArrayList<GroupMember> sameCity = membersByCity.get(member.cityId);
+            if (sameCity == null) {
+                sameCity = new ArrayList<GroupMember>(1);
+                membersByCity.put(member.cityId, sameCity);
+            }
+            sameCity.add(member);
+            if (member.locationSetting.equals(preferredLocation)) {
+                hasPreferred = true;
+                preferredLocationId = member.locationId;
+            }
+        }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+        try {
+            int[] cityIds = new int[membersByCity.size()];
+            for (int i = 0; i < cityIds.length; i++) {
+                cityIds[i] = membersByCity.keyAt(i);
+            }
 
-        // These are the names of the JSON objects that need to be extracted.
+            GroupCollector group = new GroupCollector(membersByCity);
+            int julianToday = DayMath.today();
+            FetchResult result = mWeatherSource.fetchCurrentWeather(cityIds, group);
+            TransferStats.record(getContext(), result);
+            metrics.addFetch(result);
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+            if (group.messageCode != HttpURLConnection.HTTP_OK) {
+                reportStatus(hasPreferred, LOCATION_STATUS_SERVER_DOWN);
+                return SYNC_RESULT_SERVER_DOWN;
+            }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+            int changedRows = 0;
+            int preferredRow = findRow(group.rows, preferredLocationId);
+            if (group.rows.size() > 0) {
+                if (preferredRow >= 0) {
+                    // Compare with what we have before it is overwritten
+                    mScheduler.onPreferredFetched(SyncScheduler.measureChange(
+                            getContext().getContentResolver(),
+                            new ContentValues[]{group.rows.getValues(preferredRow)}));
+                }
+                changedRows = writeWeather(group.rows, metrics);
+                mHorizon.onFetched(group.refreshed, julianToday, 1, System.currentTimeMillis());
+            }
+            Log.d(LOG_TAG, "Group of " + members.size() + ": " + changedRows + " of "
+                    + group.rows.size() + " rows written in one request");
+            reportStatus(hasPreferred, LOCATION_STATUS_OK);
+            if (changedRows == 0) {
+                return SYNC_RESULT_UNCHANGED;
+            }
+            if (preferredRow >= 0) {
+                preferredSnapshot.set(ForecastSnapshot.fromValues(preferredLocation,
+                        group.rows.getValues(preferredRow)));
+            }
+            return SYNC_RESULT_CHANGED;
+        } catch (RateLimitedException e) {
+            Log.w(LOG_TAG, "Group of " + members.size() + ": " + e.getMessage());
+            mQuota.onRateLimited();
+            return SYNC_RESULT_FAILED;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            metrics.addIoError();
+            reportStatus(hasPreferred, LOCATION_STATUS_SERVER_DOWN);
+            return SYNC_RESULT_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            metrics.addParseError();
+            reportStatus(hasPreferred, LOCATION_STATUS_SERVER_INVALID);
+            return SYNC_RESULT_FAILED;
+        }
+    }
+
+    /**
+     * Returns the index of the row written for the given location, or -1 if the server left
+     * its city out of the response.
+     */
+    private static int findRow(WeatherBatch rows, long locationId) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.getLocationId(i) == locationId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Downloads the five day forecast in three hour steps for a location whose daily forecast
+     * is stored, and writes it in one batch.  Steps we already have are replaced.  Nothing is
+     * requested while the stored steps are younger than
+     * {@link ForecastHorizon#HOURLY_MAX_AGE_MILLIS}, however the daily forecast was refreshed,
+     * or while the circuit breaker keeps requests away.  The location status only describes
+     * the daily forecast, so failures here are just logged.
+     */
+    private void syncHourly(String locationQuery, SyncMetrics metrics) {
+        long now = System.currentTimeMillis();
+        if (!mHorizon.isHourlyStale(locationQuery, now)) {
+            return;
+        }
+        long resolveStarted = SyncMetrics.startStage();
+        long locationId = findLocationId(locationQuery);
+        metrics.endStage(SyncMetricsLog.FIELD_RESOLVE, resolveStarted);
+        if (locationId == -1) {
+            return;
+        }
+        // The daily forecast matters more, so the steps never take the user's reserve
+        if (!mQuota.tryAcquire(QuotaGovernor.PRIORITY_BACKGROUND)) {
+            Log.d(LOG_TAG, locationQuery + ": out of quota, keeping the stored hourly steps");
+            return;
+        }
+        // Never the probe of an open breaker; that is the daily forecast's to make
+        if (!mBreaker.allowRequest(false)) {
+            Log.d(LOG_TAG, locationQuery + ": server down, keeping the stored hourly steps");
+            return;
+        }
+        try {
+            HourlyCollector hourly = new HourlyCollector(locationId);
+            FetchResult result = mWeatherSource.fetchHourlyForecast(locationQuery, hourly);
+            // Whatever the answer, the server gave one
+            mBreaker.onSuccess();
+            TransferStats.record(getContext(), result);
+            metrics.addFetch(result);
+
+            if (hourly.messageCode != HttpURLConnection.HTTP_OK) {
+                Log.w(LOG_TAG, locationQuery + ": hourly forecast failed with "
+                        + hourly.messageCode);
+                return;
+            }
+            int inserted = 0;
+            if (hourly.rows.size() > 0) {
+                long insertStarted = SyncMetrics.startStage();
+                ContentResolver resolver = getContext().getContentResolver();
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+                    // Provider calls only exist from Honeycomb
+                    inserted = resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                            hourly.rows.toValues());
+                } else {
+                    inserted = insertHourly(resolver, hourly.rows);
+                }
+                metrics.endStage(SyncMetricsLog.FIELD_INSERT, insertStarted);
+                metrics.addRows(hourly.rows.size(), inserted, 0);
+            }
+            mHorizon.onHourlyFetched(locationQuery, now);
+            Log.d(LOG_TAG, locationQuery + ": " + inserted + " hourly steps written");
+        } catch (RateLimitedException e) {
+            Log.w(LOG_TAG, locationQuery + ": " + e.getMessage());
+            // As for the daily forecast, a 429 means the server is up
+            mBreaker.onSuccess();
+            mQuota.onRateLimited();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            mBreaker.onFailure();
+            metrics.addIoError();
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            mBreaker.onSuccess();
+            metrics.addParseError();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int insertHourly(ContentResolver resolver, HourlyBatch rows) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(WeatherContract.HourlyEntry.EXTRA_BATCH, rows);
+        Bundle result = resolver.call(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.METHOD_INSERT, null, extras);
+        return result.getInt(WeatherContract.HourlyEntry.EXTRA_INSERTED_COUNT);
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Collects the steps of an hourly forecast as a batch of rows for the hourly table.
+     */
+    private static class HourlyCollector implements HourlyForecastJsonParser.Listener {
+        // OWM sends five days of three hour steps
+        final HourlyBatch rows = new HourlyBatch(40);
+        final long locationId;
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        int messageCode = HttpURLConnection.HTTP_OK;
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        HourlyCollector(long locationId) {
+            this.locationId = locationId;
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        @Override
+        public void onMessageCode(int code) {
+            messageCode = code;
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        @Override
+        public void onStep(long time, double temperature, int humidity, double windSpeed,
+                           int weatherId) {
+            rows.add(locationId, time, weatherId, temperature, humidity, windSpeed);
+        }
+    }
 
+    /**
+     * Returns the _id of the stored location with the given setting, or -1 if there is none.
+     */
+    private long findLocationId(String locationSetting) {
+        long cachedId = LocationIdCache.getId(locationSetting);
+        if (cachedId != LocationIdCache.NO_ID) {
+            return cachedId;
+        }
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return -1;
+        }
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A location that is refreshed through the group endpoint, with the ids that tie it to the
+     * server's city and to our location table.
+     */
+    private static class GroupMember {
+        final String locationSetting;
+        final long locationId;
+        final int cityId;
+        // Today's high and low from the stored forecast
+        double high;
+        double low;
+
+        GroupMember(String locationSetting, long locationId, int cityId) {
+            this.locationSetting = locationSetting;
+            this.locationId = locationId;
+            this.cityId = cityId;
+        }
+    }
+
+    /**
+     * Receives the cities of a group response and turns each one into today's row for every
+     * location that resolved to it.  Only the current conditions are taken from the response:
+     * its temp_max and temp_min are the spread across the city right now, not the day's high
+     * and low, so those are kept from the stored forecast.
+     */
+    private static class GroupCollector implements CurrentWeatherJsonParser.Listener {
+        final WeatherBatch rows = new WeatherBatch(MAX_GROUP_SIZE);
+        // The location settings the rows are for
+        final ArrayList<String> refreshed = new ArrayList<String>();
+        final SparseArray<ArrayList<GroupMember>> membersByCity;
+        final long today;
+
+        int messageCode = HttpURLConnection.HTTP_OK;
+
+        GroupCollector(SparseArray<ArrayList<GroupMember>> membersByCity) {
+            this.membersByCity = membersByCity;
+            today = DayMath.startOfDay(DayMath.today());
+        }
+
+        @Override
+        public void onMessageCode(int code) {
+            messageCode = code;
+        }
+
+        @Override
+        public void onCurrentWeather(int cityId, double pressure, int humidity, double windSpeed,
+                                     double windDirection, double high, double low,
+                                     String description, int weatherId) {
+            ArrayList<GroupMember> members = membersByCity.get(cityId);
+            if (members == null) {
+                // Not a city we asked for
+                return;
+            }
+            for (GroupMember member : members) {
+                rows.add(member.locationId, today, weatherId, description, member.low,
+                        member.high, humidity, pressure, windSpeed, windDirection);
+                refreshed.add(member.locationSetting);
             }
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+    /**
+     * The location status describes the location shown in the app, so the saved locations
+     * synced alongside it don't get to change it.
+     */
+    private void reportStatus(boolean preferred, @LocationStatus int status) {
+        if (preferred) {
+            setLocationStatus(getContext(), status);
+        }
+    }
 
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+    /**
+     * Receives the forecast from {@link ForecastJsonParser} and turns each day into the
+     * row we store, as soon as the day has been parsed.
+     */
+    private static class ForecastCollector implements ForecastJsonParser.Listener {
+        final WeatherBatch rows = new WeatherBatch(ForecastHorizon.MAX_DAYS);
+        final int julianStartDay;
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        int messageCode = HttpURLConnection.HTTP_OK;
+        int cityId;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        // Rows the database didn't already have, filled in by storeForecast
+        int changedRows;
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        private long mFingerprint = 17;
 
+        ForecastCollector() {
             // OWM returns daily forecasts based upon the local time of the city that is being
             // asked for, which means that we need to know the GMT offset to translate this data
             // properly.
@@ -269,124 +1035,257 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             // Since this data is also sent in-order and the first day is always the
             // current day, we're going to take advantage of that to get a nice
             // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
             // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
+            julianStartDay = DayMath.today();
+        }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+        @Override
+        public void onMessageCode(int code) {
+            messageCode = code;
+        }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+        @Override
+        public void onCity(int cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        /**
+         * A hash of the forecast as we would store it.  The raw response can't be compared
+         * directly, because OWM puts per-request timing in it, and the same response stored
+         * on a later day lands on different dates.
+         */
+        long fingerprint() {
+            long hash = mFingerprint;
+            hash = hash * 31 + julianStartDay;
+            hash = hash * 31 + (cityName == null ? 0 : cityName.hashCode());
+            hash = hash * 31 + Double.doubleToLongBits(cityLatitude);
+            hash = hash * 31 + Double.doubleToLongBits(cityLongitude);
+            return hash == ForecastValidators.NO_FINGERPRINT ? 1 : hash;
+        }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        private void mixFingerprint(long value) {
+            mFingerprint = mFingerprint * 31 + value;
+        }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            mixFingerprint(Double.doubleToLongBits(pressure));
+            mixFingerprint(humidity);
+            mixFingerprint(Double.doubleToLongBits(windSpeed));
+            mixFingerprint(Double.doubleToLongBits(windDirection));
+            mixFingerprint(Double.doubleToLongBits(high));
+            mixFingerprint(Double.doubleToLongBits(low));
+            mixFingerprint(description.hashCode());
+            mixFingerprint(weatherId);
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = DayMath.startOfDay(julianStartDay + dayIndex);
+
+            // The location key is filled in by storeForecast, once the city is known
+            rows.add(0, dateTime, weatherId, description, low, high, humidity, pressure,
+                    windSpeed, windDirection);
+        }
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    /**
+     * Take the forecast collected from the response and store it.  The rows go in through a
+     * single write, so each location is written in its own transaction.
+     *
+     * @return the status of the location: LOCATION_STATUS_OK if the response was a valid
+     * forecast and has been stored.
+     */
+    @LocationStatus
+    private int storeForecast(ForecastCollector forecast, String locationSetting,
+                              boolean preferred, SyncMetrics metrics) {
+        // do we have an error?
+        switch (forecast.messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return LOCATION_STATUS_INVALID;
+            default:
+                return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        if (forecast.cityName == null) {
+            Log.e(LOG_TAG, "Forecast response did not include a city");
+            return LOCATION_STATUS_SERVER_INVALID;
+        }
 
-                cVVector.add(weatherValues);
+        long resolveStarted = SyncMetrics.startStage();
+        long locationId = addLocation(locationSetting, forecast.cityId, forecast.cityName,
+                forecast.cityLatitude, forecast.cityLongitude);
+        metrics.endStage(SyncMetricsLog.FIELD_RESOLVE, resolveStarted);
+
+        // add to database
+        if ( forecast.rows.size() > 0 ) {
+            forecast.rows.setLocationId(locationId);
+            if (preferred) {
+                // Compare with what we have before it is overwritten
+                mScheduler.onPreferredFetched(SyncScheduler.measureChange(
+                        getContext().getContentResolver(), forecast.rows));
             }
+            forecast.changedRows = writeWeather(forecast.rows, metrics);
+        }
+        Log.d(LOG_TAG, locationSetting + ": " + forecast.changedRows + " of "
+                + forecast.rows.size() + " rows written");
+        return LOCATION_STATUS_OK;
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+    /**
+     * Writes weather rows in one transaction.  Where the provider supports it, rows we already
+     * have are compared with the new ones and only changed columns are written, which keeps
+     * their _ids stable and spares observers from reloading when nothing changed.  The rows
+     * are handed over as a batch of primitives, which the provider binds without boxing.
+     *
+     * @return the number of rows inserted or updated
+     */
+    private int writeWeather(WeatherBatch rows, SyncMetrics metrics) {
+        long started = SyncMetrics.startStage();
+        ContentResolver resolver = getContext().getContentResolver();
+        int inserted;
+        int updated = 0;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // Provider calls only exist from Honeycomb
+            inserted = resolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                    rows.toValues());
+        } else {
+            Bundle changes = upsertWeather(resolver, rows);
+            inserted = changes.getLongArray(WeatherContract.WeatherEntry.EXTRA_INSERTED_IDS).length;
+            updated = changes.getLongArray(WeatherContract.WeatherEntry.EXTRA_UPDATED_IDS).length;
+        }
+        metrics.endStage(SyncMetricsLog.FIELD_INSERT, started);
+        metrics.addRows(rows.size(), inserted, updated);
+        return inserted + updated;
+    }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bundle upsertWeather(ContentResolver resolver, WeatherBatch rows) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(WeatherContract.WeatherEntry.EXTRA_BATCH, rows);
+        return resolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_UPSERT, null, extras);
+    }
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+    /**
+     * Moves what the pass wrote out of the database's write-ahead log, now, while nothing else
+     * is writing, rather than in the middle of the next sync's inserts.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void checkpointDatabase() {
+        Bundle result = getContext().getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI, WeatherContract.METHOD_CHECKPOINT, null, null);
+        int pagesLeft = result.getInt(WeatherContract.EXTRA_WAL_PAGES);
+        if (pagesLeft > 0) {
+            // Readers still on older pages; the next checkpoint gets them
+            Log.d(LOG_TAG, pagesLeft + " pages left in the write-ahead log");
+        }
+    }
 
-                /** Function used to send weather data to android wear device **/
-                updateWearDevice();
+    /**
+     * Delete old data so we don't build up an endless history.  Done once per pass for every
+     * location, rather than after each location's insert, and as one batch, so loaders hear
+     * of it once per table.
+     */
+    private void deleteOldWeather(SyncMetrics metrics) {
+        long started = SyncMetrics.startStage();
+        int julianToday = DayMath.today();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(2);
+        operations.add(ContentProviderOperation.newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[] {Long.toString(DayMath.startOfDay(julianToday - 1))})
+                .build());
+        // Today's past steps stay, so a day view can show all of today
+        operations.add(ContentProviderOperation.newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                .withSelection(WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                        new String[] {Long.toString(DayMath.startOfDay(julianToday))})
+                .build());
+        int deleted = 0;
+        try {
+            for (ContentProviderResult result : getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations)) {
+                deleted += result.count;
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        } catch (RemoteException | OperationApplicationException e) {
+            // Nothing was deleted; the next pass tries again
+            Log.e(LOG_TAG, "Error deleting old weather", e);
+        }
+        metrics.endStage(SyncMetricsLog.FIELD_DELETE, started);
+        metrics.addDeletedRows(deleted);
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Reads today's high and low from the stored forecast into the member.
+     *
+     * @return false if there is no forecast stored for today
+     */
+    private boolean readTodaysForecast(GroupMember member) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                member.locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+                }, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        if (hasForecast) {
+            member.high = cursor.getDouble(0);
+            member.low = cursor.getDouble(1);
         }
+        cursor.close();
+        return hasForecast;
     }
 
-    private void updateWearDevice(){
-        Intent in = new Intent(getContext(), WearUpdateService.class);
+    /**
+     * Checks that today's forecast for the location is still in the database.  Until it is,
+     * conditional requests and unchanged responses can't be trusted to leave us with data.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
+
+    private void updateWearDevice(ForecastSnapshot snapshot) {
+        Intent in = snapshot.putInto(new Intent(getContext(), WearUpdateService.class));
         in.setAction("WearUpdateAction");
         getContext().startService(in);
     }
 
-    private void updateWidgets() {
+    private void updateWidgets(ForecastSnapshot snapshot) {
         Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
+        Intent dataUpdatedIntent = snapshot.putInto(new Intent(ACTION_DATA_UPDATED))
                 .setPackage(context.getPackageName());
         context.sendBroadcast(dataUpdatedIntent);
     }
 
-    private void updateMuzei() {
+    private void updateMuzei(ForecastSnapshot snapshot) {
         // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
         // Muzei background on lower API level devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
+            context.startService(snapshot.putInto(new Intent(ACTION_DATA_UPDATED))
                     .setClass(context, WeatherMuzeiSource.class));
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(ForecastSnapshot snapshot) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -401,94 +1300,86 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+                // The sync has handed us today's weather, so there is nothing to query.
+                int weatherId = snapshot.weatherId;
+                double high = snapshot.high;
+                double low = snapshot.low;
+                String desc = snapshot.description;
+
+                int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                Resources resources = context.getResources();
+                int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+                // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                // Prior to that, we use a fixed size
+                @SuppressLint("InlinedApi")
+                int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                @SuppressLint("InlinedApi")
+                int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                // Retrieve the large icon.  If the fan-out gives up waiting, we are interrupted
+                // and fall back to the bundled art.
+                Bitmap largeIcon;
+                try {
+                    largeIcon = Glide.with(context)
+                            .load(artUrl)
+                            .asBitmap()
+                            .error(artResourceId)
+                            .fitCenter()
+                            .into(largeIconWidth, largeIconHeight).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                    largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                 }
-                cursor.close();
+                String title = context.getString(R.string.app_name);
+
+                // Define the text of the forecast.
+                String contentText = String.format(context.getString(R.string.format_notification),
+                        desc,
+                        Utility.formatTemperature(context, high),
+                        Utility.formatTemperature(context, low));
+
+                // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                // notifications.  Just throw in some data.
+                NotificationCompat.Builder mBuilder =
+                        new NotificationCompat.Builder(getContext())
+                                .setColor(resources.getColor(R.color.primary_light))
+                                .setSmallIcon(iconId)
+                                .setLargeIcon(largeIcon)
+                                .setContentTitle(title)
+                                .setContentText(contentText);
+
+                // Make something interesting happen when the user clicks on the notification.
+                // In this case, opening the app is sufficient.
+                Intent resultIntent = new Intent(context, MainActivity.class);
+
+                // The stack builder object will contain an artificial back stack for the
+                // started Activity.
+                // This ensures that navigating backward from the Activity leads out of
+                // your application to the Home screen.
+                TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                stackBuilder.addNextIntent(resultIntent);
+                PendingIntent resultPendingIntent =
+                        stackBuilder.getPendingIntent(
+                                0,
+                                PendingIntent.FLAG_UPDATE_CURRENT
+                        );
+                mBuilder.setContentIntent(resultPendingIntent);
+
+                NotificationManager mNotificationManager =
+                        (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+                // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                //refreshing last sync
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                editor.commit();
             }
         }
     }
@@ -497,15 +1388,22 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * Helper method to handle insertion of a new location in the weather database.
      *
      * @param locationSetting The location string used to request updates from the server.
+     * @param cityId the id the server knows the city by, or 0 if the server didn't send one
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
      * @return the row ID of the added location.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+    long addLocation(String locationSetting, int cityId, String cityName, double lat, double lon) {
+        long locationId = LocationIdCache.getId(locationSetting);
+        if (locationId != LocationIdCache.NO_ID
+                && (cityId == 0 || cityId == LocationIdCache.getCityId(locationSetting))) {
+            // Known, and nothing to update
+            return locationId;
+        }
 
         // First, check if the location with this city name exists in the db
+        long generation = LocationIdCache.getGeneration();
         Cursor locationCursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
                 new String[]{WeatherContract.LocationEntry._ID},
@@ -516,6 +1414,20 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         if (locationCursor.moveToFirst()) {
             int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
             locationId = locationCursor.getLong(locationIdIndex);
+
+            // Locations stored before we kept city ids pick theirs up the next time they sync
+            if (cityId != 0) {
+                ContentValues cityIdValues = new ContentValues();
+                cityIdValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+                getContext().getContentResolver().update(
+                        WeatherContract.LocationEntry.CONTENT_URI, cityIdValues,
+                        WeatherContract.LocationEntry._ID + " = ? AND ("
+                                + WeatherContract.LocationEntry.COLUMN_CITY_ID + " IS NULL OR "
+                                + WeatherContract.LocationEntry.COLUMN_CITY_ID + " != ?)",
+                        new String[]{Long.toString(locationId), Integer.toString(cityId)});
+            }
+            // Ignored if that update changed the row, in which case the next sync reads it again
+            LocationIdCache.put(locationSetting, locationId, cityId, generation);
         } else {
             // Now that the content provider is set up, inserting rows of data is pretty simple.
             // First create a ContentValues object to hold the data you want to insert.
@@ -527,6 +1439,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            if (cityId != 0) {
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+            }
 
             // Finally, insert location data into the database.
             Uri insertedUri = getContext().getContentResolver().insert(
@@ -567,9 +1482,28 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, true);
+    }
+
+    /**
+     * Has the sync adapter sync immediately.
+     *
+     * @param userInitiated whether the user asked for the weather, e.g. by refreshing or
+     *                      changing the location, rather than something in the background
+     *                      noticing it is old; the API quota is kept for those first
+     */
+    public static void syncImmediately(Context context, boolean userInitiated) {
+        if (!userInitiated && CircuitBreaker.isOpen(context)) {
+            // The server is down; the sync would only fail, and it will be retried once the
+            // breaker lets a probe through.  The user's refresh goes ahead as the probe.
+            Log.d(SunshineSyncAdapter.class.getSimpleName(), "Server down, not requesting a sync");
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
-        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        if (userInitiated) {
+            bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        }
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
@@ -0,0 +1,89 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+
+/**
+ * Folds fetches of the same thing into one.  Settings, the app and the periodic schedule all
+ * ask for syncs, and when those land close together each pass would download every location
+ * again.  A fetch asked for within the window after the same one finished gets that result
+ * without doing anything.
+ *
+ * The framework runs one sync at a time for the account, so fetches are only ever shared
+ * between syncs that follow each other, never between syncs in flight together.  Only fetches
+ * that completed are shared; one that threw, or that the caller {@link #forget forgot}, is
+ * retried by the next request.
+ *
+ * @param <V> the result of a fetch
+ */
+class SyncCoalescer<V> {
+    private static final String LOG_TAG = SyncCoalescer.class.getSimpleName();
+
+    private static class Entry<V> {
+        final V result;
+        // Elapsed realtime the fetch finished at
+        final long finishedAt;
+
+        Entry(V result, long finishedAt) {
+            this.result = result;
+            this.finishedAt = finishedAt;
+        }
+    }
+
+    private final long mWindowMillis;
+    private final HashMap<String, Entry<V>> mEntries = new HashMap<String, Entry<V>>();
+
+    /**
+     * @param windowMillis how long a finished fetch is shared for; 0 never shares one
+     */
+    SyncCoalescer(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Runs the work on the calling thread, unless a fetch with the same key finished within
+     * the window, in which case that fetch's result is returned instead.
+     *
+     * @throws Exception whatever the work threw
+     */
+    V run(String key, Callable<V> work) throws Exception {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            pruneExpired(now);
+            Entry<V> entry = mEntries.get(key);
+            if (entry != null) {
+                Log.d(LOG_TAG, key + ": fetched " + (now - entry.finishedAt) + "ms ago, skipping");
+                return entry.result;
+            }
+        }
+
+        V result = work.call();
+        if (mWindowMillis > 0) {
+            synchronized (this) {
+                mEntries.put(key, new Entry<V>(result, SystemClock.elapsedRealtime()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the finished fetch for the key, so the next request does the work again, e.g.
+     * because it reported a failure without throwing.
+     */
+    synchronized void forget(String key) {
+        mEntries.remove(key);
+    }
+
+    private void pruneExpired(long now) {
+        Iterator<Entry<V>> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().finishedAt >= mWindowMillis) {
+                entries.remove();
+            }
+        }
+    }
+}
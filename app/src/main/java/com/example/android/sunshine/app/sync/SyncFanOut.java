@@ -0,0 +1,131 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells everything that shows the weather about a new forecast, once the sync has stored it.
+ *
+ * The consumers run at the same time on their own pool, each with its own deadline, so a slow
+ * one such as the notification waiting on its large icon holds up neither the others nor the
+ * sync, which returns as soon as the database has been written.  A consumer that misses its
+ * deadline is interrupted.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    // One thread per consumer we have today, so none waits for another to finish
+    private static final int MAX_CONCURRENT_CONSUMERS = 4;
+
+    private static final ThreadPoolExecutor sConsumerExecutor;
+    static {
+        sConsumerExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_CONSUMERS,
+                MAX_CONCURRENT_CONSUMERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sConsumerExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Waits on the consumers of each fan-out in turn, so the sync thread never has to
+    private static final Executor sSupervisor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Something that shows the weather and needs to hear about a new forecast.
+     */
+    interface Consumer {
+        // Shown in the log when the consumer fails or runs out of time
+        String getName();
+
+        long getTimeoutMillis();
+
+        void onForecastUpdated(ForecastSnapshot snapshot) throws Exception;
+    }
+
+    /**
+     * Hears how long each consumer of a fan-out took, once they have all finished or run out
+     * of time.  Called on a background thread.
+     */
+    interface Listener {
+        // In the order the consumers were given; one that ran out of time counts as its timeout
+        void onFanOutFinished(long[] millis);
+    }
+
+    private SyncFanOut() {
+    }
+
+    /**
+     * Starts every consumer on the snapshot and returns without waiting for any of them, or
+     * reporting how long they took.
+     */
+    static void dispatch(ForecastSnapshot snapshot, Consumer... consumers) {
+        dispatch(snapshot, null, consumers);
+    }
+
+    /**
+     * Starts every consumer on the snapshot and returns without waiting for any of them.
+     *
+     * @param listener told how long the consumers took, or null
+     */
+    static void dispatch(final ForecastSnapshot snapshot, final Listener listener,
+                         final Consumer... consumers) {
+        final ArrayList<Future<?>> futures = new ArrayList<Future<?>>(consumers.length);
+        final AtomicLongArray durations = new AtomicLongArray(consumers.length);
+        for (int i = 0; i < consumers.length; i++) {
+            final Consumer consumer = consumers[i];
+            final int index = i;
+            futures.add(sConsumerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long started = SystemClock.elapsedRealtime();
+                    try {
+                        consumer.onForecastUpdated(snapshot);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, consumer.getName() + " failed", e);
+                    } finally {
+                        durations.set(index, SystemClock.elapsedRealtime() - started);
+                    }
+                }
+            }));
+        }
+
+        final long start = System.currentTimeMillis();
+        sSupervisor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] millis = new long[consumers.length];
+                for (int i = 0; i < consumers.length; i++) {
+                    long remaining = start + consumers[i].getTimeoutMillis()
+                            - System.currentTimeMillis();
+                    try {
+                        futures.get(i).get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                        millis[i] = durations.get(i);
+                    } catch (TimeoutException e) {
+                        Log.w(LOG_TAG, consumers[i].getName() + " took longer than "
+                                + consumers[i].getTimeoutMillis() + "ms, cancelling it");
+                        futures.get(i).cancel(true);
+                        millis[i] = consumers[i].getTimeoutMillis();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (ExecutionException e) {
+                        // already logged by the consumer's own task
+                        millis[i] = durations.get(i);
+                    }
+                }
+                if (listener != null) {
+                    listener.onFanOutFinished(millis);
+                }
+            }
+        });
+    }
+}
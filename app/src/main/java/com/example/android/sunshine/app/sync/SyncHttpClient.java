@@ -0,0 +1,285 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.http.HttpDiskCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client every sync request goes through.  It leaves connections open once a
+ * response has been read, so the platform's connection pool can hand them to the next request
+ * to the same host instead of paying for DNS and TCP setup again.  The platform keeps idle
+ * connections for a few minutes, which covers all the requests of a sync pass.
+ *
+ * A connection only goes back to the pool when its response has been read to the end, so
+ * {@link Response#close()} reads whatever the parser left behind, such as a gzip trailer,
+ * rather than disconnecting.
+ *
+ * Each response also records how long the request took to connect, to get the first byte of
+ * the response, and to transfer and parse the body.
+ *
+ * Given an {@link HttpDiskCache}, a request is answered from it while the stored response is
+ * fresh, and a new response is stored as it is read.
+ */
+class SyncHttpClient {
+    private static final String LOG_TAG = SyncHttpClient.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // A body with more than this left unread costs more to drain than a new connection does
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final SyncHttpClient sInstance = new SyncHttpClient();
+
+    // Resolves host names ahead of the first request; one lookup at a time is plenty, and the
+    // thread goes away once a sync's lookups are done
+    private final Executor mWarmUpExecutor = new ThreadPoolExecutor(0, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static SyncHttpClient getInstance() {
+        return sInstance;
+    }
+
+    private SyncHttpClient() {
+    }
+
+    /**
+     * Looks up a host in the background, so its address is cached by the time the first
+     * request is made.  Call it as a sync starts, before the work that precedes the requests.
+     */
+    void warmUp(final String host) {
+        mWarmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InetAddress.getAllByName(host);
+                } catch (UnknownHostException e) {
+                    // The request will report it
+                    Log.d(LOG_TAG, "Couldn't resolve " + host + " ahead of the sync");
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a GET request and waits for the response headers.  The caller must close the
+     * response, whatever happens.
+     *
+     * @param headers request headers to add, by name
+     * @param cache where a fresh copy of the response is looked for first, and where a new
+     *              one is stored once its body has been read to the end; may be null
+     */
+    Response get(URL url, Map<String, String> headers, HttpDiskCache cache) throws IOException {
+        if (cache != null) {
+            HttpDiskCache.Snapshot snapshot = cache.get(url.toString(), HttpDiskCache.TYPE_JSON);
+            if (snapshot != null) {
+                return new Response(url, snapshot);
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("GET");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        try {
+            // Finds or opens a connection and sends the request
+            connection.connect();
+            long connected = SystemClock.elapsedRealtime();
+            // Waits for the status line and headers
+            int responseCode = connection.getResponseCode();
+            long firstByte = SystemClock.elapsedRealtime();
+            HttpDiskCache.Editor editor = cache == null ? null :
+                    cache.edit(url.toString(), connection);
+            return new Response(url, connection, responseCode, connected - start,
+                    firstByte - connected, firstByte, editor);
+        } catch (IOException e) {
+            // Nothing can be read from it, so don't offer it to anyone else
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * A response whose headers have arrived, or one found in the cache.  The body is read by
+     * the caller, and the connection is released by {@link #close()}.
+     */
+    static class Response implements Closeable {
+        private final URL mUrl;
+        private final HttpURLConnection mConnection;
+        private final HttpDiskCache.Snapshot mSnapshot;
+        private final HttpDiskCache.Editor mEditor;
+        private final int mResponseCode;
+        private final long mConnectMillis;
+        private final long mFirstByteMillis;
+        private final long mHeadersAt;
+        private long mTransferMillis = -1;
+        private InputStream mBody;
+
+        Response(URL url, HttpURLConnection connection, int responseCode, long connectMillis,
+                 long firstByteMillis, long headersAt, HttpDiskCache.Editor editor) {
+            mUrl = url;
+            mConnection = connection;
+            mSnapshot = null;
+            mEditor = editor;
+            mResponseCode = responseCode;
+            mConnectMillis = connectMillis;
+            mFirstByteMillis = firstByteMillis;
+            mHeadersAt = headersAt;
+        }
+
+        Response(URL url, HttpDiskCache.Snapshot snapshot) {
+            mUrl = url;
+            mConnection = null;
+            mSnapshot = snapshot;
+            mEditor = null;
+            mResponseCode = HttpURLConnection.HTTP_OK;
+            mConnectMillis = 0;
+            mFirstByteMillis = 0;
+            mHeadersAt = SystemClock.elapsedRealtime();
+        }
+
+        int getResponseCode() {
+            return mResponseCode;
+        }
+
+        String getHeaderField(String name) {
+            if (mSnapshot == null) {
+                return mConnection.getHeaderField(name);
+            } else if ("ETag".equalsIgnoreCase(name)) {
+                return mSnapshot.getETag();
+            } else if ("Last-Modified".equalsIgnoreCase(name)) {
+                return mSnapshot.getLastModified();
+            } else if ("Content-Type".equalsIgnoreCase(name)) {
+                return mSnapshot.getContentType();
+            }
+            return null;
+        }
+
+        String getContentEncoding() {
+            return mSnapshot == null ?
+                    mConnection.getContentEncoding() : mSnapshot.getContentEncoding();
+        }
+
+        // Whether the response came from the cache, without a request
+        boolean isFromCache() {
+            return mSnapshot != null;
+        }
+
+        /**
+         * Returns the body, which for an error status is the error body, or null if the
+         * response has none.
+         */
+        InputStream getBody() throws IOException {
+            if (mBody == null) {
+                if (mSnapshot != null) {
+                    mBody = mSnapshot.open();
+                } else if (mResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    mBody = mConnection.getErrorStream();
+                } else {
+                    mBody = mConnection.getInputStream();
+                    if (mEditor != null) {
+                        // Stored once the parser, or the drain in close, reaches the end
+                        mBody = mEditor.copyWhileReading(mBody);
+                    }
+                }
+            }
+            return mBody;
+        }
+
+        // Time to get a connection and send the request; close to zero when one was reused
+        long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        // Time from sending the request to receiving the response headers
+        long getFirstByteMillis() {
+            return mFirstByteMillis;
+        }
+
+        // Time from the headers to the end of the body, including parsing it as it arrived.
+        // Only known once the response is closed.
+        long getTransferMillis() {
+            return mTransferMillis;
+        }
+
+        /**
+         * Reads what is left of the body and hands the connection back for reuse.  If too much
+         * is left, the connection is dropped instead.  Calling it again does nothing.
+         */
+        @Override
+        public void close() {
+            if (mTransferMillis >= 0) {
+                return;
+            }
+            if (mSnapshot != null) {
+                closeCached();
+                return;
+            }
+            boolean reusable = true;
+            try {
+                InputStream body = getBody();
+                if (body != null) {
+                    reusable = drain(body);
+                    body.close();
+                }
+            } catch (IOException e) {
+                reusable = false;
+            }
+            if (mEditor != null) {
+                // Does nothing if the body was read to the end and stored
+                mEditor.abort();
+            }
+            if (!reusable) {
+                mConnection.disconnect();
+            }
+            mTransferMillis = SystemClock.elapsedRealtime() - mHeadersAt;
+            Log.d(LOG_TAG, mUrl.getPath() + " " + mResponseCode + ": connect " + mConnectMillis
+                    + "ms, first byte " + mFirstByteMillis + "ms, transfer " + mTransferMillis
+                    + "ms" + (reusable ? "" : ", connection dropped"));
+        }
+
+        private void closeCached() {
+            try {
+                if (mBody != null) {
+                    mBody.close();
+                }
+            } catch (IOException e) {
+                // nothing was left to read
+            }
+            mTransferMillis = SystemClock.elapsedRealtime() - mHeadersAt;
+            Log.d(LOG_TAG, mUrl.getPath() + " from the cache, read in " + mTransferMillis + "ms");
+        }
+
+        private static boolean drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
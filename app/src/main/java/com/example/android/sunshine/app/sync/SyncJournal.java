@@ -0,0 +1,495 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers how far the current sync pass got, so that a pass the process was killed in the
+ * middle of can pick up where it stopped instead of downloading everything again.
+ *
+ * For each location it records whether the forecast was stored, and between downloading a
+ * forecast and storing it, the downloaded forecast itself.  That payload is kept in a file
+ * whose checksum is written to the journal only once the file is complete, so a payload torn
+ * by the kill is never used.  The journal also records whether the deletion of old weather and
+ * the fan-out to the widgets and the rest are still owed.
+ *
+ * A pass has two phases.  The fetch phase downloads and stores, and ends with
+ * {@link #finishFetch}; the fan-out then runs after the sync has returned, and ends with
+ * {@link #finishFanOut}.  Only a pass whose fetch phase was interrupted less than
+ * {@link #RESUME_WINDOW_MILLIS} ago is resumed by the next one; anything older is thrown away,
+ * since the weather will have moved on.  A fan-out still running, or killed, when the next
+ * pass starts only leaves its snapshot behind, which that pass delivers if it has nothing
+ * newer.  The journal
+ * lives in its own preferences file and is written with commit, so it must not be used from
+ * the UI thread.
+ */
+class SyncJournal {
+    private static final String LOG_TAG = SyncJournal.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_journal";
+    private static final String PAYLOAD_DIR = "sync_journal";
+
+    private static final String KEY_PASS_STARTED = "pass_started";
+    // Newline separated, like the saved locations; a location setting never spans lines
+    private static final String KEY_STORED = "stored";
+    private static final String KEY_LAST_COMMITTED = "last_committed";
+    private static final String KEY_DELETE_PENDING = "delete_pending";
+    private static final String KEY_PAYLOAD_CHECKSUM = "payload_checksum:";
+    // Every fan-out key starts with this, so the pass can be cleared without them
+    private static final String FAN_OUT_PREFIX = "fan_out_";
+    // When the pass that owes the fan-out started
+    private static final String KEY_FAN_OUT_PASS = "fan_out_pass";
+    private static final String KEY_FAN_OUT_LOCATION = "fan_out_location";
+    private static final String KEY_FAN_OUT_DATE = "fan_out_date";
+    private static final String KEY_FAN_OUT_WEATHER_ID = "fan_out_weather_id";
+    private static final String KEY_FAN_OUT_HIGH = "fan_out_high";
+    private static final String KEY_FAN_OUT_LOW = "fan_out_low";
+    private static final String KEY_FAN_OUT_DESCRIPTION = "fan_out_description";
+
+    // Long enough for the framework to run the sync again after the process was killed
+    static final long RESUME_WINDOW_MILLIS = 15 * 60 * 1000;
+
+    // Bumped whenever the payload layout changes
+    private static final int PAYLOAD_VERSION = 1;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_MESSAGE_CODE = 1;
+    private static final byte OP_CITY = 2;
+    private static final byte OP_DAY = 3;
+
+    // Every instance shares the one preferences file
+    private static final Object sLock = new Object();
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    SyncJournal(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Starts a pass, carrying on from the last one if its fetch phase was interrupted recently.
+     *
+     * @return when the pass started, to hand to {@link #finishFetch}; if an interrupted pass is
+     *         being resumed that is when the interrupted pass started, and before now
+     */
+    long beginPass() {
+        synchronized (sLock) {
+            long started = mPrefs.getLong(KEY_PASS_STARTED, 0);
+            long now = System.currentTimeMillis();
+            if (started > 0 && now - started < RESUME_WINDOW_MILLIS && now >= started) {
+                Log.d(LOG_TAG, "Resuming the pass interrupted after "
+                        + mPrefs.getString(KEY_LAST_COMMITTED, "no location"));
+                return started;
+            }
+            long fanOutPass = mPrefs.getLong(KEY_FAN_OUT_PASS, 0);
+            if (now - fanOutPass >= RESUME_WINDOW_MILLIS || now < fanOutPass) {
+                clear();
+            } else {
+                clearFetch();
+            }
+            mPrefs.edit().putLong(KEY_PASS_STARTED, now).commit();
+            return now;
+        }
+    }
+
+    /**
+     * Ends the fetch phase of the pass: everything is stored, so the next pass starts afresh
+     * whether or not the fan-out has finished.  Only the snapshot the fan-out is about to
+     * deliver is kept, until {@link #finishFanOut}.
+     *
+     * @param passStarted what {@link #beginPass} returned
+     * @param fanOut the snapshot about to be delivered, or null if there is no fan-out
+     */
+    void finishFetch(long passStarted, ForecastSnapshot fanOut) {
+        synchronized (sLock) {
+            if (mPrefs.getLong(KEY_PASS_STARTED, 0) != passStarted) {
+                return;
+            }
+            clearFetch();
+            SharedPreferences.Editor editor = mPrefs.edit();
+            removeFanOut(editor);
+            if (fanOut != null) {
+                putFanOut(editor, passStarted, fanOut);
+            }
+            editor.commit();
+        }
+    }
+
+    /**
+     * Forgets the snapshot of the pass's fan-out, which got to the end.  The fan-out finishes
+     * after the sync has returned, so by then the snapshot may belong to the next pass; it is
+     * left alone if so.
+     *
+     * @param passStarted what {@link #beginPass} returned
+     */
+    void finishFanOut(long passStarted) {
+        synchronized (sLock) {
+            if (mPrefs.getLong(KEY_FAN_OUT_PASS, 0) == passStarted) {
+                SharedPreferences.Editor editor = mPrefs.edit();
+                removeFanOut(editor);
+                editor.commit();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the location was stored earlier in the pass.
+     */
+    boolean isStored(String locationSetting) {
+        synchronized (sLock) {
+            for (String stored : mPrefs.getString(KEY_STORED, "").split("\n")) {
+                if (stored.equals(locationSetting)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records that the weather of the locations is in the database, and drops their payloads.
+     *
+     * @param changed whether rows were written, so old weather has to be deleted
+     * @param snapshot today's weather for the consumers, if the preferred location is among
+     *                 these and it changed, otherwise null
+     */
+    void onStored(List<String> locationSettings, boolean changed, ForecastSnapshot snapshot) {
+        synchronized (sLock) {
+            StringBuilder stored = new StringBuilder(mPrefs.getString(KEY_STORED, ""));
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (String locationSetting : locationSettings) {
+                if (stored.length() > 0) {
+                    stored.append('\n');
+                }
+                stored.append(locationSetting);
+                editor.remove(KEY_PAYLOAD_CHECKSUM + locationSetting);
+            }
+            editor.putString(KEY_STORED, stored.toString())
+                    .putString(KEY_LAST_COMMITTED,
+                            locationSettings.get(locationSettings.size() - 1));
+            if (changed) {
+                editor.putBoolean(KEY_DELETE_PENDING, true);
+            }
+            if (snapshot != null) {
+                putFanOut(editor, mPrefs.getLong(KEY_PASS_STARTED, 0), snapshot);
+            }
+            editor.commit();
+            for (String locationSetting : locationSettings) {
+                getPayloadFile(locationSetting).delete();
+            }
+        }
+    }
+
+    /**
+     * Returns whether old weather still has to be deleted for rows stored in the pass.
+     */
+    boolean isDeletePending() {
+        return mPrefs.getBoolean(KEY_DELETE_PENDING, false);
+    }
+
+    /**
+     * Returns the snapshot the consumers are still owed, or null if they are owed nothing.
+     */
+    ForecastSnapshot getPendingFanOut() {
+        synchronized (sLock) {
+            String location = mPrefs.getString(KEY_FAN_OUT_LOCATION, null);
+            if (location == null) {
+                return null;
+            }
+            return new ForecastSnapshot(location,
+                    mPrefs.getLong(KEY_FAN_OUT_DATE, 0),
+                    mPrefs.getInt(KEY_FAN_OUT_WEATHER_ID, 0),
+                    mPrefs.getFloat(KEY_FAN_OUT_HIGH, 0),
+                    mPrefs.getFloat(KEY_FAN_OUT_LOW, 0),
+                    mPrefs.getString(KEY_FAN_OUT_DESCRIPTION, null));
+        }
+    }
+
+    /**
+     * Keeps a downloaded forecast until it is stored.  The file is synced to disk before its
+     * checksum goes into the journal.
+     */
+    void savePayload(String locationSetting, byte[] payload) {
+        synchronized (sLock) {
+            File file = getPayloadFile(locationSetting);
+            file.getParentFile().mkdirs();
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                out.write(payload);
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't keep the forecast for " + locationSetting, e);
+                file.delete();
+                return;
+            } finally {
+                closeQuietly(out);
+            }
+            mPrefs.edit().putLong(KEY_PAYLOAD_CHECKSUM + locationSetting, checksum(payload))
+                    .commit();
+        }
+    }
+
+    /**
+     * Returns the payload kept for the location, or null if there is none, it doesn't match
+     * the checksum in the journal, or it is a forecast starting on another day.
+     *
+     * @param forecastDay the julian day the forecast has to start on to be of any use
+     */
+    byte[] loadPayload(String locationSetting, int forecastDay) {
+        synchronized (sLock) {
+            if (!mPrefs.contains(KEY_PAYLOAD_CHECKSUM + locationSetting)) {
+                return null;
+            }
+            File file = getPayloadFile(locationSetting);
+            byte[] payload = new byte[(int) file.length()];
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                new DataInputStream(in).readFully(payload);
+            } catch (IOException e) {
+                payload = null;
+            } finally {
+                closeQuietly(in);
+            }
+            if (payload == null || checksum(payload)
+                    != mPrefs.getLong(KEY_PAYLOAD_CHECKSUM + locationSetting, 0)) {
+                Log.w(LOG_TAG, "The forecast kept for " + locationSetting + " is damaged");
+                mPrefs.edit().remove(KEY_PAYLOAD_CHECKSUM + locationSetting).commit();
+                file.delete();
+                return null;
+            }
+            // The version and the day lead the payload
+            ByteBuffer header = ByteBuffer.wrap(payload);
+            if (payload.length < 8 || header.getInt(0) != PAYLOAD_VERSION
+                    || header.getInt(4) != forecastDay) {
+                return null;
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * Forgets the pass and every payload.  Only meant for tests, and for starting over.
+     */
+    static void reset(Context context) {
+        synchronized (sLock) {
+            new SyncJournal(context).clear();
+        }
+    }
+
+    private static void putFanOut(SharedPreferences.Editor editor, long passStarted,
+                                  ForecastSnapshot snapshot) {
+        editor.putLong(KEY_FAN_OUT_PASS, passStarted)
+                .putString(KEY_FAN_OUT_LOCATION, snapshot.locationSetting)
+                .putLong(KEY_FAN_OUT_DATE, snapshot.date)
+                .putInt(KEY_FAN_OUT_WEATHER_ID, snapshot.weatherId)
+                .putFloat(KEY_FAN_OUT_HIGH, (float) snapshot.high)
+                .putFloat(KEY_FAN_OUT_LOW, (float) snapshot.low)
+                .putString(KEY_FAN_OUT_DESCRIPTION, snapshot.description);
+    }
+
+    private void removeFanOut(SharedPreferences.Editor editor) {
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(FAN_OUT_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+    }
+
+    private void clear() {
+        mPrefs.edit().clear().commit();
+        deletePayloads();
+    }
+
+    // Forgets everything but the fan-out owed
+    private void clearFetch() {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (!key.startsWith(FAN_OUT_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+        deletePayloads();
+    }
+
+    private void deletePayloads() {
+        File[] files = new File(mContext.getFilesDir(), PAYLOAD_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    File getPayloadFile(String locationSetting) {
+        // Location settings are free text, so they don't make safe file names
+        return new File(new File(mContext.getFilesDir(), PAYLOAD_DIR),
+                Integer.toHexString(locationSetting.hashCode()) + "-"
+                        + locationSetting.length());
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * Passes a forecast on to a listener as it is parsed, and keeps a copy of every call so
+     * the forecast can be replayed from the journal without parsing or downloading it again.
+     */
+    static class Recorder implements ForecastJsonParser.Listener {
+        private final ForecastJsonParser.Listener mListener;
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(2048);
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        Recorder(ForecastJsonParser.Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onMessageCode(int code) {
+            mListener.onMessageCode(code);
+            try {
+                mOut.writeByte(OP_MESSAGE_CODE);
+                mOut.writeInt(code);
+            } catch (IOException e) {
+                // never thrown by a byte array
+            }
+        }
+
+        @Override
+        public void onCity(int cityId, String cityName, double lat, double lon) {
+            mListener.onCity(cityId, cityName, lat, lon);
+            try {
+                mOut.writeByte(OP_CITY);
+                mOut.writeInt(cityId);
+                mOut.writeUTF(cityName);
+                mOut.writeDouble(lat);
+                mOut.writeDouble(lon);
+            } catch (IOException e) {
+                // never thrown by a byte array
+            }
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            mListener.onDay(dayIndex, pressure, humidity, windSpeed, windDirection, high, low,
+                    description, weatherId);
+            try {
+                mOut.writeByte(OP_DAY);
+                mOut.writeInt(dayIndex);
+                mOut.writeDouble(pressure);
+                mOut.writeInt(humidity);
+                mOut.writeDouble(windSpeed);
+                mOut.writeDouble(windDirection);
+                mOut.writeDouble(high);
+                mOut.writeDouble(low);
+                mOut.writeUTF(description);
+                mOut.writeInt(weatherId);
+            } catch (IOException e) {
+                // never thrown by a byte array
+            }
+        }
+
+        /**
+         * Returns the payload to keep in the journal.
+         *
+         * @param forecastDay the julian day the forecast starts on
+         * @param result what the source reported about the download
+         */
+        byte[] toPayload(int forecastDay, FetchResult result) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(mBytes.size() + 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(PAYLOAD_VERSION);
+                out.writeInt(forecastDay);
+                writeNullable(out, result.eTag);
+                writeNullable(out, result.lastModified);
+                mBytes.writeTo(out);
+                out.writeByte(OP_END);
+            } catch (IOException e) {
+                // never thrown by a byte array
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Replays a payload returned by {@link #loadPayload} into a listener, as the parser called
+     * it when the forecast was downloaded.
+     *
+     * @return what the source reported about the download, without its transfer figures
+     * @throws IOException if the payload isn't one a {@link Recorder} wrote
+     */
+    static FetchResult replay(byte[] payload, ForecastJsonParser.Listener listener)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        // The version and the day were checked when it was loaded
+        in.readInt();
+        in.readInt();
+        String eTag = readNullable(in);
+        String lastModified = readNullable(in);
+        while (true) {
+            byte op = in.readByte();
+            switch (op) {
+                case OP_END:
+                    return new FetchResult(false, eTag, lastModified, null, 0, 0);
+                case OP_MESSAGE_CODE:
+                    listener.onMessageCode(in.readInt());
+                    break;
+                case OP_CITY:
+                    listener.onCity(in.readInt(), in.readUTF(), in.readDouble(), in.readDouble());
+                    break;
+                case OP_DAY:
+                    listener.onDay(in.readInt(), in.readDouble(), in.readInt(), in.readDouble(),
+                            in.readDouble(), in.readDouble(), in.readDouble(), in.readUTF(),
+                            in.readInt());
+                    break;
+                default:
+                    throw new IOException("Unknown payload entry " + op);
+            }
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
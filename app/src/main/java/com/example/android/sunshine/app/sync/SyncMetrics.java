@@ -0,0 +1,146 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SyncStats;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.SyncMetricsLog;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Adds up where the time of one sync goes, stage by stage, along with the bytes it downloaded
+ * and the rows it parsed and wrote.  The fetches of a sync run in parallel and all report
+ * here.  Once the sync, and the fan-out that follows it, are done the totals are saved to the
+ * {@link SyncMetricsLog} and copied into the sync's {@link SyncStats}.
+ */
+class SyncMetrics {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private final long mStartedAt = System.currentTimeMillis();
+    private final long mStartElapsed = SystemClock.elapsedRealtime();
+    private final int[] mValues = new int[SyncMetricsLog.FIELD_COUNT];
+    private boolean mSaved;
+
+    SyncMetrics() {
+        // Left at -1 unless the consumer is told about a new forecast
+        mValues[SyncMetricsLog.FIELD_FAN_OUT_WIDGETS] = -1;
+        mValues[SyncMetricsLog.FIELD_FAN_OUT_MUZEI] = -1;
+        mValues[SyncMetricsLog.FIELD_FAN_OUT_NOTIFICATION] = -1;
+        mValues[SyncMetricsLog.FIELD_FAN_OUT_WEAR] = -1;
+    }
+
+    /**
+     * Returns the time to pass to {@link #endStage} once the stage is over.
+     */
+    static long startStage() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Adds the time since {@link #startStage} to a stage.
+     *
+     * @param field one of the SyncMetricsLog FIELD constants for a stage
+     */
+    synchronized void endStage(int field, long startedAt) {
+        add(field, SystemClock.elapsedRealtime() - startedAt);
+    }
+
+    /**
+     * Sets how long a fan-out consumer took.
+     */
+    synchronized void setFanOut(int field, long millis) {
+        mValues[field] = 0;
+        add(field, millis);
+    }
+
+    /**
+     * Adds what a source reported about one request.
+     */
+    synchronized void addFetch(FetchResult result) {
+        mValues[SyncMetricsLog.FIELD_REQUESTS]++;
+        add(SyncMetricsLog.FIELD_CONNECT, result.connectMillis);
+        add(SyncMetricsLog.FIELD_FIRST_BYTE, result.firstByteMillis);
+        add(SyncMetricsLog.FIELD_DOWNLOAD, result.transferMillis - result.parseMillis);
+        add(SyncMetricsLog.FIELD_PARSE, result.parseMillis);
+        add(SyncMetricsLog.FIELD_WIRE_BYTES, result.wireBytes);
+        add(SyncMetricsLog.FIELD_DECODED_BYTES, result.decodedBytes);
+    }
+
+    synchronized void addRows(int parsed, int inserted, int updated) {
+        add(SyncMetricsLog.FIELD_ROWS_PARSED, parsed);
+        add(SyncMetricsLog.FIELD_ROWS_INSERTED, inserted);
+        add(SyncMetricsLog.FIELD_ROWS_UPDATED, updated);
+    }
+
+    synchronized void addDeletedRows(int deleted) {
+        add(SyncMetricsLog.FIELD_ROWS_DELETED, deleted);
+    }
+
+    synchronized void addIoError() {
+        mValues[SyncMetricsLog.FIELD_IO_ERRORS]++;
+    }
+
+    synchronized void addParseError() {
+        mValues[SyncMetricsLog.FIELD_PARSE_ERRORS]++;
+    }
+
+    /**
+     * Records a fetch that threw instead of returning a result, e.g. because the database
+     * write failed.  It is counted with the parse errors: like them it wasn't the network, and
+     * syncing again straight away won't help.
+     */
+    synchronized void addFetchError() {
+        mValues[SyncMetricsLog.FIELD_PARSE_ERRORS]++;
+    }
+
+    /**
+     * Copies the row counts and parse errors into the stats the sync hands back to the
+     * framework.  Fetches that couldn't reach the server are left out: the framework would
+     * reschedule the sync for them, while the retries and the circuit breaker already decide
+     * when to try again.
+     */
+    synchronized void copyTo(SyncStats stats) {
+        stats.numEntries += mValues[SyncMetricsLog.FIELD_ROWS_PARSED];
+        stats.numInserts += mValues[SyncMetricsLog.FIELD_ROWS_INSERTED];
+        stats.numUpdates += mValues[SyncMetricsLog.FIELD_ROWS_UPDATED];
+        stats.numDeletes += mValues[SyncMetricsLog.FIELD_ROWS_DELETED];
+        stats.numParseExceptions += mValues[SyncMetricsLog.FIELD_PARSE_ERRORS];
+    }
+
+    /**
+     * Saves the record of the sync.  Anything reported after this, such as a consumer that
+     * finished after its deadline, is left out.  Does file I/O, so never on the UI thread.
+     *
+     * @param outcome one of the SyncMetricsEntry OUTCOME constants
+     */
+    void save(Context context, int outcome) {
+        int[] values;
+        synchronized (this) {
+            if (mSaved) {
+                return;
+            }
+            mSaved = true;
+            mValues[SyncMetricsLog.FIELD_OUTCOME] = outcome;
+            mValues[SyncMetricsLog.FIELD_DURATION] =
+                    (int) (SystemClock.elapsedRealtime() - mStartElapsed);
+            values = mValues.clone();
+        }
+        Log.d(LOG_TAG, "Sync took " + values[SyncMetricsLog.FIELD_DURATION] + "ms: connect "
+                + values[SyncMetricsLog.FIELD_CONNECT] + "ms, first byte "
+                + values[SyncMetricsLog.FIELD_FIRST_BYTE] + "ms, download "
+                + values[SyncMetricsLog.FIELD_DOWNLOAD] + "ms, parse "
+                + values[SyncMetricsLog.FIELD_PARSE] + "ms, resolve "
+                + values[SyncMetricsLog.FIELD_RESOLVE] + "ms, insert "
+                + values[SyncMetricsLog.FIELD_INSERT] + "ms, delete "
+                + values[SyncMetricsLog.FIELD_DELETE] + "ms"
+                + (outcome == WeatherContract.SyncMetricsEntry.OUTCOME_COMPLETE ? "" :
+                        ", outcome " + outcome));
+        SyncMetricsLog.append(context, mStartedAt, values);
+    }
+
+    // Saturates rather than wrapping; a sync will never really get there
+    private void add(int field, long amount) {
+        mValues[field] = (int) Math.min(Integer.MAX_VALUE, mValues[field] + Math.max(0, amount));
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.DayMath;
+import com.example.android.sunshine.app.data.WeatherBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Decides how often the periodic sync runs.  After each sync it looks at how far the stored
+ * forecast for the preferred location moved, and stretches the interval while the weather is
+ * settled and shrinks it again when the forecast starts jumping around, within
+ * {@link #MIN_SYNC_INTERVAL} and {@link #MAX_SYNC_INTERVAL}.
+ *
+ * A long interval is only fine while nobody is looking, so anything about to show the weather
+ * calls {@link #syncIfStale} first, which brings the next sync forward if the data is older than
+ * the fixed interval used to guarantee.
+ *
+ * One instance belongs to the sync adapter and sees one pass at a time.  The interval and the
+ * time of the last good sync live in their own preferences file.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String KEY_SYNC_INTERVAL = "sync_interval";
+    private static final String KEY_LAST_SYNC = "last_sync";
+    private static final String KEY_LAST_STALE_REQUEST = "last_stale_request";
+
+    // Bounds of the periodic sync interval, in seconds
+    static final int MIN_SYNC_INTERVAL = 60 * 60;
+    static final int MAX_SYNC_INTERVAL = 60 * 60 * 12;
+
+    // Average change per day, in degrees, below which the forecast counts as settled and above
+    // which it counts as volatile.  In between the interval is left alone.
+    static final double STABLE_CHANGE = 1.0;
+    static final double VOLATILE_CHANGE = 3.0;
+
+    // A day whose conditions changed, e.g. from clouds to rain, counts as this many degrees
+    static final double CONDITION_CHANGE = 4.0;
+
+    // Settled weather stretches the interval by half, volatile weather halves it
+    private static final float STRETCH_FACTOR = 1.5f;
+    private static final float SHRINK_FACTOR = 0.5f;
+
+    // Data read by the UI, widgets or wearable is never allowed to get older than the fixed
+    // interval we used to sync at
+    private static final long STALE_AFTER_MILLIS = SunshineSyncAdapter.SYNC_INTERVAL * 1000L;
+
+    // Keeps a device that can't reach the server from asking for a sync every time a widget
+    // updates
+    private static final long MIN_STALE_REQUEST_SPACING_MILLIS = 5 * 60 * 1000;
+
+    private final Context mContext;
+
+    // What the current pass learned about the preferred location
+    private boolean mPreferredFetched;
+    private double mPreferredChange;
+
+    SyncScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Forgets what the last pass measured.  Called as a sync starts.
+     */
+    synchronized void startPass() {
+        mPreferredFetched = false;
+        mPreferredChange = Double.NaN;
+    }
+
+    /**
+     * Records that the preferred location was fetched successfully this pass.
+     *
+     * @param change the average change per day, as returned by {@link #measureChange}, or
+     *               {@link Double#NaN} if there was nothing to compare against
+     */
+    synchronized void onPreferredFetched(double change) {
+        mPreferredFetched = true;
+        mPreferredChange = change;
+    }
+
+    /**
+     * Called once a sync has stored everything.  If the preferred location was fetched, marks
+     * the data fresh and moves the periodic sync according to how much its forecast changed.
+     * This should not be called from the UI thread because it uses commit to write to the
+     * shared preferences.
+     */
+    synchronized void finishPass() {
+        if (!mPreferredFetched) {
+            // Nothing new was learned, so neither the schedule nor the staleness changes
+            return;
+        }
+        SharedPreferences prefs = getPrefs(mContext);
+        int interval = getSyncInterval(mContext);
+        int newInterval = nextInterval(interval, mPreferredChange);
+        prefs.edit()
+                .putLong(KEY_LAST_SYNC, System.currentTimeMillis())
+                .putInt(KEY_SYNC_INTERVAL, newInterval)
+                .commit();
+
+        if (newInterval != interval) {
+            Log.d(LOG_TAG, "Forecast changed by " + mPreferredChange + " degrees a day, sync interval "
+                    + interval + "s -> " + newInterval + "s");
+            SunshineSyncAdapter.configurePeriodicSync(mContext, newInterval, newInterval / 3);
+        }
+    }
+
+    /**
+     * Works out the interval to use after a sync that changed the forecast by the given amount.
+     */
+    static int nextInterval(int interval, double change) {
+        if (Double.isNaN(change)) {
+            return interval;
+        }
+        if (change < STABLE_CHANGE) {
+            return Math.min(MAX_SYNC_INTERVAL, Math.round(interval * STRETCH_FACTOR));
+        }
+        if (change > VOLATILE_CHANGE) {
+            return Math.max(MIN_SYNC_INTERVAL, Math.round(interval * SHRINK_FACTOR));
+        }
+        return interval;
+    }
+
+    /**
+     * Compares weather rows about to be written with the rows already stored for the same days,
+     * and returns the average change per day in degrees.  The high and low each count for half,
+     * and a change of conditions counts for {@link #CONDITION_CHANGE}.
+     *
+     * @param rows rows for a single location, with the location key set
+     * @return the average change, or {@link Double#NaN} if none of the days were stored yet
+     */
+    static double measureChange(ContentResolver resolver, ContentValues[] rows) {
+        return measureChange(resolver, WeatherBatch.fromValues(rows));
+    }
+
+    static double measureChange(ContentResolver resolver, WeatherBatch rows) {
+        if (rows.size() == 0) {
+            return Double.NaN;
+        }
+        long firstDate = Long.MAX_VALUE;
+        long lastDate = Long.MIN_VALUE;
+        for (int i = 0; i < rows.size(); i++) {
+            firstDate = Math.min(firstDate, rows.getDate(i));
+            lastDate = Math.max(lastDate, rows.getDate(i));
+        }
+
+        Cursor cursor = resolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+                },
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{
+                        Long.toString(rows.getLocationId(0)),
+                        Long.toString(firstDate),
+                        Long.toString(lastDate)
+                },
+                null);
+        if (cursor == null) {
+            return Double.NaN;
+        }
+
+        double total = 0;
+        int days = 0;
+        try {
+            while (cursor.moveToNext()) {
+                int row = findDate(rows, cursor.getLong(0));
+                if (row < 0) {
+                    continue;
+                }
+                double change = (Math.abs(rows.getMaxTemp(row) - cursor.getDouble(1))
+                        + Math.abs(rows.getMinTemp(row) - cursor.getDouble(2))) / 2;
+                // Weather ids share their hundreds with similar conditions, e.g. 5xx is rain
+                if (rows.getWeatherId(row) / 100 != cursor.getInt(3) / 100) {
+                    change += CONDITION_CHANGE;
+                }
+                total += change;
+                days++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return days == 0 ? Double.NaN : total / days;
+    }
+
+    // A forecast is two weeks at most, so a scan is all it takes
+    private static int findDate(WeatherBatch rows, long date) {
+        for (int i = 0; i < rows.size(); i++) {
+            if (rows.getDate(i) == date) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the current periodic sync interval, in seconds.
+     */
+    public static int getSyncInterval(Context context) {
+        return getPrefs(context).getInt(KEY_SYNC_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * Requests a sync right away if the stored weather is older than readers should see, or was
+     * synced on an earlier day.  Call it before showing the weather.  Safe to call from the UI
+     * thread.
+     *
+     * @return whether a sync was requested
+     */
+    public static boolean syncIfStale(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        long now = System.currentTimeMillis();
+        long lastSync = prefs.getLong(KEY_LAST_SYNC, 0);
+        if (lastSync == 0) {
+            // Never synced; the first sync is requested when the account is created
+            return false;
+        }
+        if (!isStale(lastSync, now)) {
+            return false;
+        }
+        if (now - prefs.getLong(KEY_LAST_STALE_REQUEST, 0) < MIN_STALE_REQUEST_SPACING_MILLIS) {
+            return false;
+        }
+        prefs.edit().putLong(KEY_LAST_STALE_REQUEST, now).apply();
+        Log.d(LOG_TAG, "Weather last synced " + (now - lastSync) / 1000 + "s ago, syncing now");
+        // Nobody asked, so it waits behind user refreshes for the API quota
+        SunshineSyncAdapter.syncImmediately(context, false);
+        return true;
+    }
+
+    static boolean isStale(long lastSync, long now) {
+        if (now - lastSync > STALE_AFTER_MILLIS) {
+            return true;
+        }
+        // Past midnight the stored forecast no longer starts today
+        return DayMath.julianDay(now) != DayMath.julianDay(lastSync);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
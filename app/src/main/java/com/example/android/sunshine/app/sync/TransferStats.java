@@ -0,0 +1,98 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+/**
+ * Keeps a record of how many bytes forecast downloads cost on the wire and how many they
+ * decoded to, for the last sync and in total.  Downloads made over a metered network are also
+ * totalled on their own, since that is where compression matters most.
+ *
+ * It also keeps how long requests take to connect, to get their first byte and to transfer
+ * their body, for the last request and in total, so averages can be worked out from the
+ * request count.
+ */
+public class TransferStats {
+    private static final String PREFS_NAME = "transfer_stats";
+
+    public static final String KEY_LAST_WIRE_BYTES = "last_wire_bytes";
+    public static final String KEY_LAST_DECODED_BYTES = "last_decoded_bytes";
+    public static final String KEY_LAST_ENCODING = "last_encoding";
+    public static final String KEY_TOTAL_WIRE_BYTES = "total_wire_bytes";
+    public static final String KEY_TOTAL_DECODED_BYTES = "total_decoded_bytes";
+    public static final String KEY_METERED_WIRE_BYTES = "metered_wire_bytes";
+    public static final String KEY_METERED_DECODED_BYTES = "metered_decoded_bytes";
+    public static final String KEY_LAST_CONNECT_MILLIS = "last_connect_millis";
+    public static final String KEY_LAST_FIRST_BYTE_MILLIS = "last_first_byte_millis";
+    public static final String KEY_LAST_TRANSFER_MILLIS = "last_transfer_millis";
+    public static final String KEY_TOTAL_REQUESTS = "total_requests";
+    public static final String KEY_TOTAL_CONNECT_MILLIS = "total_connect_millis";
+    public static final String KEY_TOTAL_FIRST_BYTE_MILLIS = "total_first_byte_millis";
+    public static final String KEY_TOTAL_TRANSFER_MILLIS = "total_transfer_millis";
+
+    private TransferStats() {
+    }
+
+    public static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds one download to the statistics.  This function should not be called from the UI
+     * thread because it uses commit to write to the shared preferences.  Several locations may
+     * finish downloading at once, so updates to the running totals are serialised.
+     *
+     * @param result what the source reported about the download
+     */
+    static synchronized void record(Context context, FetchResult result) {
+        String encoding = result.encoding;
+        long wireBytes = result.wireBytes;
+        long decodedBytes = result.decodedBytes;
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(KEY_LAST_WIRE_BYTES, wireBytes);
+        editor.putLong(KEY_LAST_DECODED_BYTES, decodedBytes);
+        editor.putString(KEY_LAST_ENCODING, encoding == null ? "identity" : encoding);
+        editor.putLong(KEY_TOTAL_WIRE_BYTES, prefs.getLong(KEY_TOTAL_WIRE_BYTES, 0) + wireBytes);
+        editor.putLong(KEY_TOTAL_DECODED_BYTES,
+                prefs.getLong(KEY_TOTAL_DECODED_BYTES, 0) + decodedBytes);
+        editor.putLong(KEY_LAST_CONNECT_MILLIS, result.connectMillis);
+        editor.putLong(KEY_LAST_FIRST_BYTE_MILLIS, result.firstByteMillis);
+        editor.putLong(KEY_LAST_TRANSFER_MILLIS, result.transferMillis);
+        editor.putLong(KEY_TOTAL_REQUESTS, prefs.getLong(KEY_TOTAL_REQUESTS, 0) + 1);
+        editor.putLong(KEY_TOTAL_CONNECT_MILLIS,
+                prefs.getLong(KEY_TOTAL_CONNECT_MILLIS, 0) + result.connectMillis);
+        editor.putLong(KEY_TOTAL_FIRST_BYTE_MILLIS,
+                prefs.getLong(KEY_TOTAL_FIRST_BYTE_MILLIS, 0) + result.firstByteMillis);
+        editor.putLong(KEY_TOTAL_TRANSFER_MILLIS,
+                prefs.getLong(KEY_TOTAL_TRANSFER_MILLIS, 0) + result.transferMillis);
+        if (isMetered(context)) {
+            editor.putLong(KEY_METERED_WIRE_BYTES,
+                    prefs.getLong(KEY_METERED_WIRE_BYTES, 0) + wireBytes);
+            editor.putLong(KEY_METERED_DECODED_BYTES,
+                    prefs.getLong(KEY_METERED_DECODED_BYTES, 0) + decodedBytes);
+        }
+        editor.commit();
+    }
+
+    private static boolean isMetered(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return isActiveNetworkMetered(cm);
+        }
+        // Before Jelly Bean, treat anything other than wifi as metered
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null
+                && activeNetwork.getType() != ConnectivityManager.TYPE_WIFI;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(ConnectivityManager cm) {
+        return cm.isActiveNetworkMetered();
+    }
+}
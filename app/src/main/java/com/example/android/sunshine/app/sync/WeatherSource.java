@@ -0,0 +1,54 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Where the sync adapter gets its weather from.  A source builds the requests, downloads the
+ * responses and runs them through the parsers; what happens to the parsed weather is up to
+ * the listener.  Implementations are called from several sync threads at once.
+ */
+public interface WeatherSource {
+
+    /**
+     * Called as a sync starts, before any fetch, so the source can get ready for its requests,
+     * e.g. by resolving host names.  It must not block.
+     */
+    void warmUp();
+
+    /**
+     * Fetches the daily forecast for a location.  When either validator is given, the source
+     * may answer with a not modified result instead of calling the listener.
+     *
+     * @param eTag the ETag of the forecast we have, or null
+     * @param lastModified the Last-Modified date of the forecast we have, or null
+     * @throws RateLimitedException if the server refused because of the API key's quota
+     * @throws IOException if the forecast could not be downloaded
+     * @throws JSONException if the response was not a valid forecast
+     */
+    FetchResult fetchForecast(String locationQuery, int numDays, String eTag,
+                              String lastModified, ForecastJsonParser.Listener listener)
+            throws IOException, JSONException;
+
+    /**
+     * Fetches the current weather for several cities in one request.
+     *
+     * @throws RateLimitedException if the server refused because of the API key's quota
+     * @throws IOException if the weather could not be downloaded
+     * @throws JSONException if the response was not a valid group response
+     */
+    FetchResult fetchCurrentWeather(int[] cityIds, CurrentWeatherJsonParser.Listener listener)
+            throws IOException, JSONException;
+
+    /**
+     * Fetches the five day forecast in three hour steps for a location.
+     *
+     * @throws RateLimitedException if the server refused because of the API key's quota
+     * @throws IOException if the forecast could not be downloaded
+     * @throws JSONException if the response was not a valid forecast
+     */
+    FetchResult fetchHourlyForecast(String locationQuery,
+                                    HourlyForecastJsonParser.Listener listener)
+            throws IOException, JSONException;
+}
@@ -9,6 +9,7 @@ import android.util.Log;
 
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastSnapshot;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.DataApi;
@@ -28,6 +29,7 @@ public class GoogleApiClientConnectionHelper implements GoogleApiClient.Connecti
 
     private IntentService intentService;
     private GoogleApiClient googleApiClient;
+    private ForecastSnapshot snapshot;
     private int weatherId;
     private String maxTemp;
     private String minTemp;
@@ -39,6 +41,12 @@ public class GoogleApiClientConnectionHelper implements GoogleApiClient.Connecti
     @Override
     public void onConnected(Bundle bundle) {
 
+        /** Use the weather the sync sent along, if it is still for the preferred location **/
+        if (snapshot != null && snapshot.isFor(Utility.getPreferredLocation(intentService))) {
+            fetchDataWithSnapshot(snapshot);
+            return;
+        }
+
         Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(Utility.getPreferredLocation(intentService), System.currentTimeMillis());
 
         Cursor c = intentService.getContentResolver().query(
@@ -67,6 +75,18 @@ public class GoogleApiClientConnectionHelper implements GoogleApiClient.Connecti
         this.googleApiClient = googleApiClient;
     }
 
+    public void setSnapshot(ForecastSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public void fetchDataWithSnapshot(@NonNull ForecastSnapshot snapshot){
+        weatherId = snapshot.weatherId;
+        maxTemp = Utility.formatTemperature(intentService, snapshot.high);
+        minTemp = Utility.formatTemperature(intentService, snapshot.low);
+
+        putDataForWearable();
+    }
+
     public void fetchDataWithCursor(@NonNull Cursor cursor){
         if (cursor.moveToFirst()) {
             weatherId = cursor.getInt(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
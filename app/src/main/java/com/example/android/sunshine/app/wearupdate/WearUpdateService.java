@@ -3,6 +3,7 @@ package com.example.android.sunshine.app.wearupdate;
 import android.app.IntentService;
 import android.content.Intent;
 
+import com.example.android.sunshine.app.sync.ForecastSnapshot;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Wearable;
 
@@ -38,6 +39,8 @@ public class WearUpdateService extends IntentService  {
         if (intent != null && intent.getAction() != null && intent.getAction().equals("WearUpdateAction")) {
 
             GoogleApiClientConnectionHelper googleApiClientConnectionHelper = new GoogleApiClientConnectionHelper(this);
+            /** weather data sent along by the sync, if any **/
+            googleApiClientConnectionHelper.setSnapshot(ForecastSnapshot.fromIntent(intent));
             googleApiClient = new GoogleApiClient.Builder(WearUpdateService.this)
                     .addConnectionCallbacks(googleApiClientConnectionHelper)
                     .addOnConnectionFailedListener(googleApiClientConnectionHelper)
@@ -16,6 +16,7 @@ import com.example.android.sunshine.app.DetailActivity;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 /**
  * Provider for a scrollable weather detail widget
@@ -52,6 +53,8 @@ public class DetailWidgetProvider extends AppWidgetProvider {
             // Tell the AppWidgetManager to perform an update on the current app widget
             appWidgetManager.updateAppWidget(appWidgetId, views);
         }
+        // If what we show is old, the sync will update us again when it is done
+        SyncScheduler.syncIfStale(context);
     }
 
     @Override